@@ -0,0 +1,93 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.benchmark;
+
+import com.google.inject.Guice;
+import com.smartitengineering.emailq.domain.Email;
+import com.smartitengineering.emailq.service.SaveResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures saving a backlog of emails one at a time against saving it as a batch, per email. Each write to the
+ * repository takes the given latency however many emails it writes, so with a latency the benchmark shows what the
+ * round trips saved by batching are worth, and without one what batching costs by itself.
+ * @author imyousuf
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchSaveBenchmark {
+
+  private static final int BACKLOG = 200;
+  @Param({"0", "1000"})
+  private long writeLatencyMicros;
+  private BenchmarkEmailService service;
+  private List<Email> emails;
+
+  @Setup
+  public void setUp() {
+    service = Guice.createInjector(new BenchmarkModule(0, writeLatencyMicros)).getInstance(
+        BenchmarkEmailService.class);
+    emails = new ArrayList<Email>(BACKLOG);
+    for (int i = 0; i < BACKLOG; ++i) {
+      emails.add(BenchmarkEmails.createPlain());
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    service.shutdown();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BACKLOG)
+  public int saveOneAtATime() {
+    int saved = 0;
+    for (Email email : emails) {
+      if (service.saveEmail(email)) {
+        saved++;
+      }
+    }
+    return saved;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BACKLOG)
+  public List<SaveResult> saveAsBatch() {
+    return service.saveEmails(emails);
+  }
+}
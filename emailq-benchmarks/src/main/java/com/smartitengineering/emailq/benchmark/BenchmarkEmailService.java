@@ -0,0 +1,67 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.benchmark;
+
+import com.smartitengineering.emailq.domain.Email;
+import com.smartitengineering.emailq.service.impl.EmailServiceImpl;
+import com.smartitengineering.emailq.service.impl.SmtpConnection;
+import java.io.IOException;
+import java.util.Collection;
+import javax.mail.Address;
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Opens up the steps of the service that the benchmarks measure one by one.
+ * @author imyousuf
+ */
+public class BenchmarkEmailService extends EmailServiceImpl {
+
+  @Override
+  public MimeMessage buildMessage(Email email) throws MessagingException {
+    return super.buildMessage(email);
+  }
+
+  @Override
+  public byte[] render(Email email) throws MessagingException, IOException {
+    return super.render(email);
+  }
+
+  @Override
+  public void addRecipients(MimeMessage message, RecipientType recipientType, Collection<String> addresses) throws
+      MessagingException {
+    super.addRecipients(message, recipientType, addresses);
+  }
+
+  @Override
+  public Address[] getRecipients(Email email) throws MessagingException {
+    return super.getRecipients(email);
+  }
+
+  @Override
+  public String validate(Email email) {
+    return super.validate(email);
+  }
+
+  @Override
+  public void sendEmail(SmtpConnection connection, Email email) throws MessagingException {
+    super.sendEmail(connection, email);
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.benchmark;
+
+import com.smartitengineering.emailq.domain.Email;
+import com.smartitengineering.emailq.domain.Email.Attachments;
+import com.smartitengineering.emailq.domain.Email.Message;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The emails the benchmarks work on.
+ * @author imyousuf
+ */
+public final class BenchmarkEmails {
+
+  public static final String FROM = "imran@smartitengineering.com";
+  private static final String BODY_LINE = "The quick brown fox jumps over the lazy dog. ";
+
+  private BenchmarkEmails() {
+  }
+
+  /**
+   * An email of the given kind, i.e. a plain text one, a HTML one or a plain text one with three attachments.
+   */
+  public static Email create(EmailKind kind) {
+    switch (kind) {
+      case HTML:
+        return createHtml();
+      case ATTACHMENTS:
+        return createWithAttachments(3, 64 * 1024);
+      case PLAIN:
+      default:
+        return createPlain();
+    }
+  }
+
+  public static Email createPlain() {
+    return create(Message.MsgType.PLAIN, getBody(40));
+  }
+
+  public static Email createHtml() {
+    StringBuilder body = new StringBuilder("<html><body><h1>Benchmark</h1>");
+    for (int i = 0; i < 40; ++i) {
+      body.append("<p>").append(BODY_LINE).append("</p>");
+    }
+    return create(Message.MsgType.HTML, body.append("</body></html>").toString());
+  }
+
+  public static Email createWithAttachments(int count, int sizeInBytes) {
+    Email email = createPlain();
+    Random random = new Random(count);
+    List<Attachments> attachments = new ArrayList<Attachments>(count);
+    for (int i = 0; i < count; ++i) {
+      byte[] blob = new byte[sizeInBytes];
+      random.nextBytes(blob);
+      Attachments attachment = new Attachments();
+      attachment.setContentType("application/octet-stream");
+      attachment.setDisposition("attachment");
+      attachment.setName("attachment" + i + ".bin");
+      attachment.setBlob(blob);
+      attachments.add(attachment);
+    }
+    email.setAttachments(attachments);
+    return email;
+  }
+
+  /**
+   * Addresses in the forms seen in practice, i.e. bare, with a personal name and with a quoted personal name.
+   */
+  public static List<String> getAddresses(int count) {
+    List<String> addresses = new ArrayList<String>(count);
+    for (int i = 0; i < count; ++i) {
+      switch (i % 3) {
+        case 0:
+          addresses.add("user" + i + "@example.com");
+          break;
+        case 1:
+          addresses.add("User " + i + " <user" + i + "@example.org>");
+          break;
+        default:
+          addresses.add("\"Last, First " + i + "\" <first.last" + i + "@mail.example.net>");
+      }
+    }
+    return addresses;
+  }
+
+  private static Email create(Message.MsgType msgType, String body) {
+    Email email = new Email();
+    email.setFrom(FROM);
+    email.setTo(Arrays.<String>asList("imyousuf@gmail.com"));
+    email.setCc(Arrays.<String>asList("jersey@smartitengineering.com"));
+    email.setSubject("Benchmark Subject");
+    Message message = new Message();
+    message.setMsgType(msgType);
+    message.setMsgBody(body);
+    email.setMessage(message);
+    return email;
+  }
+
+  private static String getBody(int lines) {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < lines; ++i) {
+      body.append(BODY_LINE).append('\n');
+    }
+    return body.toString();
+  }
+
+  public enum EmailKind {
+
+    PLAIN, HTML, ATTACHMENTS
+  }
+}
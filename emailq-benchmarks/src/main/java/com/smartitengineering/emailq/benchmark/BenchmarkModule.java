@@ -0,0 +1,66 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.benchmark;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Names;
+import com.smartitengineering.cms.repo.dao.impl.ExtendedReadDao;
+import com.smartitengineering.dao.common.CommonDao;
+import com.smartitengineering.emailq.domain.Email;
+import java.util.Properties;
+import javax.mail.Session;
+
+/**
+ * Binds the service to a {@link NullDao null repository} and to a SMTP server on the local host. The cron stays off,
+ * the benchmarks drive sending themselves.
+ * @author imyousuf
+ */
+public class BenchmarkModule extends AbstractModule {
+
+  private final int smtpPort;
+  private final long writeLatencyMicros;
+
+  public BenchmarkModule(int smtpPort) {
+    this(smtpPort, 0);
+  }
+
+  /**
+   * @param writeLatencyMicros How long each write call to the repository takes
+   */
+  public BenchmarkModule(int smtpPort, long writeLatencyMicros) {
+    this.smtpPort = smtpPort;
+    this.writeLatencyMicros = writeLatencyMicros;
+  }
+
+  @Override
+  protected void configure() {
+    Properties properties = new Properties();
+    properties.setProperty("mail.smtp.host", "localhost");
+    properties.setProperty("mail.smtp.port", String.valueOf(smtpPort));
+    bind(Session.class).toInstance(Session.getInstance(properties));
+    bind(new TypeLiteral<CommonDao<Email, String>>() {
+    }).toInstance(NullDao.create(CommonDao.class, writeLatencyMicros));
+    bind(new TypeLiteral<ExtendedReadDao<Email, String>>() {
+    }).toInstance(NullDao.create(ExtendedReadDao.class));
+    bind(Boolean.class).annotatedWith(Names.named("mailSenderCronEnabled")).toInstance(Boolean.FALSE);
+    // Several benchmarks may run in one JVM, each with a service of its own
+    bind(Boolean.class).annotatedWith(Names.named("mailSenderJmxEnabled")).toInstance(Boolean.FALSE);
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.benchmark;
+
+import com.google.inject.Guice;
+import com.smartitengineering.emailq.benchmark.BenchmarkEmails.EmailKind;
+import com.smartitengineering.emailq.domain.Email;
+import com.smartitengineering.emailq.service.impl.SmtpConnection;
+import com.smartitengineering.emailq.service.impl.SmtpConnectionPool;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.mail.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.server.SMTPServer;
+
+/**
+ * Measures sending an email end to end, from building its message through a pooled connection to an in-process SMTP
+ * server that accepts and drops everything, so that the time is spent on our side of the wire and not in a handler.
+ * Every benchmark thread acts as one send worker; run with -t to vary the number of workers.
+ * @author imyousuf
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Threads(4)
+@Fork(1)
+public class DispatchBenchmark {
+
+  private static final int SMTP_PORT = 2526;
+  @Param({"PLAIN", "HTML", "ATTACHMENTS"})
+  private EmailKind kind;
+  @Param({"100"})
+  private int maxMessagesPerConnection;
+  private SMTPServer smtpServer;
+  private BenchmarkEmailService service;
+  private SmtpConnectionPool pool;
+  private Email email;
+
+  @Setup
+  public void setUp() {
+    smtpServer = new SMTPServer(new NullMessageHandlerFactory());
+    smtpServer.setPort(SMTP_PORT);
+    smtpServer.start();
+    service = Guice.createInjector(new BenchmarkModule(SMTP_PORT)).getInstance(BenchmarkEmailService.class);
+    Properties properties = new Properties();
+    properties.setProperty("mail.smtp.host", "localhost");
+    properties.setProperty("mail.smtp.port", String.valueOf(SMTP_PORT));
+    // More connections than benchmark threads so that borrowing never waits
+    pool = new SmtpConnectionPool(Session.getInstance(properties), 64, 60000, maxMessagesPerConnection);
+    email = BenchmarkEmails.create(kind);
+  }
+
+  @TearDown
+  public void tearDown() {
+    pool.close();
+    service.shutdown();
+    smtpServer.stop();
+  }
+
+  @Benchmark
+  public void dispatch() throws Exception {
+    SmtpConnection connection = pool.borrow();
+    try {
+      service.sendEmail(connection, email);
+    }
+    catch (Exception ex) {
+      pool.invalidate(connection);
+      throw ex;
+    }
+    pool.release(connection);
+  }
+
+  public static class NullMessageHandlerFactory implements MessageHandlerFactory {
+
+    public MessageHandler create(MessageContext context) {
+      return new NullMessageHandler();
+    }
+  }
+
+  /**
+   * Accepts every message, reading and dropping its data.
+   */
+  static class NullMessageHandler implements MessageHandler {
+
+    private final byte[] buffer = new byte[8192];
+
+    public void from(String from) throws RejectException {
+    }
+
+    public void recipient(String recipient) throws RejectException {
+    }
+
+    public void data(InputStream data) throws IOException {
+      while (data.read(buffer) >= 0) {
+      }
+    }
+
+    public void done() {
+    }
+  }
+}
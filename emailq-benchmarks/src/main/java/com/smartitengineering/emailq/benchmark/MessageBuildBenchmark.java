@@ -0,0 +1,77 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.benchmark;
+
+import com.google.inject.Guice;
+import com.smartitengineering.emailq.benchmark.BenchmarkEmails.EmailKind;
+import com.smartitengineering.emailq.domain.Email;
+import java.util.concurrent.TimeUnit;
+import javax.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures turning an email into the MIME message that is sent, both building the message and writing it out to the
+ * bytes that go over the wire.
+ * @author imyousuf
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MessageBuildBenchmark {
+
+  @Param({"PLAIN", "HTML", "ATTACHMENTS"})
+  private EmailKind kind;
+  private BenchmarkEmailService service;
+  private Email email;
+
+  @Setup
+  public void setUp() {
+    service = Guice.createInjector(new BenchmarkModule(0)).getInstance(BenchmarkEmailService.class);
+    email = BenchmarkEmails.create(kind);
+  }
+
+  @TearDown
+  public void tearDown() {
+    service.shutdown();
+  }
+
+  @Benchmark
+  public MimeMessage buildMessage() throws Exception {
+    return service.buildMessage(email);
+  }
+
+  @Benchmark
+  public byte[] render() throws Exception {
+    return service.render(email);
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A repository that keeps nothing, so that the benchmarks measure the service rather than the storage behind it.
+ * Writes are dropped, reads find nothing and counts are zero. Writes may be made to take a fixed time per call, however
+ * many entities they write, standing in for the round trip to a real repository.
+ * @author imyousuf
+ */
+public final class NullDao implements InvocationHandler {
+
+  private final long writeLatencyNanos;
+
+  private NullDao(long writeLatencyNanos) {
+    this.writeLatencyNanos = writeLatencyNanos;
+  }
+
+  public static <T> T create(Class<T> daoType) {
+    return create(daoType, 0);
+  }
+
+  /**
+   * @param writeLatencyMicros How long each save, update or delete call takes
+   */
+  public static <T> T create(Class<T> daoType, long writeLatencyMicros) {
+    return daoType.cast(Proxy.newProxyInstance(daoType.getClassLoader(), new Class[]{daoType}, new NullDao(
+        TimeUnit.MICROSECONDS.toNanos(writeLatencyMicros))));
+  }
+
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if (method.getDeclaringClass().equals(Object.class)) {
+      if ("equals".equals(method.getName())) {
+        return proxy == args[0];
+      }
+      if ("hashCode".equals(method.getName())) {
+        return System.identityHashCode(proxy);
+      }
+      return "NullDao";
+    }
+    if (writeLatencyNanos > 0 && isWrite(method)) {
+      LockSupport.parkNanos(writeLatencyNanos);
+    }
+    final Class<?> returnType = method.getReturnType();
+    if (List.class.isAssignableFrom(returnType)) {
+      return Collections.emptyList();
+    }
+    if (Set.class.isAssignableFrom(returnType)) {
+      return Collections.emptySet();
+    }
+    if (Map.class.isAssignableFrom(returnType)) {
+      return Collections.emptyMap();
+    }
+    if (long.class.equals(returnType) || Long.class.equals(returnType)) {
+      return Long.valueOf(0);
+    }
+    if (int.class.equals(returnType) || Integer.class.equals(returnType)) {
+      return Integer.valueOf(0);
+    }
+    if (boolean.class.equals(returnType) || Boolean.class.equals(returnType)) {
+      return Boolean.FALSE;
+    }
+    return null;
+  }
+
+  private static boolean isWrite(Method method) {
+    final String name = method.getName();
+    return "save".equals(name) || "update".equals(name) || "delete".equals(name);
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.benchmark;
+
+import com.google.inject.Guice;
+import com.smartitengineering.emailq.domain.Email;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.mail.Address;
+import javax.mail.Message.RecipientType;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures parsing the recipient addresses, once into the headers of a message and once into the envelope of a
+ * pre-rendered one.
+ * @author imyousuf
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RecipientParseBenchmark {
+
+  @Param({"1", "10", "100"})
+  private int recipientCount;
+  private BenchmarkEmailService service;
+  private Session session;
+  private List<String> addresses;
+  private Email email;
+
+  @Setup
+  public void setUp() {
+    service = Guice.createInjector(new BenchmarkModule(0)).getInstance(BenchmarkEmailService.class);
+    session = Session.getInstance(System.getProperties());
+    addresses = BenchmarkEmails.getAddresses(recipientCount);
+    email = BenchmarkEmails.createPlain();
+    email.setTo(addresses);
+  }
+
+  @TearDown
+  public void tearDown() {
+    service.shutdown();
+  }
+
+  /**
+   * A message of its own for every call, as adding to the same one would make its headers grow without bound.
+   */
+  @Benchmark
+  public MimeMessage addRecipients() throws Exception {
+    MimeMessage message = new MimeMessage(session);
+    service.addRecipients(message, RecipientType.TO, addresses);
+    return message;
+  }
+
+  @Benchmark
+  public Address[] getRecipients() throws Exception {
+    return service.getRecipients(email);
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.benchmark;
+
+import com.smartitengineering.emailq.service.impl.SenderExecutors;
+import com.smartitengineering.emailq.service.impl.SmtpConnection;
+import com.smartitengineering.emailq.service.impl.SmtpConnectionPool;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.subethamail.smtp.server.SMTPServer;
+
+/**
+ * Measures how many emails a number of send workers get through, each worker draining a shared backlog over a pooled
+ * connection of its own, on platform threads and on virtual threads. Where virtual threads are not available, or pin
+ * their carrier threads while sending, the executor falls back to platform threads and both report the same.
+ * @author imyousuf
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SenderThroughputBenchmark {
+
+  private static final int SMTP_PORT = 2527;
+  private static final int BACKLOG = 256;
+  @Param({"false", "true"})
+  private boolean virtualThreads;
+  @Param({"1", "4", "16", "64"})
+  private int poolSize;
+  private SMTPServer smtpServer;
+  private Session session;
+  private SmtpConnectionPool pool;
+  private ExecutorService executor;
+
+  @Setup
+  public void setUp() {
+    smtpServer = new SMTPServer(new DispatchBenchmark.NullMessageHandlerFactory());
+    smtpServer.setPort(SMTP_PORT);
+    smtpServer.start();
+    Properties properties = new Properties();
+    properties.setProperty("mail.smtp.host", "localhost");
+    properties.setProperty("mail.smtp.port", String.valueOf(SMTP_PORT));
+    session = Session.getInstance(properties);
+    pool = new SmtpConnectionPool(session, poolSize, 60000, 100);
+    executor = SenderExecutors.newSenderExecutor(virtualThreads, poolSize, Executors.defaultThreadFactory());
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdown();
+    pool.close();
+    smtpServer.stop();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BACKLOG)
+  public int drainBacklog() throws Exception {
+    final AtomicInteger remaining = new AtomicInteger(BACKLOG);
+    List<Future<Integer>> workers = new ArrayList<Future<Integer>>(poolSize);
+    for (int i = 0; i < poolSize; ++i) {
+      workers.add(executor.submit(new Callable<Integer>() {
+
+        public Integer call() throws Exception {
+          SmtpConnection connection = pool.borrow();
+          int sent = 0;
+          try {
+            while (remaining.getAndDecrement() > 0) {
+              connection.send(newMessage());
+              sent++;
+            }
+          }
+          finally {
+            pool.release(connection);
+          }
+          return sent;
+        }
+      }));
+    }
+    int sent = 0;
+    for (Future<Integer> worker : workers) {
+      sent += worker.get().intValue();
+    }
+    if (sent != BACKLOG) {
+      throw new IllegalStateException("Sent " + sent + " of " + BACKLOG + " emails");
+    }
+    return sent;
+  }
+
+  private MimeMessage newMessage() throws Exception {
+    MimeMessage message = new MimeMessage(session);
+    message.setFrom(new InternetAddress("imran@smartitengineering.com"));
+    message.setRecipient(Message.RecipientType.TO, new InternetAddress("imyousuf@gmail.com"));
+    message.setSubject("Throughput Benchmark");
+    message.setText("Throughput body");
+    return message;
+  }
+}
@@ -19,14 +19,21 @@
 package com.smartitengineering.emailq.binder.guice;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.TypeLiteral;
 import com.google.inject.name.Names;
+import com.smartitengineering.emailq.service.CounterStore;
 import com.smartitengineering.emailq.service.EmailService;
+import com.smartitengineering.emailq.service.LeaseStore;
 import com.smartitengineering.emailq.service.impl.EmailServiceImpl;
+import com.smartitengineering.emailq.service.impl.SmtpRelay;
 import com.smartitengineering.util.bean.PropertiesLocator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import javax.mail.Authenticator;
 import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.math.NumberUtils;
 
 /**
@@ -38,6 +45,62 @@ public class EmailModule extends AbstractModule {
   public static final String DOMAIN_PROPS = "domainProps";
   public static final String CRON_JOB_DELAY = "cronJobDelayInSeconds";
   public static final String CRON_ENABLED = "cronEnabled";
+  public static final String SMTP_MAX_MESSAGES_PER_CONNECTION = "smtpMaxMessagesPerConnection";
+  public static final String SMTP_POOL_SIZE = "smtpConnectionPoolSize";
+  public static final String SMTP_POOL_IDLE_TIMEOUT = "smtpConnectionPoolIdleTimeoutInSeconds";
+  public static final String PENDING_PAGE_SIZE = "pendingEmailPageSize";
+  public static final String PENDING_MEMORY_BUDGET = "pendingEmailMemoryBudgetInMB";
+  public static final String STATUS_FLUSH_SIZE = "statusFlushSize";
+  public static final String STATUS_FLUSH_INTERVAL = "statusFlushIntervalInMillis";
+  public static final String WAKEUP_ON_SAVE = "wakeupOnSaveEnabled";
+  public static final String WAKEUP_DEBOUNCE = "wakeupDebounceInMillis";
+  public static final String SENDER_NODE_ID = "senderNodeId";
+  public static final String CLAIM_LEASE = "claimLeaseInSeconds";
+  public static final String SHARED_LEASE_STORE_ENABLED = "sharedLeaseStoreEnabled";
+  public static final String MAX_SEND_ATTEMPTS = "maxSendAttempts";
+  public static final String RETRY_INITIAL_BACKOFF = "retryInitialBackoffInSeconds";
+  public static final String RETRY_MAX_BACKOFF = "retryMaxBackoffInSeconds";
+  public static final String HIGH_PRIORITY_WEIGHT = "highPriorityWeight";
+  public static final String NORMAL_PRIORITY_WEIGHT = "normalPriorityWeight";
+  public static final String BULK_PRIORITY_WEIGHT = "bulkPriorityWeight";
+  public static final String HIGH_PRIORITY_RESERVED_WORKERS = "highPriorityReservedWorkers";
+  public static final String SAVE_BATCH_SIZE = "saveBatchSize";
+  public static final String SAVE_PARALLELISM = "saveParallelism";
+  public static final String ASYNC_BUFFER_SIZE = "asyncSaveBufferSize";
+  public static final String ASYNC_BLOCK_ON_FULL = "asyncSaveBlockOnFull";
+  public static final String ASYNC_OFFER_TIMEOUT = "asyncSaveOfferTimeoutInMillis";
+  public static final String SHUTDOWN_TIMEOUT = "shutdownTimeoutInSeconds";
+  public static final String JOURNAL_DIRECTORY = "journalDirectory";
+  public static final String JOURNAL_SEGMENT_SIZE = "journalSegmentSizeInMB";
+  public static final String JOURNAL_REPLAY_INTERVAL = "journalReplayIntervalInMillis";
+  public static final String JOURNAL_MAX_REPLAY_DELAY = "journalMaxReplayDelayInMillis";
+  public static final String PRE_RENDER_ENABLED = "preRenderEnabled";
+  public static final String ATTACHMENT_DEDUP_ENABLED = "attachmentDedupEnabled";
+  public static final String ATTACHMENT_CACHE_SIZE = "attachmentCacheSizeInMB";
+  public static final String ATTACHMENT_CHUNK_SIZE = "attachmentChunkSizeInKB";
+  public static final String TEMPLATE_CACHE_SIZE = "templateCacheSize";
+  public static final String COALESCE_ENABLED = "coalesceEnabled";
+  public static final String COALESCE_MAX_RECIPIENTS = "coalesceMaxRecipients";
+  public static final String DOMAIN_THROTTLE_ENABLED = "domainThrottleEnabled";
+  public static final String DOMAIN_MAX_CONCURRENCY = "domainMaxConcurrency";
+  public static final String DOMAIN_SENDS_PER_MINUTE = "domainSendsPerMinute";
+  public static final String DOMAIN_SEND_BURST = "domainSendBurst";
+  public static final String DOMAIN_INITIAL_BACKOFF = "domainInitialBackoffInSeconds";
+  public static final String DOMAIN_MAX_BACKOFF = "domainMaxBackoffInSeconds";
+  public static final String SMTP_RELAYS = "smtpRelays";
+  public static final String SMTP_RELAY_PREFIX = "smtpRelay.";
+  public static final String SMTP_RELAY_WEIGHT = "weight";
+  public static final String RELAY_FAILURE_THRESHOLD = "relayFailureThresholdPercent";
+  public static final String RELAY_MIN_SAMPLES = "relayMinSamples";
+  public static final String RELAY_SLOW_THRESHOLD = "relaySlowThresholdInMillis";
+  public static final String RELAY_OPEN_PERIOD = "relayOpenInSeconds";
+  public static final String VIRTUAL_THREADS_ENABLED = "virtualThreadsEnabled";
+  public static final String MAX_CONCURRENT_SENDS = "maxConcurrentSends";
+  public static final String SCHEDULED_WAKEUP_LIMIT = "scheduledWakeupLimit";
+  public static final String JMX_ENABLED = "jmxEnabled";
+  public static final String QUEUE_DEPTH_CACHE_DURATION = "queueDepthCacheInSeconds";
+  public static final String SHARED_COUNTER_STORE_ENABLED = "sharedCounterStoreEnabled";
+  public static final String MAX_COUNTED_DOMAINS = "maxCountedDomains";
   public static final String SMTP_HOST = "mail.smtp.host";
   public static final String SMTP_PORT = "mail.smtp.port";
   public static final String SMTP_USER = "mail.smtp.user";
@@ -56,8 +119,25 @@ public class EmailModule extends AbstractModule {
   private final String workspaceIdNamespace;
   private final String workspaceIdName;
   private final String reportNamespace;
-  private final String smtpHost, smtpUser, smtpPassword;
-  private final int smtpPort, cronDelayInSeconds;
+  private final String smtpHost, smtpUser, smtpPassword, senderNodeId, journalDirectory;
+  private final int smtpPort, cronDelayInSeconds, maxMessagesPerConnection, poolSize, poolIdleTimeoutInSeconds;
+  private final int pendingPageSize, pendingMemoryBudgetInMB, statusFlushSize, statusFlushIntervalInMillis;
+  private final int wakeupDebounceInMillis, claimLeaseInSeconds;
+  private final int maxSendAttempts, retryInitialBackoffInSeconds, retryMaxBackoffInSeconds;
+  private final int highPriorityWeight, normalPriorityWeight, bulkPriorityWeight, highPriorityReservedWorkers;
+  private final int saveBatchSize, saveParallelism;
+  private final int asyncBufferSize, asyncOfferTimeoutInMillis, shutdownTimeoutInSeconds;
+  private final int journalSegmentSizeInMB, journalReplayIntervalInMillis, journalMaxReplayDelayInMillis;
+  private final int attachmentCacheSizeInMB;
+  private final int attachmentChunkSizeInKB, templateCacheSize, coalesceMaxRecipients;
+  private final int domainMaxConcurrency, domainSendsPerMinute, domainSendBurst;
+  private final int domainInitialBackoffInSeconds, domainMaxBackoffInSeconds;
+  private final boolean wakeupOnSave, asyncBlockOnFull, preRenderEnabled, attachmentDedupEnabled, coalesceEnabled;
+  private final int relayFailureThresholdPercent, relayMinSamples, relaySlowThresholdInMillis, relayOpenInSeconds;
+  private final int scheduledWakeupLimit, queueDepthCacheInSeconds, maxCountedDomains, maxConcurrentSends;
+  private final boolean domainThrottleEnabled, virtualThreadsEnabled, jmxEnabled, sharedLeaseStoreEnabled;
+  private final boolean sharedCounterStoreEnabled;
+  private final List<RelayConfig> relayConfigs = new ArrayList<RelayConfig>();
   private final boolean authEnabled, tlsEnabled, sslEnabled, cronEnabled;
 
   public EmailModule(Properties properties) {
@@ -74,6 +154,59 @@ public class EmailModule extends AbstractModule {
       sslEnabled = false;
       cronDelayInSeconds = 120;
       cronEnabled = true;
+      maxMessagesPerConnection = -1;
+      poolSize = -1;
+      poolIdleTimeoutInSeconds = -1;
+      pendingPageSize = -1;
+      pendingMemoryBudgetInMB = -1;
+      statusFlushSize = -1;
+      statusFlushIntervalInMillis = -1;
+      wakeupOnSave = true;
+      wakeupDebounceInMillis = -1;
+      senderNodeId = "";
+      claimLeaseInSeconds = -1;
+      sharedLeaseStoreEnabled = true;
+      maxSendAttempts = -1;
+      retryInitialBackoffInSeconds = -1;
+      retryMaxBackoffInSeconds = -1;
+      highPriorityWeight = -1;
+      normalPriorityWeight = -1;
+      bulkPriorityWeight = -1;
+      highPriorityReservedWorkers = -1;
+      saveBatchSize = -1;
+      saveParallelism = -1;
+      asyncBufferSize = -1;
+      asyncBlockOnFull = false;
+      asyncOfferTimeoutInMillis = -1;
+      shutdownTimeoutInSeconds = -1;
+      journalDirectory = "";
+      journalSegmentSizeInMB = -1;
+      journalReplayIntervalInMillis = -1;
+      journalMaxReplayDelayInMillis = -1;
+      preRenderEnabled = false;
+      attachmentDedupEnabled = false;
+      attachmentCacheSizeInMB = -1;
+      attachmentChunkSizeInKB = -1;
+      templateCacheSize = -1;
+      coalesceEnabled = false;
+      coalesceMaxRecipients = -1;
+      domainThrottleEnabled = false;
+      domainMaxConcurrency = -1;
+      domainSendsPerMinute = -1;
+      domainSendBurst = -1;
+      domainInitialBackoffInSeconds = -1;
+      domainMaxBackoffInSeconds = -1;
+      relayFailureThresholdPercent = -1;
+      relayMinSamples = -1;
+      relaySlowThresholdInMillis = -1;
+      relayOpenInSeconds = -1;
+      virtualThreadsEnabled = false;
+      maxConcurrentSends = -1;
+      scheduledWakeupLimit = -1;
+      jmxEnabled = true;
+      queueDepthCacheInSeconds = -1;
+      sharedCounterStoreEnabled = true;
+      maxCountedDomains = -1;
     }
     else {
       smtpHost = properties.getProperty(SMTP_HOST, "localhost");
@@ -85,6 +218,62 @@ public class EmailModule extends AbstractModule {
       sslEnabled = Boolean.parseBoolean(properties.getProperty(SMTP_SSL));
       cronEnabled = Boolean.parseBoolean(properties.getProperty(CRON_ENABLED));
       cronDelayInSeconds = NumberUtils.toInt(properties.getProperty(CRON_JOB_DELAY), -1);
+      maxMessagesPerConnection = NumberUtils.toInt(properties.getProperty(SMTP_MAX_MESSAGES_PER_CONNECTION), -1);
+      poolSize = NumberUtils.toInt(properties.getProperty(SMTP_POOL_SIZE), -1);
+      poolIdleTimeoutInSeconds = NumberUtils.toInt(properties.getProperty(SMTP_POOL_IDLE_TIMEOUT), -1);
+      pendingPageSize = NumberUtils.toInt(properties.getProperty(PENDING_PAGE_SIZE), -1);
+      pendingMemoryBudgetInMB = NumberUtils.toInt(properties.getProperty(PENDING_MEMORY_BUDGET), -1);
+      statusFlushSize = NumberUtils.toInt(properties.getProperty(STATUS_FLUSH_SIZE), -1);
+      statusFlushIntervalInMillis = NumberUtils.toInt(properties.getProperty(STATUS_FLUSH_INTERVAL), -1);
+      wakeupOnSave = Boolean.parseBoolean(properties.getProperty(WAKEUP_ON_SAVE, "true"));
+      wakeupDebounceInMillis = NumberUtils.toInt(properties.getProperty(WAKEUP_DEBOUNCE), -1);
+      senderNodeId = properties.getProperty(SENDER_NODE_ID, "");
+      claimLeaseInSeconds = NumberUtils.toInt(properties.getProperty(CLAIM_LEASE), -1);
+      sharedLeaseStoreEnabled = Boolean.parseBoolean(properties.getProperty(SHARED_LEASE_STORE_ENABLED, "true"));
+      maxSendAttempts = NumberUtils.toInt(properties.getProperty(MAX_SEND_ATTEMPTS), -1);
+      retryInitialBackoffInSeconds = NumberUtils.toInt(properties.getProperty(RETRY_INITIAL_BACKOFF), -1);
+      retryMaxBackoffInSeconds = NumberUtils.toInt(properties.getProperty(RETRY_MAX_BACKOFF), -1);
+      highPriorityWeight = NumberUtils.toInt(properties.getProperty(HIGH_PRIORITY_WEIGHT), -1);
+      normalPriorityWeight = NumberUtils.toInt(properties.getProperty(NORMAL_PRIORITY_WEIGHT), -1);
+      bulkPriorityWeight = NumberUtils.toInt(properties.getProperty(BULK_PRIORITY_WEIGHT), -1);
+      highPriorityReservedWorkers = NumberUtils.toInt(properties.getProperty(HIGH_PRIORITY_RESERVED_WORKERS), -1);
+      saveBatchSize = NumberUtils.toInt(properties.getProperty(SAVE_BATCH_SIZE), -1);
+      saveParallelism = NumberUtils.toInt(properties.getProperty(SAVE_PARALLELISM), -1);
+      asyncBufferSize = NumberUtils.toInt(properties.getProperty(ASYNC_BUFFER_SIZE), -1);
+      asyncBlockOnFull = Boolean.parseBoolean(properties.getProperty(ASYNC_BLOCK_ON_FULL));
+      asyncOfferTimeoutInMillis = NumberUtils.toInt(properties.getProperty(ASYNC_OFFER_TIMEOUT), -1);
+      shutdownTimeoutInSeconds = NumberUtils.toInt(properties.getProperty(SHUTDOWN_TIMEOUT), -1);
+      journalDirectory = properties.getProperty(JOURNAL_DIRECTORY, "");
+      journalSegmentSizeInMB = NumberUtils.toInt(properties.getProperty(JOURNAL_SEGMENT_SIZE), -1);
+      journalReplayIntervalInMillis = NumberUtils.toInt(properties.getProperty(JOURNAL_REPLAY_INTERVAL), -1);
+      journalMaxReplayDelayInMillis = NumberUtils.toInt(properties.getProperty(JOURNAL_MAX_REPLAY_DELAY), -1);
+      preRenderEnabled = Boolean.parseBoolean(properties.getProperty(PRE_RENDER_ENABLED));
+      attachmentDedupEnabled = Boolean.parseBoolean(properties.getProperty(ATTACHMENT_DEDUP_ENABLED));
+      attachmentCacheSizeInMB = NumberUtils.toInt(properties.getProperty(ATTACHMENT_CACHE_SIZE), -1);
+      attachmentChunkSizeInKB = NumberUtils.toInt(properties.getProperty(ATTACHMENT_CHUNK_SIZE), -1);
+      templateCacheSize = NumberUtils.toInt(properties.getProperty(TEMPLATE_CACHE_SIZE), -1);
+      coalesceEnabled = Boolean.parseBoolean(properties.getProperty(COALESCE_ENABLED));
+      coalesceMaxRecipients = NumberUtils.toInt(properties.getProperty(COALESCE_MAX_RECIPIENTS), -1);
+      domainThrottleEnabled = Boolean.parseBoolean(properties.getProperty(DOMAIN_THROTTLE_ENABLED));
+      domainMaxConcurrency = NumberUtils.toInt(properties.getProperty(DOMAIN_MAX_CONCURRENCY), -1);
+      domainSendsPerMinute = NumberUtils.toInt(properties.getProperty(DOMAIN_SENDS_PER_MINUTE), -1);
+      domainSendBurst = NumberUtils.toInt(properties.getProperty(DOMAIN_SEND_BURST), -1);
+      domainInitialBackoffInSeconds = NumberUtils.toInt(properties.getProperty(DOMAIN_INITIAL_BACKOFF), -1);
+      domainMaxBackoffInSeconds = NumberUtils.toInt(properties.getProperty(DOMAIN_MAX_BACKOFF), -1);
+      relayFailureThresholdPercent = NumberUtils.toInt(properties.getProperty(RELAY_FAILURE_THRESHOLD), -1);
+      relayMinSamples = NumberUtils.toInt(properties.getProperty(RELAY_MIN_SAMPLES), -1);
+      relaySlowThresholdInMillis = NumberUtils.toInt(properties.getProperty(RELAY_SLOW_THRESHOLD), -1);
+      relayOpenInSeconds = NumberUtils.toInt(properties.getProperty(RELAY_OPEN_PERIOD), -1);
+      virtualThreadsEnabled = Boolean.parseBoolean(properties.getProperty(VIRTUAL_THREADS_ENABLED));
+      maxConcurrentSends = NumberUtils.toInt(properties.getProperty(MAX_CONCURRENT_SENDS), -1);
+      scheduledWakeupLimit = NumberUtils.toInt(properties.getProperty(SCHEDULED_WAKEUP_LIMIT), -1);
+      jmxEnabled = Boolean.parseBoolean(properties.getProperty(JMX_ENABLED, "true"));
+      queueDepthCacheInSeconds = NumberUtils.toInt(properties.getProperty(QUEUE_DEPTH_CACHE_DURATION), -1);
+      sharedCounterStoreEnabled = Boolean.parseBoolean(properties.getProperty(SHARED_COUNTER_STORE_ENABLED, "true"));
+      maxCountedDomains = NumberUtils.toInt(properties.getProperty(MAX_COUNTED_DOMAINS), -1);
+      for (String relayName : StringUtils.split(properties.getProperty(SMTP_RELAYS, ""), ", ")) {
+        relayConfigs.add(new RelayConfig(relayName, properties));
+      }
       PropertiesLocator propertiesLocator = new PropertiesLocator();
       propertiesLocator.setSmartLocations(properties.getProperty(DOMAIN_PROPS));
       Properties mainProps = new Properties();
@@ -111,32 +300,263 @@ public class EmailModule extends AbstractModule {
           cronDelayInSeconds));
     }
     bind(Boolean.class).annotatedWith(Names.named("mailSenderCronEnabled")).toInstance(cronEnabled);
+    if (maxMessagesPerConnection > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderMaxMessagesPerConnection")).toInstance(new Integer(
+          maxMessagesPerConnection));
+    }
+    if (poolSize > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderPoolSize")).toInstance(new Integer(poolSize));
+    }
+    if (poolIdleTimeoutInSeconds > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderPoolIdleTimeoutInSeconds")).toInstance(new Integer(
+          poolIdleTimeoutInSeconds));
+    }
+    if (pendingPageSize > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderPageSize")).toInstance(new Integer(pendingPageSize));
+    }
+    if (pendingMemoryBudgetInMB > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderMemoryBudgetInMB")).toInstance(new Integer(
+          pendingMemoryBudgetInMB));
+    }
+    if (statusFlushSize > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderStatusFlushSize")).toInstance(new Integer(
+          statusFlushSize));
+    }
+    if (statusFlushIntervalInMillis > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderStatusFlushIntervalInMillis")).toInstance(new Integer(
+          statusFlushIntervalInMillis));
+    }
+    bind(Boolean.class).annotatedWith(Names.named("mailSenderWakeupOnSave")).toInstance(wakeupOnSave);
+    if (wakeupDebounceInMillis > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderWakeupDebounceInMillis")).toInstance(new Integer(
+          wakeupDebounceInMillis));
+    }
+    if (StringUtils.isNotBlank(senderNodeId)) {
+      bind(String.class).annotatedWith(Names.named("mailSenderNodeId")).toInstance(senderNodeId);
+    }
+    if (claimLeaseInSeconds > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderClaimLeaseInSeconds")).toInstance(new Integer(
+          claimLeaseInSeconds));
+    }
+    if (sharedLeaseStoreEnabled) {
+      bind(LeaseStore.class).to(HBaseLeaseStore.class);
+    }
+    if (maxSendAttempts > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderMaxSendAttempts")).toInstance(new Integer(
+          maxSendAttempts));
+    }
+    if (retryInitialBackoffInSeconds > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderRetryInitialBackoffInSeconds")).toInstance(new Integer(
+          retryInitialBackoffInSeconds));
+    }
+    if (retryMaxBackoffInSeconds > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderRetryMaxBackoffInSeconds")).toInstance(new Integer(
+          retryMaxBackoffInSeconds));
+    }
+    if (highPriorityWeight > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderHighPriorityWeight")).toInstance(new Integer(
+          highPriorityWeight));
+    }
+    if (normalPriorityWeight > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderNormalPriorityWeight")).toInstance(new Integer(
+          normalPriorityWeight));
+    }
+    if (bulkPriorityWeight > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderBulkPriorityWeight")).toInstance(new Integer(
+          bulkPriorityWeight));
+    }
+    // Zero is a valid number of reserved workers
+    if (highPriorityReservedWorkers >= 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderHighPriorityReservedWorkers")).toInstance(new Integer(
+          highPriorityReservedWorkers));
+    }
+    if (saveBatchSize > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderSaveBatchSize")).toInstance(new Integer(saveBatchSize));
+    }
+    if (saveParallelism > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderSaveParallelism")).toInstance(new Integer(
+          saveParallelism));
+    }
+    if (asyncBufferSize > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderAsyncBufferSize")).toInstance(new Integer(
+          asyncBufferSize));
+    }
+    bind(Boolean.class).annotatedWith(Names.named("mailSenderAsyncBlockOnFull")).toInstance(asyncBlockOnFull);
+    if (asyncOfferTimeoutInMillis > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderAsyncOfferTimeoutInMillis")).toInstance(new Integer(
+          asyncOfferTimeoutInMillis));
+    }
+    if (shutdownTimeoutInSeconds > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderShutdownTimeoutInSeconds")).toInstance(new Integer(
+          shutdownTimeoutInSeconds));
+    }
+    if (StringUtils.isNotBlank(journalDirectory)) {
+      bind(String.class).annotatedWith(Names.named("mailSenderJournalDirectory")).toInstance(journalDirectory);
+    }
+    if (journalSegmentSizeInMB > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderJournalSegmentSizeInMB")).toInstance(new Integer(
+          journalSegmentSizeInMB));
+    }
+    if (journalReplayIntervalInMillis > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderJournalReplayIntervalInMillis")).toInstance(
+          new Integer(journalReplayIntervalInMillis));
+    }
+    if (journalMaxReplayDelayInMillis > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderJournalMaxReplayDelayInMillis")).toInstance(
+          new Integer(journalMaxReplayDelayInMillis));
+    }
+    bind(Boolean.class).annotatedWith(Names.named("mailSenderPreRenderEnabled")).toInstance(preRenderEnabled);
+    bind(Boolean.class).annotatedWith(Names.named("mailSenderAttachmentDedupEnabled")).toInstance(
+        attachmentDedupEnabled);
+    if (attachmentCacheSizeInMB > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderAttachmentCacheSizeInMB")).toInstance(new Integer(
+          attachmentCacheSizeInMB));
+    }
+    if (attachmentChunkSizeInKB > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderAttachmentChunkSizeInKB")).toInstance(new Integer(
+          attachmentChunkSizeInKB));
+    }
+    if (templateCacheSize > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderTemplateCacheSize")).toInstance(new Integer(
+          templateCacheSize));
+    }
+    bind(Boolean.class).annotatedWith(Names.named("mailSenderCoalesceEnabled")).toInstance(coalesceEnabled);
+    if (coalesceMaxRecipients > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderCoalesceMaxRecipients")).toInstance(new Integer(
+          coalesceMaxRecipients));
+    }
+    bind(Boolean.class).annotatedWith(Names.named("mailSenderDomainThrottleEnabled")).toInstance(
+        domainThrottleEnabled);
+    // Zero means no limit
+    if (domainMaxConcurrency >= 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderDomainMaxConcurrency")).toInstance(new Integer(
+          domainMaxConcurrency));
+    }
+    if (domainSendsPerMinute >= 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderDomainSendsPerMinute")).toInstance(new Integer(
+          domainSendsPerMinute));
+    }
+    if (domainSendBurst > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderDomainSendBurst")).toInstance(new Integer(
+          domainSendBurst));
+    }
+    if (domainInitialBackoffInSeconds > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderDomainInitialBackoffInSeconds")).toInstance(new Integer(
+          domainInitialBackoffInSeconds));
+    }
+    if (domainMaxBackoffInSeconds > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderDomainMaxBackoffInSeconds")).toInstance(new Integer(
+          domainMaxBackoffInSeconds));
+    }
+    if (relayFailureThresholdPercent > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderRelayFailureThresholdPercent")).toInstance(new Integer(
+          relayFailureThresholdPercent));
+    }
+    if (relayMinSamples > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderRelayMinSamples")).toInstance(new Integer(
+          relayMinSamples));
+    }
+    // Zero means latency is not looked at
+    if (relaySlowThresholdInMillis >= 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderRelaySlowThresholdInMillis")).toInstance(new Integer(
+          relaySlowThresholdInMillis));
+    }
+    if (relayOpenInSeconds > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderRelayOpenInSeconds")).toInstance(new Integer(
+          relayOpenInSeconds));
+    }
+    bind(Boolean.class).annotatedWith(Names.named("mailSenderVirtualThreadsEnabled")).toInstance(
+        virtualThreadsEnabled);
+    if (maxConcurrentSends > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderMaxConcurrentSends")).toInstance(new Integer(
+          maxConcurrentSends));
+    }
+    if (scheduledWakeupLimit > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderScheduledWakeupLimit")).toInstance(new Integer(
+          scheduledWakeupLimit));
+    }
+    bind(Boolean.class).annotatedWith(Names.named("mailSenderJmxEnabled")).toInstance(jmxEnabled);
+    if (queueDepthCacheInSeconds > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderQueueDepthCacheInSeconds")).toInstance(new Integer(
+          queueDepthCacheInSeconds));
+    }
+    if (sharedCounterStoreEnabled) {
+      bind(CounterStore.class).to(HBaseCounterStore.class);
+    }
+    if (maxCountedDomains > 0) {
+      bind(Integer.class).annotatedWith(Names.named("mailSenderMaxCountedDomains")).toInstance(new Integer(
+          maxCountedDomains));
+    }
   }
 
   private void configureJavaMailSession() {
+    bind(Session.class).toInstance(createSession(smtpHost, smtpPort, smtpUser, smtpPassword, authEnabled, tlsEnabled,
+                                                 sslEnabled));
+    if (!relayConfigs.isEmpty()) {
+      List<SmtpRelay> relays = new ArrayList<SmtpRelay>(relayConfigs.size());
+      for (RelayConfig relay : relayConfigs) {
+        relays.add(new SmtpRelay(relay.name, createSession(relay.host, relay.port, relay.user, relay.password,
+                                                           relay.authEnabled, relay.tlsEnabled, relay.sslEnabled),
+                                 relay.weight));
+      }
+      bind(new TypeLiteral<List<SmtpRelay>>() {
+      }).annotatedWith(Names.named("mailSenderSmtpRelays")).toInstance(relays);
+    }
+  }
+
+  private static Session createSession(String host, int port, final String user, final String password,
+                                       boolean authEnabled, boolean tlsEnabled, boolean sslEnabled) {
     Properties properties = new Properties();
-    properties.setProperty(JAVAMAIL_SMTP_HOST, smtpHost);
-    properties.setProperty(JAVAMAIL_SMTP_PORT, String.valueOf(smtpPort));
+    properties.setProperty(JAVAMAIL_SMTP_HOST, host);
+    properties.setProperty(JAVAMAIL_SMTP_PORT, String.valueOf(port));
     if (sslEnabled) {
       properties.setProperty(JAVAMAIL_SMTP_SSL_SOCKET_FACTORY_CLASS, JAVAMAIL_SMTP_SSL_SOCKET_FACTORY_CLASS_VAL);
-      properties.setProperty(JAVAMAIL_SMTP_SSL_SOCKET_FACTORY_PORT, String.valueOf(smtpPort));
+      properties.setProperty(JAVAMAIL_SMTP_SSL_SOCKET_FACTORY_PORT, String.valueOf(port));
     }
     else if (tlsEnabled) {
       properties.setProperty(JAVAMAIL_SMTP_TLS, String.valueOf(tlsEnabled));
     }
     if (authEnabled) {
-      properties.setProperty(JAVAMAIL_SMTP_USER, smtpUser);
+      properties.setProperty(JAVAMAIL_SMTP_USER, user);
       properties.setProperty(JAVAMAIL_SMTP_AUTH, String.valueOf(authEnabled));
-      bind(Session.class).toInstance(Session.getInstance(properties, new Authenticator() {
+      return Session.getInstance(properties, new Authenticator() {
 
         @Override
         protected PasswordAuthentication getPasswordAuthentication() {
-          return new PasswordAuthentication(smtpUser, smtpPassword);
+          return new PasswordAuthentication(user, password);
         }
-      }));
+      });
     }
     else {
-      bind(Session.class).toInstance(Session.getInstance(properties));
+      return Session.getInstance(properties);
+    }
+  }
+
+  /**
+   * Settings of a relay, read from the properties prefixed with smtpRelay.&lt;name&gt;. which are named as those of
+   * the default relay; settings left out are taken from the default relay.
+   */
+  private static class RelayConfig {
+
+    private final String name, host, user, password;
+    private final int port, weight;
+    private final boolean authEnabled, tlsEnabled, sslEnabled;
+
+    RelayConfig(String name, Properties properties) {
+      final String prefix = SMTP_RELAY_PREFIX + name + ".";
+      this.name = name;
+      host = getProperty(properties, prefix, SMTP_HOST, "localhost");
+      user = getProperty(properties, prefix, SMTP_USER, "");
+      password = getProperty(properties, prefix, SMTP_PWD, "");
+      port = NumberUtils.toInt(getProperty(properties, prefix, SMTP_PORT, null), 2525);
+      authEnabled = Boolean.parseBoolean(getProperty(properties, prefix, SMTP_AUTH, null));
+      tlsEnabled = Boolean.parseBoolean(getProperty(properties, prefix, SMTP_TLS, null));
+      sslEnabled = Boolean.parseBoolean(getProperty(properties, prefix, SMTP_SSL, null));
+      weight = NumberUtils.toInt(properties.getProperty(prefix + SMTP_RELAY_WEIGHT), 1);
+    }
+
+    private static String getProperty(Properties properties, String prefix, String key, String defaultValue) {
+      return properties.getProperty(prefix + key, properties.getProperty(key, defaultValue));
     }
   }
 }
@@ -0,0 +1,140 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.binder.guice;
+
+import com.google.inject.Singleton;
+import com.smartitengineering.dao.impl.hbase.HBaseConfigurationFactory;
+import com.smartitengineering.emailq.service.CounterStore;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Email counters kept in an HBase table shared by all sender nodes, one column per counter in a single row. The deltas
+ * gathered since the last write are added with one HBase increment, which is atomic however many nodes add to the same
+ * counters, and all counters are read with a single get. The counters are seeded by a check and put that writes a
+ * marker column along with the counts, so only the first of the nodes starting together seeds them. {@link Initializer}
+ * creates the table.
+ * @author imyousuf
+ */
+@Singleton
+public class HBaseCounterStore implements CounterStore {
+
+  public static final String TABLE_NAME = "emailq_counter";
+  public static final String FAMILY_NAME = "c";
+  private static final byte[] FAMILY = Bytes.toBytes(FAMILY_NAME);
+  private static final byte[] ROW = Bytes.toBytes("counts");
+  /**
+   * Not a counter, its presence marks the counters as seeded.
+   */
+  private static final String SEEDED_NAME = "seeded";
+  private static final byte[] SEEDED = Bytes.toBytes(SEEDED_NAME);
+  private static final int POOL_SIZE = 4;
+  private final HTablePool pool;
+
+  public HBaseCounterStore() {
+    this(HBaseConfigurationFactory.getConfigurationInstance());
+  }
+
+  public HBaseCounterStore(Configuration config) {
+    this.pool = new HTablePool(config, POOL_SIZE);
+  }
+
+  public void add(Map<String, Long> deltas) {
+    if (deltas.isEmpty()) {
+      return;
+    }
+    Increment increment = new Increment(ROW);
+    for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+      increment.addColumn(FAMILY, Bytes.toBytes(delta.getKey()), delta.getValue().longValue());
+    }
+    HTableInterface table = pool.getTable(TABLE_NAME);
+    try {
+      table.increment(increment);
+    }
+    catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+    finally {
+      pool.putTable(table);
+    }
+  }
+
+  public boolean isSeeded() {
+    HTableInterface table = pool.getTable(TABLE_NAME);
+    try {
+      return table.get(new Get(ROW).addColumn(FAMILY, SEEDED)).getValue(FAMILY, SEEDED) != null;
+    }
+    catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+    finally {
+      pool.putTable(table);
+    }
+  }
+
+  public boolean seed(Map<String, Long> counts) {
+    Put put = new Put(ROW).add(FAMILY, SEEDED, Bytes.toBytes(System.currentTimeMillis()));
+    for (Map.Entry<String, Long> count : counts.entrySet()) {
+      // Increments read and write counters as 8 byte longs, so do the counts
+      put.add(FAMILY, Bytes.toBytes(count.getKey()), Bytes.toBytes(count.getValue().longValue()));
+    }
+    HTableInterface table = pool.getTable(TABLE_NAME);
+    try {
+      // A null value checks that there is no marker yet
+      return table.checkAndPut(ROW, FAMILY, SEEDED, null, put);
+    }
+    catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+    finally {
+      pool.putTable(table);
+    }
+  }
+
+  public Map<String, Long> getAll() {
+    HTableInterface table = pool.getTable(TABLE_NAME);
+    try {
+      final Map<byte[], byte[]> columns = table.get(new Get(ROW).addFamily(FAMILY)).getFamilyMap(FAMILY);
+      Map<String, Long> counts = new HashMap<String, Long>();
+      if (columns != null) {
+        for (Map.Entry<byte[], byte[]> column : columns.entrySet()) {
+          final String name = Bytes.toString(column.getKey());
+          if (!SEEDED_NAME.equals(name)) {
+            counts.put(name, Bytes.toLong(column.getValue()));
+          }
+        }
+      }
+      return counts;
+    }
+    catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+    finally {
+      pool.putTable(table);
+    }
+  }
+}
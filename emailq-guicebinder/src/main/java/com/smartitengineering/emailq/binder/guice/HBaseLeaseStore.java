@@ -0,0 +1,110 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.binder.guice;
+
+import com.google.inject.Singleton;
+import com.smartitengineering.dao.impl.hbase.HBaseConfigurationFactory;
+import com.smartitengineering.emailq.service.LeaseStore;
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Leases kept in an HBase table shared by all sender nodes, one row per email. A lease is taken with a check and put
+ * against the lease read, so that of the nodes racing for an email only the first to write gets it. Leases left to
+ * expire are removed by the time to live of the table, which {@link Initializer} creates.
+ * @author imyousuf
+ */
+@Singleton
+public class HBaseLeaseStore implements LeaseStore {
+
+  public static final String TABLE_NAME = "emailq_lease";
+  public static final String FAMILY_NAME = "l";
+  /**
+   * Long enough for any lease to have expired, the lease of an email is only compared against while it is in flight.
+   */
+  public static final int TIME_TO_LIVE_IN_SECONDS = 24 * 60 * 60;
+  private static final byte[] FAMILY = Bytes.toBytes(FAMILY_NAME);
+  private static final byte[] LEASE = Bytes.toBytes("lease");
+  private static final int POOL_SIZE = 16;
+  private final HTablePool pool;
+
+  public HBaseLeaseStore() {
+    this(HBaseConfigurationFactory.getConfigurationInstance());
+  }
+
+  public HBaseLeaseStore(Configuration config) {
+    this.pool = new HTablePool(config, POOL_SIZE);
+  }
+
+  public boolean acquire(String emailId, String owner, long expiresAt, long now) {
+    final byte[] row = Bytes.toBytes(emailId);
+    HTableInterface table = pool.getTable(TABLE_NAME);
+    try {
+      final byte[] current = table.get(new Get(row).addColumn(FAMILY, LEASE)).getValue(FAMILY, LEASE);
+      if (current != null && getExpiresAt(current) > now && !owner.equals(getOwner(current))) {
+        return false;
+      }
+      Put put = new Put(row).add(FAMILY, LEASE, toBytes(owner, expiresAt));
+      // Fails if another node changed the lease since it was read, a null value checks that there still is none
+      return table.checkAndPut(row, FAMILY, LEASE, current, put);
+    }
+    catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+    finally {
+      pool.putTable(table);
+    }
+  }
+
+  public void release(String emailId, String owner) {
+    final byte[] row = Bytes.toBytes(emailId);
+    HTableInterface table = pool.getTable(TABLE_NAME);
+    try {
+      final byte[] current = table.get(new Get(row).addColumn(FAMILY, LEASE)).getValue(FAMILY, LEASE);
+      if (current != null && owner.equals(getOwner(current))) {
+        // Fails, leaving the lease alone, if another node took it since it was read
+        table.checkAndDelete(row, FAMILY, LEASE, current, new Delete(row).deleteColumns(FAMILY, LEASE));
+      }
+    }
+    catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+    finally {
+      pool.putTable(table);
+    }
+  }
+
+  private static byte[] toBytes(String owner, long expiresAt) {
+    return Bytes.add(Bytes.toBytes(expiresAt), Bytes.toBytes(owner));
+  }
+
+  private static long getExpiresAt(byte[] lease) {
+    return Bytes.toLong(lease, 0);
+  }
+
+  private static String getOwner(byte[] lease) {
+    return Bytes.toString(lease, Bytes.SIZEOF_LONG, lease.length - Bytes.SIZEOF_LONG);
+  }
+}
@@ -29,11 +29,15 @@ import com.smartitengineering.dao.hbase.ddl.config.json.ConfigurationJsonParser;
 import com.smartitengineering.dao.impl.hbase.HBaseConfigurationFactory;
 import com.smartitengineering.util.bean.PropertiesLocator;
 import com.smartitengineering.util.bean.guice.GuiceUtil;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
 import java.util.Properties;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.MasterNotRunningException;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -63,6 +67,21 @@ public final class Initializer {
     catch (Exception ex) {
       LOGGER.error("Could not create table!", ex);
     }
+    //Create the table of the leases shared by sender nodes
+    try {
+      createTable(config, HBaseLeaseStore.TABLE_NAME, HBaseLeaseStore.FAMILY_NAME,
+                  HBaseLeaseStore.TIME_TO_LIVE_IN_SECONDS);
+    }
+    catch (Exception ex) {
+      LOGGER.error("Could not create lease table!", ex);
+    }
+    //Create the table of the email counters shared by sender nodes
+    try {
+      createTable(config, HBaseCounterStore.TABLE_NAME, HBaseCounterStore.FAMILY_NAME, 0);
+    }
+    catch (Exception ex) {
+      LOGGER.error("Could not create counter table!", ex);
+    }
     //Initialize CMS API
     com.smartitengineering.cms.binder.guice.Initializer.init();
     //Create workspace and content type
@@ -115,4 +134,23 @@ public final class Initializer {
     //DI Generator Engine
     GuiceUtil.getInstance(PROP_FILE).register();
   }
+
+  /**
+   * Create a table with a single column family unless it exists already.
+   * @param timeToLiveInSeconds How long cells are kept, 0 to keep them for good
+   */
+  private static void createTable(Configuration config, String tableName, String familyName,
+                                  int timeToLiveInSeconds) throws IOException {
+    HBaseAdmin admin = new HBaseAdmin(config);
+    if (admin.tableExists(tableName)) {
+      return;
+    }
+    HColumnDescriptor family = new HColumnDescriptor(familyName);
+    if (timeToLiveInSeconds > 0) {
+      family.setTimeToLive(timeToLiveInSeconds);
+    }
+    HTableDescriptor table = new HTableDescriptor(tableName);
+    table.addFamily(family);
+    admin.createTable(table);
+  }
 }
@@ -19,6 +19,7 @@
 package com.smartitengineering.emailq.app.sender;
 
 import com.smartitengineering.emailq.binder.guice.Initializer;
+import com.smartitengineering.emailq.service.Services;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,13 +50,14 @@ public class SenderApp {
 
   public static void main(String[] args) {
     final SenderApp app = new SenderApp();
-    app.init();
+    // Registered before init as init does not return
     Runtime.getRuntime().addShutdownHook(new Thread() {
 
       @Override
       public void run() {
-        //Add code to be executed during shutdown
+        Services.getInstance().getEmailService().shutdown();
       }
     });
+    app.init();
   }
 }
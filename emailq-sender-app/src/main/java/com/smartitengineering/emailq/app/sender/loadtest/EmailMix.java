@@ -0,0 +1,140 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.app.sender.loadtest;
+
+import com.smartitengineering.emailq.domain.Email;
+import com.smartitengineering.emailq.domain.Email.Attachments;
+import com.smartitengineering.emailq.domain.Email.Message;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+
+/**
+ * The kinds of emails the load is made of, each picked with a probability proportional to its weight. A mix is written
+ * as comma separated kinds, each as weight:bodySizeInKB:attachmentCount:recipientCount:priority, e.g.
+ * <code>70:4:0:1:NORMAL,20:32:2:5:BULK,10:2:0:1:HIGH</code>.
+ * @author imyousuf
+ */
+public class EmailMix {
+
+  public static final String SUBJECT_PREFIX = "Load test ";
+  private static final String BODY_LINE = "The quick brown fox jumps over the lazy dog. ";
+  private final List<Kind> kinds = new ArrayList<Kind>();
+  private final int totalWeight;
+  private final int attachmentSizeInKB;
+  private final int recipientDomains;
+  private final Random random = new Random();
+
+  public EmailMix(String mix, int attachmentSizeInKB, int recipientDomains) {
+    this.attachmentSizeInKB = attachmentSizeInKB;
+    this.recipientDomains = Math.max(1, recipientDomains);
+    int weight = 0;
+    for (String kindSpec : StringUtils.split(mix, ',')) {
+      String[] parts = StringUtils.split(kindSpec.trim(), ':');
+      if (parts.length != 5) {
+        throw new IllegalArgumentException("Invalid email kind " + kindSpec);
+      }
+      final int kindWeight = NumberUtils.toInt(parts[0], 1);
+      final int bodySizeInKB = NumberUtils.toInt(parts[1], 1);
+      final int attachmentCount = NumberUtils.toInt(parts[2], 0);
+      final int recipientCount = Math.max(1, NumberUtils.toInt(parts[3], 1));
+      Kind kind = new Kind(kindWeight, bodySizeInKB, attachmentCount, recipientCount, Email.Priority.valueOf(parts[4].
+          trim()));
+      weight += kind.weight;
+      kinds.add(kind);
+    }
+    if (kinds.isEmpty() || weight <= 0) {
+      throw new IllegalArgumentException("Invalid email mix " + mix);
+    }
+    totalWeight = weight;
+  }
+
+  /**
+   * Create the next email of the mix, carrying its sequence number in its subject so that its delivery can be matched
+   * to its enqueueing.
+   */
+  public synchronized Email next(long sequence) {
+    int pick = random.nextInt(totalWeight);
+    Kind kind = kinds.get(0);
+    for (Kind candidate : kinds) {
+      pick -= candidate.weight;
+      if (pick < 0) {
+        kind = candidate;
+        break;
+      }
+    }
+    Email email = new Email();
+    email.setFrom("loadtest@smartitengineering.com");
+    List<String> to = new ArrayList<String>(kind.recipientCount);
+    for (int i = 0; i < kind.recipientCount; ++i) {
+      to.add(new StringBuilder("user").append(random.nextInt(1000)).append("@domain").append(random.nextInt(
+          recipientDomains)).append(".example.com").toString());
+    }
+    email.setTo(to);
+    email.setSubject(SUBJECT_PREFIX + sequence);
+    email.setPriority(kind.priority);
+    Message message = new Message();
+    message.setMsgType(Message.MsgType.PLAIN);
+    message.setMsgBody(kind.body);
+    email.setMessage(message);
+    if (kind.attachmentCount > 0) {
+      List<Attachments> attachments = new ArrayList<Attachments>(kind.attachmentCount);
+      for (int i = 0; i < kind.attachmentCount; ++i) {
+        byte[] blob = new byte[attachmentSizeInKB * 1024];
+        random.nextBytes(blob);
+        Attachments attachment = new Attachments();
+        attachment.setContentType("application/octet-stream");
+        attachment.setDisposition("attachment");
+        attachment.setName("attachment" + i + ".bin");
+        attachment.setBlob(blob);
+        attachments.add(attachment);
+      }
+      email.setAttachments(attachments);
+    }
+    else {
+      email.setAttachments(Collections.<Attachments>emptyList());
+    }
+    return email;
+  }
+
+  private static class Kind {
+
+    private final int weight;
+    private final String body;
+    private final int attachmentCount;
+    private final int recipientCount;
+    private final Email.Priority priority;
+
+    Kind(int weight, int bodySizeInKB, int attachmentCount, int recipientCount, Email.Priority priority) {
+      this.weight = Math.max(0, weight);
+      this.attachmentCount = Math.max(0, attachmentCount);
+      this.recipientCount = recipientCount;
+      this.priority = priority;
+      // The body is the same for every email of a kind, only its size matters
+      StringBuilder bodyBuilder = new StringBuilder(bodySizeInKB * 1024 + BODY_LINE.length() + 1);
+      while (bodyBuilder.length() < bodySizeInKB * 1024) {
+        bodyBuilder.append(BODY_LINE).append('\n');
+      }
+      this.body = bodyBuilder.toString();
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.app.sender.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.subethamail.smtp.DropConnectionException;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.server.SMTPServer;
+
+/**
+ * A SMTP server standing in for the relay of the sender under load, accepting and dropping every message while
+ * injecting the faults a real relay shows under pressure:
+ * <ul>
+ * <li>Slow DATA, i.e. a share of the messages is only accepted after a delay</li>
+ * <li>Bursts of 4xx replies, i.e. for a few seconds every so often every recipient is deferred with a 451</li>
+ * <li>Dropped connections, i.e. a share of the messages is answered with a 421 and the connection closed</li>
+ * </ul>
+ * @author imyousuf
+ */
+public class FaultInjectingRelay {
+
+  private static final Pattern SUBJECT_MARKER = Pattern.compile("^Subject: " + Pattern.quote(EmailMix.SUBJECT_PREFIX) +
+      "(\\d+)");
+  private final SMTPServer smtpServer;
+  private final DeliveryListener listener;
+  private final int slowDataPercent;
+  private final long slowDataInMillis;
+  private final long tempFailureBurstIntervalInMillis;
+  private final long tempFailureBurstLengthInMillis;
+  private final int dropConnectionPercent;
+  private final long startedAt = System.currentTimeMillis();
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong slowed = new AtomicLong();
+  private final AtomicLong deferred = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  public FaultInjectingRelay(int port, DeliveryListener listener, int slowDataPercent, long slowDataInMillis,
+                             long tempFailureBurstIntervalInMillis, long tempFailureBurstLengthInMillis,
+                             int dropConnectionPercent) {
+    this.listener = listener;
+    this.slowDataPercent = slowDataPercent;
+    this.slowDataInMillis = slowDataInMillis;
+    this.tempFailureBurstIntervalInMillis = tempFailureBurstIntervalInMillis;
+    this.tempFailureBurstLengthInMillis = tempFailureBurstLengthInMillis;
+    this.dropConnectionPercent = dropConnectionPercent;
+    this.smtpServer = new SMTPServer(new MessageHandlerFactory() {
+
+      public MessageHandler create(MessageContext context) {
+        return new FaultInjectingHandler();
+      }
+    });
+    this.smtpServer.setPort(port);
+  }
+
+  public void start() {
+    smtpServer.start();
+  }
+
+  public void stop() {
+    smtpServer.stop();
+  }
+
+  public long getAccepted() {
+    return accepted.get();
+  }
+
+  public long getSlowed() {
+    return slowed.get();
+  }
+
+  public long getDeferred() {
+    return deferred.get();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  protected boolean isInTempFailureBurst() {
+    if (tempFailureBurstIntervalInMillis <= 0) {
+      return false;
+    }
+    return (System.currentTimeMillis() - startedAt) % tempFailureBurstIntervalInMillis >=
+        tempFailureBurstIntervalInMillis - tempFailureBurstLengthInMillis;
+  }
+
+  /**
+   * Told of every message the relay accepted.
+   */
+  public interface DeliveryListener {
+
+    /**
+     * @param sequence The sequence number of the load test email or -1 if the message is not one
+     */
+    void delivered(long sequence);
+  }
+
+  private class FaultInjectingHandler implements MessageHandler {
+
+    private final Random random = new Random();
+
+    public void from(String from) throws RejectException {
+    }
+
+    public void recipient(String recipient) throws RejectException {
+      if (isInTempFailureBurst()) {
+        deferred.incrementAndGet();
+        throw new RejectException(451, "4.3.2 Try again later");
+      }
+    }
+
+    public void data(InputStream data) throws RejectException, IOException {
+      if (dropConnectionPercent > 0 && random.nextInt(100) < dropConnectionPercent) {
+        dropped.incrementAndGet();
+        throw new DropConnectionException(421, "4.3.2 Closing connection");
+      }
+      if (slowDataPercent > 0 && random.nextInt(100) < slowDataPercent) {
+        slowed.incrementAndGet();
+        try {
+          Thread.sleep(slowDataInMillis);
+        }
+        catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      // Only the headers are looked at, the rest is read and dropped
+      BufferedReader reader = new BufferedReader(new InputStreamReader(data, "US-ASCII"));
+      long sequence = -1;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (sequence < 0) {
+          Matcher matcher = SUBJECT_MARKER.matcher(line);
+          if (matcher.find()) {
+            sequence = Long.parseLong(matcher.group(1));
+          }
+        }
+      }
+      accepted.incrementAndGet();
+      listener.delivered(sequence);
+    }
+
+    public void done() {
+    }
+  }
+}
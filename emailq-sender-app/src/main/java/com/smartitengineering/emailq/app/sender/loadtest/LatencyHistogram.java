@@ -0,0 +1,84 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.app.sender.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets of a millisecond up to a limit, so that percentiles are exact to the millisecond while
+ * recording stays a couple of atomic increments. Latencies beyond the limit are counted in the last bucket.
+ * @author imyousuf
+ */
+public class LatencyHistogram {
+
+  private final AtomicLongArray buckets;
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public LatencyHistogram(long limitInMillis) {
+    buckets = new AtomicLongArray((int) limitInMillis + 1);
+  }
+
+  public void record(long latencyInMillis) {
+    final long latency = Math.max(0, latencyInMillis);
+    buckets.incrementAndGet((int) Math.min(latency, buckets.length() - 1));
+    count.incrementAndGet();
+    sum.addAndGet(latency);
+    long currentMax;
+    while (latency > (currentMax = max.get()) && !max.compareAndSet(currentMax, latency)) {
+      // Raced with another record, read the max again
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public double getMean() {
+    final long currentCount = count.get();
+    return currentCount == 0 ? 0 : (double) sum.get() / currentCount;
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public long getPercentile(double percentile) {
+    final long target = (long) Math.ceil(count.get() * percentile);
+    long seen = 0;
+    for (int i = 0; i < buckets.length(); ++i) {
+      seen += buckets.get(i);
+      if (seen >= target && seen > 0) {
+        return i == buckets.length() - 1 ? max.get() : i;
+      }
+    }
+    return max.get();
+  }
+
+  public void reset() {
+    for (int i = 0; i < buckets.length(); ++i) {
+      buckets.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+}
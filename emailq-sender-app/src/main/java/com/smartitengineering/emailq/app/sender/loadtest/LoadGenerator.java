@@ -0,0 +1,175 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.app.sender.loadtest;
+
+import com.smartitengineering.emailq.domain.Email;
+import com.smartitengineering.emailq.service.EmailService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Enqueues emails of a mix through the email service at a target rate and measures how long each takes from being
+ * enqueued to being accepted by the relay. Enqueueing is paced on the time elapsed since the start, so a slow save is
+ * caught up on rather than lowering the rate; if the saves fall too far behind the emails due are not enqueued at all
+ * and counted as shed instead, so that the generator does not pile up memory of its own.
+ * @author imyousuf
+ */
+public class LoadGenerator implements FaultInjectingRelay.DeliveryListener {
+
+  private static final long TICK_MILLIS = 10;
+  private static final long LATENCY_LIMIT_MILLIS = 10 * 60 * 1000;
+  private final EmailService emailService;
+  private final EmailMix mix;
+  private final double ratePerSecond;
+  private final int maxBacklog;
+  private final ExecutorService enqueueExecutor;
+  private final ScheduledExecutorService pacer;
+  private final ConcurrentMap<Long, Long> enqueuedAt = new ConcurrentHashMap<Long, Long>();
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicLong enqueued = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong shed = new AtomicLong();
+  private final LatencyHistogram intervalLatency = new LatencyHistogram(LATENCY_LIMIT_MILLIS);
+  private final LatencyHistogram totalLatency = new LatencyHistogram(LATENCY_LIMIT_MILLIS);
+  private final transient Logger logger = LoggerFactory.getLogger(getClass());
+  private long startedAt;
+  private long issued;
+
+  public LoadGenerator(EmailService emailService, EmailMix mix, double ratePerSecond, int enqueueThreads) {
+    this.emailService = emailService;
+    this.mix = mix;
+    this.ratePerSecond = ratePerSecond;
+    this.maxBacklog = Math.max(1, enqueueThreads) * 100;
+    this.enqueueExecutor = Executors.newFixedThreadPool(Math.max(1, enqueueThreads));
+    this.pacer = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  public void start() {
+    startedAt = System.nanoTime();
+    pacer.scheduleAtFixedRate(new Runnable() {
+
+      public void run() {
+        issueDue();
+      }
+    }, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop enqueueing, waiting for the saves already issued to finish.
+   */
+  public void stop() throws InterruptedException {
+    pacer.shutdownNow();
+    pacer.awaitTermination(TICK_MILLIS * 10, TimeUnit.MILLISECONDS);
+    enqueueExecutor.shutdown();
+    enqueueExecutor.awaitTermination(1, TimeUnit.MINUTES);
+  }
+
+  public void delivered(long deliveredSequence) {
+    Long enqueueTime = deliveredSequence < 0 ? null : enqueuedAt.remove(deliveredSequence);
+    if (enqueueTime == null) {
+      // Not a load test email, or one delivered before
+      return;
+    }
+    final long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - enqueueTime.longValue());
+    intervalLatency.record(latency);
+    totalLatency.record(latency);
+    delivered.incrementAndGet();
+  }
+
+  public long getEnqueued() {
+    return enqueued.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  public long getDelivered() {
+    return delivered.get();
+  }
+
+  public long getShed() {
+    return shed.get();
+  }
+
+  /**
+   * The emails enqueued and not delivered yet.
+   */
+  public int getOutstanding() {
+    return enqueuedAt.size();
+  }
+
+  /**
+   * Latencies since the last {@link LatencyHistogram#reset() reset}, which is left to the reporter.
+   */
+  public LatencyHistogram getIntervalLatency() {
+    return intervalLatency;
+  }
+
+  public LatencyHistogram getTotalLatency() {
+    return totalLatency;
+  }
+
+  private void issueDue() {
+    final long due = (long) (ratePerSecond * (System.nanoTime() - startedAt) / TimeUnit.SECONDS.toNanos(1));
+    while (issued < due) {
+      if (issued - enqueued.get() - rejected.get() - shed.get() >= maxBacklog) {
+        shed.addAndGet(due - issued);
+        issued = due;
+        return;
+      }
+      issued++;
+      enqueueExecutor.execute(new Runnable() {
+
+        public void run() {
+          enqueue();
+        }
+      });
+    }
+  }
+
+  private void enqueue() {
+    final long emailSequence = sequence.incrementAndGet();
+    Email email = mix.next(emailSequence);
+    enqueuedAt.put(emailSequence, System.nanoTime());
+    boolean saved;
+    try {
+      saved = emailService.saveEmail(email);
+    }
+    catch (RuntimeException ex) {
+      logger.warn("Could not enqueue email", ex);
+      saved = false;
+    }
+    if (saved) {
+      enqueued.incrementAndGet();
+    }
+    else {
+      enqueuedAt.remove(emailSequence);
+      rejected.incrementAndGet();
+    }
+  }
+}
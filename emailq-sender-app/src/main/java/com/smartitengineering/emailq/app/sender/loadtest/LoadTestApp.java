@@ -0,0 +1,218 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.app.sender.loadtest;
+
+import com.smartitengineering.emailq.binder.guice.Initializer;
+import com.smartitengineering.emailq.service.EmailService;
+import com.smartitengineering.emailq.service.Services;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Puts a sender node under load to find out how much it sustains. Emails of a configurable mix are enqueued through
+ * the email service at a target rate and sent to an embedded relay injecting faults; every report interval the
+ * throughput, the latency from enqueueing to delivery, and heap and GC stats are logged.
+ * <p>
+ * The settings are read from the properties file given as the first argument, or from loadtest.properties on the
+ * classpath, and can be overridden by system properties; see loadtest.properties.template for what they are. The
+ * sender has to be configured in emailq-modules.properties to send to the relay, i.e. to localhost on the relay port.
+ * With a duration of 0 or less it runs in soak mode, i.e. until it is stopped.
+ * </p>
+ * @author imyousuf
+ */
+public class LoadTestApp {
+
+  public static final String CONFIG_RESOURCE = "loadtest.properties";
+  public static final String RATE = "load.ratePerSecond";
+  public static final String DURATION = "load.durationInSeconds";
+  public static final String REPORT_INTERVAL = "load.reportIntervalInSeconds";
+  public static final String DRAIN_TIMEOUT = "load.drainTimeoutInSeconds";
+  public static final String ENQUEUE_THREADS = "load.enqueueThreads";
+  public static final String MIX = "load.mix";
+  public static final String ATTACHMENT_SIZE = "load.attachmentSizeInKB";
+  public static final String RECIPIENT_DOMAINS = "load.recipientDomains";
+  public static final String RELAY_PORT = "relay.port";
+  public static final String RELAY_SLOW_DATA_PERCENT = "relay.slowDataPercent";
+  public static final String RELAY_SLOW_DATA = "relay.slowDataInMillis";
+  public static final String RELAY_TEMP_FAILURE_BURST_INTERVAL = "relay.tempFailureBurstIntervalInSeconds";
+  public static final String RELAY_TEMP_FAILURE_BURST_LENGTH = "relay.tempFailureBurstLengthInSeconds";
+  public static final String RELAY_DROP_CONNECTION_PERCENT = "relay.dropConnectionPercent";
+  private static final String DEFAULT_MIX = "70:4:0:1:NORMAL,20:32:2:5:BULK,10:2:0:1:HIGH";
+  protected final transient Logger logger = LoggerFactory.getLogger(getClass());
+  private final Properties properties;
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  private final CountDownLatch finished = new CountDownLatch(1);
+  private long lastGcCount;
+  private long lastGcTime;
+
+  public LoadTestApp(Properties properties) {
+    this.properties = properties;
+  }
+
+  public void run() throws InterruptedException {
+    final int duration = getInt(DURATION, 300);
+    final int reportInterval = Math.max(1, getInt(REPORT_INTERVAL, 10));
+    Initializer.init();
+    final EmailService emailService = Services.getInstance().getEmailService();
+    EmailMix mix = new EmailMix(properties.getProperty(MIX, DEFAULT_MIX), getInt(ATTACHMENT_SIZE, 32), getInt(
+        RECIPIENT_DOMAINS, 10));
+    final double rate = NumberUtils.toDouble(properties.getProperty(RATE), 50);
+    LoadGenerator generator = new LoadGenerator(emailService, mix, rate, getInt(ENQUEUE_THREADS, 4));
+    FaultInjectingRelay relay = new FaultInjectingRelay(getInt(RELAY_PORT, 2525), generator, getInt(
+        RELAY_SLOW_DATA_PERCENT, 0), getInt(RELAY_SLOW_DATA, 2000), getInt(RELAY_TEMP_FAILURE_BURST_INTERVAL, 0) *
+        1000L, getInt(RELAY_TEMP_FAILURE_BURST_LENGTH, 5) * 1000L, getInt(RELAY_DROP_CONNECTION_PERCENT, 0));
+    relay.start();
+    try {
+      logger.info(duration > 0 ? "Running load test at " + rate + " emails/s for " + duration + " seconds"
+          : "Running soak test at " + rate + " emails/s till stopped");
+      final long startedAt = System.nanoTime();
+      final long endAt = startedAt + TimeUnit.SECONDS.toNanos(duration);
+      generator.start();
+      resetGcStats();
+      while (duration <= 0 || System.nanoTime() < endAt) {
+        if (stopped.await(reportInterval, TimeUnit.SECONDS)) {
+          break;
+        }
+        report(generator, relay, reportInterval);
+      }
+      generator.stop();
+      // Give the sender time to deliver what is queued, retries included
+      final long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(getInt(DRAIN_TIMEOUT, 60));
+      while (generator.getOutstanding() > 0 && System.nanoTime() < drainUntil) {
+        Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+      }
+      reportTotals(generator, relay, System.nanoTime() - startedAt);
+    }
+    finally {
+      emailService.shutdown();
+      relay.stop();
+      finished.countDown();
+    }
+  }
+
+  /**
+   * End the run at the next report, as a shutdown hook does for a soak test.
+   */
+  public void stop() {
+    stopped.countDown();
+  }
+
+  /**
+   * Wait for the run to finish, after its totals have been reported.
+   */
+  public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+    return finished.await(timeout, unit);
+  }
+
+  protected void report(LoadGenerator generator, FaultInjectingRelay relay, int reportInterval) {
+    LatencyHistogram latency = generator.getIntervalLatency();
+    final long delivered = latency.getCount();
+    logger.info(String.format("Delivered %.1f/s, latency ms p50 %d p99 %d p999 %d max %d, enqueued %d, outstanding %d, "
+        + "rejected %d, shed %d, relay deferred %d dropped %d slowed %d, %s", (double) delivered / reportInterval,
+                              latency.getPercentile(0.5), latency.getPercentile(0.99), latency.getPercentile(0.999),
+                              latency.getMax(), generator.getEnqueued(), generator.getOutstanding(),
+                              generator.getRejected(), generator.getShed(), relay.getDeferred(), relay.getDropped(),
+                              relay.getSlowed(), getJvmStats()));
+    latency.reset();
+  }
+
+  protected void reportTotals(LoadGenerator generator, FaultInjectingRelay relay, long elapsedInNanos) {
+    LatencyHistogram latency = generator.getTotalLatency();
+    final double seconds = (double) elapsedInNanos / TimeUnit.SECONDS.toNanos(1);
+    logger.info(String.format("Load test done in %.0f s: enqueued %d (%.1f/s), delivered %d (%.1f/s), latency ms mean "
+        + "%.1f p50 %d p99 %d p999 %d max %d, undelivered %d, rejected %d, shed %d, relay deferred %d dropped %d "
+        + "slowed %d", seconds, generator.getEnqueued(), generator.getEnqueued() / seconds, generator.getDelivered(),
+                              generator.getDelivered() / seconds, latency.getMean(), latency.getPercentile(0.5),
+                              latency.getPercentile(0.99), latency.getPercentile(0.999), latency.getMax(),
+                              generator.getOutstanding(), generator.getRejected(), generator.getShed(),
+                              relay.getDeferred(), relay.getDropped(), relay.getSlowed()));
+  }
+
+  /**
+   * Heap usage now, and the collections and time spent collecting since the last call.
+   */
+  protected String getJvmStats() {
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    long gcCount = 0;
+    long gcTime = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      gcCount += Math.max(0, collector.getCollectionCount());
+      gcTime += Math.max(0, collector.getCollectionTime());
+    }
+    final String stats = String.format("heap used %d MB committed %d MB max %d MB, GC %d collections %d ms", heap.
+        getUsed() >> 20, heap.getCommitted() >> 20, heap.getMax() >> 20, gcCount - lastGcCount, gcTime - lastGcTime);
+    lastGcCount = gcCount;
+    lastGcTime = gcTime;
+    return stats;
+  }
+
+  private void resetGcStats() {
+    getJvmStats();
+  }
+
+  private int getInt(String key, int defaultValue) {
+    return NumberUtils.toInt(properties.getProperty(key), defaultValue);
+  }
+
+  public static Properties loadProperties(String[] args) throws IOException {
+    Properties properties = new Properties();
+    InputStream stream = args.length > 0 ? new FileInputStream(args[0]) : LoadTestApp.class.getClassLoader().
+        getResourceAsStream(CONFIG_RESOURCE);
+    if (stream != null) {
+      try {
+        properties.load(stream);
+      }
+      finally {
+        stream.close();
+      }
+    }
+    properties.putAll(System.getProperties());
+    return properties;
+  }
+
+  public static void main(String[] args) throws Exception {
+    final LoadTestApp app = new LoadTestApp(loadProperties(args));
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+
+      @Override
+      public void run() {
+        app.stop();
+        try {
+          // Let the run report its totals before the JVM goes away
+          app.awaitFinished(2, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    app.run();
+    System.exit(0);
+  }
+}
@@ -1,9 +1,18 @@
 package com.smartitengineering.emailq.app.sender;
 
+import com.smartitengineering.dao.common.queryparam.MatchMode;
+import com.smartitengineering.dao.common.queryparam.QueryParameter;
+import com.smartitengineering.dao.common.queryparam.QueryParameterFactory;
 import com.smartitengineering.emailq.domain.Email;
 import com.smartitengineering.emailq.domain.Email.Attachments;
 import com.smartitengineering.emailq.domain.Email.Message;
+import com.smartitengineering.emailq.domain.EmailTemplate;
+import com.smartitengineering.emailq.service.EmailPage;
+import com.smartitengineering.emailq.service.EmailService;
+import com.smartitengineering.emailq.service.EmailSummary;
+import com.smartitengineering.emailq.service.SaveResult;
 import com.smartitengineering.emailq.service.Services;
+import com.smartitengineering.emailq.service.impl.SmtpConnection;
 import com.smartitengineering.util.rest.client.jersey.cache.CacheableClient;
 import com.sun.jersey.api.client.Client;
 import java.io.BufferedReader;
@@ -11,8 +20,31 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.mail.Session;
 import javax.mail.internet.ContentDisposition;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.mail.internet.ParseException;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
@@ -32,6 +64,26 @@ public class AppNonSSLTest {
 
   protected final transient Logger logger = LoggerFactory.getLogger(getClass());
   private static SMTPServer smtpServer;
+  private static final String CONNECTION_REUSE_SUBJECT = "Connection Reuse Test";
+  private static final Queue<SocketAddress> connectionReuseRemotes = new ConcurrentLinkedQueue<SocketAddress>();
+  private static final String SINGLE_BATCH_SUBJECT = "Single Batch Test";
+  private static final Queue<SocketAddress> singleBatchRemotes = new ConcurrentLinkedQueue<SocketAddress>();
+  private static final String LATENCY_SUBJECT = "Latency Test";
+  private static final Pattern LATENCY_MARKER = Pattern.compile("Latency marker (\\d+)");
+  private static final Map<String, Long> latencyReceivedAt = new ConcurrentHashMap<String, Long>();
+  private static final String PRIORITY_SUBJECT = "Priority Test";
+  private static final Pattern PRIORITY_MARKER = Pattern.compile("Priority marker (\\w+)");
+  private static final Queue<String> priorityArrivals = new ConcurrentLinkedQueue<String>();
+  private static final String MERGE_SUBJECT = "Merge Test";
+  private static final Queue<String> mergedMails = new ConcurrentLinkedQueue<String>();
+  private static final String COALESCE_SUBJECT = "Coalesce Test";
+  private static final Queue<Integer> coalescedRecipientCounts = new ConcurrentLinkedQueue<Integer>();
+  private static final String SEND_AFTER_SUBJECT = "Send After Test";
+  private static final Queue<Long> sendAfterReceivedAt = new ConcurrentLinkedQueue<Long>();
+  private static final String PAGE_SUBJECT = "Page Test";
+  private static final String BCC_SUBJECT = "Bcc Test";
+  private static final Queue<String> bccMails = new ConcurrentLinkedQueue<String>();
+  private static final Queue<List<String>> bccRecipients = new ConcurrentLinkedQueue<List<String>>();
 
   @BeforeClass
   public static void start() {
@@ -55,6 +107,7 @@ public class AppNonSSLTest {
   static class Handler implements MessageHandler {
 
     MessageContext ctx;
+    final List<String> recipients = new ArrayList<String>();
     protected final transient Logger logger = LoggerFactory.getLogger(getClass());
 
     public Handler(MessageContext ctx) {
@@ -67,13 +120,47 @@ public class AppNonSSLTest {
 
     public void recipient(String recipient) throws RejectException {
       logger.info("RECIPIENT:" + recipient);
+      recipients.add(recipient);
     }
 
     public void data(InputStream data) throws IOException {
+      final String mailData = this.convertStreamToString(data);
+      if (mailData.contains("Subject: " + CONNECTION_REUSE_SUBJECT)) {
+        // Every SMTP connection comes from a distinct client port
+        connectionReuseRemotes.add(ctx.getRemoteAddress());
+      }
+      if (mailData.contains("Subject: " + SINGLE_BATCH_SUBJECT)) {
+        singleBatchRemotes.add(ctx.getRemoteAddress());
+      }
+      if (mailData.contains("Subject: " + LATENCY_SUBJECT)) {
+        Matcher matcher = LATENCY_MARKER.matcher(mailData);
+        if (matcher.find()) {
+          latencyReceivedAt.put(matcher.group(1), System.nanoTime());
+        }
+      }
+      if (mailData.contains("Subject: " + COALESCE_SUBJECT)) {
+        coalescedRecipientCounts.add(recipients.size());
+      }
+      if (mailData.contains("Subject: " + SEND_AFTER_SUBJECT)) {
+        sendAfterReceivedAt.add(System.currentTimeMillis());
+      }
+      if (mailData.contains("Subject: " + BCC_SUBJECT)) {
+        bccRecipients.add(new ArrayList<String>(recipients));
+        bccMails.add(mailData);
+      }
+      if (mailData.contains("Subject: " + MERGE_SUBJECT)) {
+        mergedMails.add(mailData);
+      }
+      if (mailData.contains("Subject: " + PRIORITY_SUBJECT)) {
+        Matcher matcher = PRIORITY_MARKER.matcher(mailData);
+        if (matcher.find()) {
+          priorityArrivals.add(matcher.group(1));
+        }
+      }
       StringBuilder dataStr = new StringBuilder();
       dataStr.append("MAIL DATA\n");
       dataStr.append("= = = = = = = = = = = = = = = = = = = = = = = = = = = = = = =\n");
-      dataStr.append(this.convertStreamToString(data));
+      dataStr.append(mailData);
       dataStr.append("\n= = = = = = = = = = = = = = = = = = = = = = = = = = = = = = =\n");
       logger.info(dataStr.toString());
     }
@@ -152,4 +239,436 @@ public class AppNonSSLTest {
     Assert.assertFalse(email.getAttachments().isEmpty());
     Thread.sleep(3000);
   }
+
+  /**
+   * Emails are rendered when saved, which must neither disclose their BCC recipients in the headers nor leave them out
+   * of the envelope.
+   */
+  @Test
+  public void testBccNotDisclosed() throws InterruptedException {
+    Email email = new Email();
+    email.setFrom("imran@smartitengineering.com");
+    email.setTo(Arrays.<String>asList("imyousuf@gmail.com"));
+    email.setBcc(Arrays.<String>asList("imran.yousuf@smartitengineering.com"));
+    email.setSubject(BCC_SUBJECT);
+    Message message = new Message();
+    message.setMsgType(Message.MsgType.PLAIN);
+    message.setMsgBody("Bcc body");
+    email.setMessage(message);
+    Assert.assertTrue(Services.getInstance().getEmailService().saveEmail(email));
+    for (int i = 0; i < 40 && bccMails.isEmpty(); ++i) {
+      Thread.sleep(250);
+    }
+    Assert.assertFalse(bccMails.isEmpty());
+    final String mailData = bccMails.peek();
+    Assert.assertFalse(mailData.contains("Bcc:"));
+    Assert.assertFalse(mailData.contains("imran.yousuf@smartitengineering.com"));
+    Assert.assertTrue(bccRecipients.peek().contains("imran.yousuf@smartitengineering.com"));
+    Assert.assertTrue(bccRecipients.peek().contains("imyousuf@gmail.com"));
+    Assert.assertTrue(mailData.contains("Date:"));
+  }
+
+  @Test
+  public void testConnectionReusedWithinBatch() throws InterruptedException {
+    final int mailCount = 10;
+    for (int i = 0; i < mailCount; ++i) {
+      Email email = new Email();
+      email.setFrom("imran@smartitengineering.com");
+      email.setTo(Arrays.<String>asList("imyousuf@gmail.com"));
+      email.setSubject(CONNECTION_REUSE_SUBJECT);
+      Message message = new Message();
+      message.setMsgType(Message.MsgType.PLAIN);
+      message.setMsgBody("Connection reuse body " + i);
+      email.setMessage(message);
+      Assert.assertTrue(Services.getInstance().getEmailService().saveEmail(email));
+    }
+    for (int i = 0; i < 30 && connectionReuseRemotes.size() < mailCount; ++i) {
+      Thread.sleep(500);
+    }
+    Assert.assertEquals(mailCount, connectionReuseRemotes.size());
+    int connections = new HashSet<SocketAddress>(connectionReuseRemotes).size();
+    logger.info("Connections used for " + mailCount + " mails " + connections);
+    // Pooled connections outlive a poll, so no matter how many polls it takes there are never more than the default
+    // pool size of connections plus the one of the worker reserved for high priority emails
+    Assert.assertTrue(connections <= 5);
+  }
+
+  @Test
+  public void testSingleBatchUsesOneConnection() throws Exception {
+    final int mailCount = 10;
+    Properties properties = new Properties();
+    properties.setProperty("mail.smtp.host", "localhost");
+    properties.setProperty("mail.smtp.port", "2525");
+    Session session = Session.getInstance(properties);
+    SmtpConnection connection = new SmtpConnection(session, 100);
+    try {
+      for (int i = 0; i < mailCount; ++i) {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("imran@smartitengineering.com"));
+        message.setRecipient(MimeMessage.RecipientType.TO, new InternetAddress("imyousuf@gmail.com"));
+        message.setSubject(SINGLE_BATCH_SUBJECT);
+        message.setText("Single batch body " + i);
+        connection.send(message);
+      }
+    }
+    finally {
+      connection.close();
+    }
+    // The server takes the data before acknowledging it, so every mail has arrived once its send returned
+    Assert.assertEquals(mailCount, singleBatchRemotes.size());
+    Assert.assertEquals(1, new HashSet<SocketAddress>(singleBatchRemotes).size());
+    Assert.assertEquals(1, connection.getConnectCount());
+  }
+
+  @Test
+  public void testEnqueueToSendLatency() throws InterruptedException {
+    final int mailCount = 20;
+    long[] savedAt = new long[mailCount];
+    for (int i = 0; i < mailCount; ++i) {
+      Email email = new Email();
+      email.setFrom("imran@smartitengineering.com");
+      email.setTo(Arrays.<String>asList("imyousuf@gmail.com"));
+      email.setSubject(LATENCY_SUBJECT);
+      Message message = new Message();
+      message.setMsgType(Message.MsgType.PLAIN);
+      message.setMsgBody("Latency marker " + i);
+      email.setMessage(message);
+      savedAt[i] = System.nanoTime();
+      Assert.assertTrue(Services.getInstance().getEmailService().saveEmail(email));
+      // Spread the saves so that some of them fall in separate debounce windows
+      Thread.sleep(50);
+    }
+    for (int i = 0; i < 30 && latencyReceivedAt.size() < mailCount; ++i) {
+      Thread.sleep(500);
+    }
+    Assert.assertEquals(mailCount, latencyReceivedAt.size());
+    List<Long> latencies = new ArrayList<Long>(mailCount);
+    for (int i = 0; i < mailCount; ++i) {
+      latencies.add(TimeUnit.NANOSECONDS.toMillis(latencyReceivedAt.get(String.valueOf(i)) - savedAt[i]));
+    }
+    Collections.sort(latencies);
+    long p50 = latencies.get(mailCount / 2);
+    long p99 = latencies.get((int) Math.ceil(mailCount * 0.99) - 1);
+    logger.info("Enqueue to send latency p50 " + p50 + "ms p99 " + p99 + "ms");
+    // The cron poll is 2 seconds in tests, sending on wakeup has to beat it comfortably
+    Assert.assertTrue(p50 < 1000);
+    Assert.assertTrue(p99 < 2000);
+  }
+
+  @Test
+  public void testHighPrioritySentAheadOfBulk() throws InterruptedException {
+    final int bulkCount = 60;
+    final int highCount = 4;
+    // The default pool size plus the worker reserved for high priority emails
+    final int workerCount = 5;
+    // All of them fall due at once, with the bulk backlog queued ahead of the high priority emails
+    final Date due = new Date(System.currentTimeMillis() + 10000);
+    for (int i = 0; i < bulkCount; ++i) {
+      Email email = createPriorityEmail("BULK" + i);
+      email.setSendAfter(due);
+      Assert.assertTrue(Services.getInstance().getEmailService().saveEmail(email, Email.Priority.BULK));
+    }
+    for (int i = 0; i < highCount; ++i) {
+      Email email = createPriorityEmail("HIGH" + i);
+      email.setSendAfter(due);
+      Assert.assertTrue(Services.getInstance().getEmailService().saveEmail(email, Email.Priority.HIGH));
+    }
+    for (int i = 0; i < 60 && priorityArrivals.size() < bulkCount + highCount; ++i) {
+      Thread.sleep(500);
+    }
+    List<String> arrivals = new ArrayList<String>(priorityArrivals);
+    Assert.assertEquals(bulkCount + highCount, arrivals.size());
+    // Each worker may have taken a bulk email or two before the high priority ones were fed, but no more
+    final int firstDeliveries = 2 * workerCount + highCount;
+    int highArrivals = 0;
+    for (String marker : arrivals.subList(0, firstDeliveries)) {
+      if (marker.startsWith("HIGH")) {
+        highArrivals++;
+      }
+    }
+    logger.info("Priority emails arrived in the order " + arrivals);
+    Assert.assertEquals(highCount, highArrivals);
+  }
+
+  @Test
+  public void testBatchSave() {
+    final int mailCount = 200;
+    List<Email> batch = new ArrayList<Email>(mailCount);
+    for (int i = 0; i < mailCount; ++i) {
+      batch.add(createBenchmarkEmail(i));
+    }
+    // One invalid email must not fail the rest of its chunk
+    Email invalid = createBenchmarkEmail(mailCount);
+    invalid.setFrom(null);
+    batch.add(mailCount / 2, invalid);
+    List<SaveResult> results = Services.getInstance().getEmailService().saveEmails(batch);
+    Assert.assertEquals(mailCount + 1, results.size());
+    for (int i = 0; i < results.size(); ++i) {
+      SaveResult result = results.get(i);
+      Assert.assertSame(batch.get(i), result.getEmail());
+      if (i == mailCount / 2) {
+        Assert.assertFalse(result.isAccepted());
+        Assert.assertNull(result.getId());
+        Assert.assertNotNull(result.getRejectionReason());
+      }
+      else {
+        Assert.assertTrue(result.isAccepted());
+        Assert.assertNotNull(result.getId());
+      }
+    }
+  }
+
+  @Test
+  public void testAsyncSave() throws Exception {
+    final int mailCount = 50;
+    List<Future<String>> ids = new ArrayList<Future<String>>(mailCount);
+    for (int i = 0; i < mailCount; ++i) {
+      ids.add(Services.getInstance().getEmailService().saveEmailAsync(createBenchmarkEmail(i)));
+    }
+    Email invalid = createBenchmarkEmail(mailCount);
+    invalid.setMessage(null);
+    Future<String> invalidId = Services.getInstance().getEmailService().saveEmailAsync(invalid);
+    for (Future<String> id : ids) {
+      Assert.assertNotNull(id.get(10, TimeUnit.SECONDS));
+    }
+    try {
+      invalidId.get(10, TimeUnit.SECONDS);
+      Assert.fail("Invalid email should not be saved");
+    }
+    catch (ExecutionException ex) {
+      logger.info("Invalid email rejected: " + ex.getCause().getMessage());
+    }
+  }
+
+  @Test
+  public void testMailMerge() throws InterruptedException {
+    EmailTemplate template = new EmailTemplate();
+    template.setName("merge-test");
+    template.setSubject(MERGE_SUBJECT + " for ${name}");
+    template.setFrom("imran@smartitengineering.com");
+    template.setMsgType(EmailTemplate.MsgType.PLAIN);
+    template.setMsgBody("Dear ${name}, your code is ${code}.");
+    Assert.assertTrue(Services.getInstance().getEmailService().saveTemplate(template));
+    final int mailCount = 3;
+    for (int i = 0; i < mailCount; ++i) {
+      Email email = new Email();
+      email.setTo(Arrays.<String>asList("imyousuf@gmail.com"));
+      email.setTemplateId(template.getId());
+      email.setTemplateVariables(Arrays.asList(createVariable("name", "Recipient " + i), createVariable("code",
+                                                                                                           "C" + i)));
+      Assert.assertTrue(Services.getInstance().getEmailService().saveEmail(email));
+    }
+    Email unknownTemplate = new Email();
+    unknownTemplate.setTo(Arrays.<String>asList("imyousuf@gmail.com"));
+    unknownTemplate.setTemplateId("no-such-template");
+    Assert.assertFalse(Services.getInstance().getEmailService().saveEmail(unknownTemplate));
+    for (int i = 0; i < 30 && mergedMails.size() < mailCount; ++i) {
+      Thread.sleep(500);
+    }
+    Assert.assertEquals(mailCount, mergedMails.size());
+    for (int i = 0; i < mailCount; ++i) {
+      boolean found = false;
+      for (String mail : mergedMails) {
+        found |= mail.contains("Subject: " + MERGE_SUBJECT + " for Recipient " + i) && mail.contains(
+            "Dear Recipient " + i + ", your code is C" + i + ".");
+      }
+      Assert.assertTrue(found);
+    }
+  }
+
+  @Test
+  public void testIdenticalEmailsCoalesced() throws InterruptedException {
+    final int mailCount = 10;
+    for (int i = 0; i < mailCount; ++i) {
+      Email email = new Email();
+      email.setFrom("imran@smartitengineering.com");
+      email.setTo(Arrays.<String>asList("recipient" + i + "@smartitengineering.com"));
+      email.setSubject(COALESCE_SUBJECT);
+      Message message = new Message();
+      message.setMsgType(Message.MsgType.PLAIN);
+      message.setMsgBody("The same announcement for everyone");
+      email.setMessage(message);
+      Assert.assertTrue(Services.getInstance().getEmailService().saveEmail(email));
+    }
+    int recipients = 0;
+    for (int i = 0; i < 30 && recipients < mailCount; ++i) {
+      Thread.sleep(500);
+      recipients = 0;
+      for (Integer count : coalescedRecipientCounts) {
+        recipients += count;
+      }
+    }
+    Assert.assertEquals(mailCount, recipients);
+    logger.info(mailCount + " identical emails sent as " + coalescedRecipientCounts.size() + " messages");
+    Assert.assertTrue(coalescedRecipientCounts.size() < mailCount);
+  }
+
+  @Test
+  public void testSendAfter() throws InterruptedException {
+    Email email = new Email();
+    email.setFrom("imran@smartitengineering.com");
+    email.setTo(Arrays.<String>asList("imyousuf@gmail.com"));
+    email.setSubject(SEND_AFTER_SUBJECT);
+    Message message = new Message();
+    message.setMsgType(Message.MsgType.PLAIN);
+    message.setMsgBody("Sent later");
+    email.setMessage(message);
+    final long sendAfter = System.currentTimeMillis() + 3000;
+    email.setSendAfter(new Date(sendAfter));
+    Assert.assertTrue(Services.getInstance().getEmailService().saveEmail(email));
+    Thread.sleep(1000);
+    Assert.assertTrue(sendAfterReceivedAt.isEmpty());
+    for (int i = 0; i < 20 && sendAfterReceivedAt.isEmpty(); ++i) {
+      Thread.sleep(250);
+    }
+    Assert.assertFalse(sendAfterReceivedAt.isEmpty());
+    final long receivedAt = sendAfterReceivedAt.peek();
+    logger.info("Email due at " + sendAfter + " received " + (receivedAt - sendAfter) + "ms after");
+    Assert.assertTrue(receivedAt >= sendAfter);
+  }
+
+  @Test
+  public void testMetricsExposedOverJmx() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("com.smartitengineering.emailq:type=EmailQueueMetrics");
+    final long enqueued = (Long) server.getAttribute(name, "emails.enqueued");
+    final long sent = (Long) server.getAttribute(name, "emails.sent");
+    Email email = createBenchmarkEmail(0);
+    email.setSubject("Metrics Test");
+    Assert.assertTrue(Services.getInstance().getEmailService().saveEmail(email));
+    Assert.assertEquals(enqueued + 1, ((Long) server.getAttribute(name, "emails.enqueued")).longValue());
+    for (int i = 0; i < 20 && (Long) server.getAttribute(name, "emails.sent") == sent; ++i) {
+      Thread.sleep(250);
+    }
+    Assert.assertTrue((Long) server.getAttribute(name, "emails.sent") > sent);
+    Assert.assertTrue((Long) server.getAttribute(name, "relay.default.totalMicros.count") > 0);
+    Assert.assertTrue((Long) server.getAttribute(name, "dispatch.durationMicros.count") > 0);
+    Assert.assertNotNull(server.getAttribute(name, "queue.depth.NOT_SENT"));
+    logger.info("Mean send latency " + server.getAttribute(name, "relay.default.totalMicros.mean") + " micros");
+  }
+
+  @Test
+  public void testEmailPage() throws InterruptedException {
+    final int mailCount = 5;
+    final Set<String> savedIds = new HashSet<String>();
+    for (int i = 0; i < mailCount; ++i) {
+      Email email = new Email();
+      email.setFrom("imran@smartitengineering.com");
+      email.setTo(Arrays.<String>asList("imyousuf@gmail.com"));
+      email.setSubject(PAGE_SUBJECT);
+      Message message = new Message();
+      message.setMsgType(Message.MsgType.PLAIN);
+      message.setMsgBody("Page body " + i);
+      email.setMessage(message);
+      Assert.assertTrue(Services.getInstance().getEmailService().saveEmail(email));
+      savedIds.add(email.getId());
+    }
+    final QueryParameter subjectParam = QueryParameterFactory.getStringLikePropertyParam(Email.PROPERTY_SUBJECT,
+                                                                                         PAGE_SUBJECT,
+                                                                                         MatchMode.EXACT);
+    // Saved emails are searchable once they are indexed
+    EmailPage page = null;
+    for (int i = 0; i < 30; ++i) {
+      page = Services.getInstance().getEmailService().getEmailPage(null, 2, true, subjectParam);
+      if (page.getTotalCount() >= mailCount) {
+        break;
+      }
+      Thread.sleep(500);
+    }
+    Assert.assertEquals(mailCount, page.getTotalCount());
+    List<String> pagedIds = new ArrayList<String>();
+    while (true) {
+      Assert.assertTrue(page.getSummaries().size() <= 2);
+      for (EmailSummary summary : page.getSummaries()) {
+        Assert.assertEquals(PAGE_SUBJECT, summary.getSubject());
+        Assert.assertEquals("imran@smartitengineering.com", summary.getFrom());
+        Assert.assertNotNull(summary.getMailStatus());
+        pagedIds.add(summary.getId());
+      }
+      if (!page.hasNext()) {
+        break;
+      }
+      page = Services.getInstance().getEmailService().getEmailPage(page.getNextCursor(), 2, false, subjectParam);
+      Assert.assertEquals(EmailPage.NOT_COUNTED, page.getTotalCount());
+    }
+    // Every email once, as sending them while paging does not move them between pages
+    Assert.assertEquals(mailCount, pagedIds.size());
+    Assert.assertEquals(savedIds, new HashSet<String>(pagedIds));
+    try {
+      Services.getInstance().getEmailService().getEmailPage(null, 0, false, subjectParam);
+      Assert.fail("A page of no emails should be rejected");
+    }
+    catch (IllegalArgumentException ex) {
+      // Expected
+    }
+    // Pages of a status are counted by the counters rather than queried
+    final EmailService service = Services.getInstance().getEmailService();
+    page = service.getEmailPage(null, 2, Email.MailStatus.SENT, null);
+    Assert.assertTrue(page.isCountApproximate());
+    Assert.assertTrue(page.getSummaries().size() <= 2);
+    for (EmailSummary summary : page.getSummaries()) {
+      Assert.assertEquals(Email.MailStatus.SENT, summary.getMailStatus());
+    }
+  }
+
+  @Test
+  public void testEmailCounts() throws InterruptedException {
+    final EmailService service = Services.getInstance().getEmailService();
+    final long sentBefore = service.getEmailCount(Email.MailStatus.SENT);
+    final int mailCount = 3;
+    for (int i = 0; i < mailCount; ++i) {
+      Email email = new Email();
+      email.setFrom("imran@smartitengineering.com");
+      email.setTo(Arrays.<String>asList("imyousuf@count.example.com"));
+      email.setSubject("Count Test");
+      Message message = new Message();
+      message.setMsgType(Message.MsgType.PLAIN);
+      message.setMsgBody("Count body " + i);
+      email.setMessage(message);
+      Assert.assertTrue(service.saveEmail(email, Email.Priority.HIGH));
+    }
+    // Counts are read from a snapshot taken at most once per cache duration
+    for (int i = 0; i < 30 && service.getEmailCount(Email.MailStatus.SENT) < sentBefore + mailCount; ++i) {
+      Thread.sleep(1000);
+    }
+    Assert.assertTrue(service.getEmailCount(Email.MailStatus.SENT) >= sentBefore + mailCount);
+    Assert.assertTrue(service.getEmailCount(Email.MailStatus.SENT, Email.Priority.HIGH) >= mailCount);
+    Map<String, Long> counts = service.getEmailCounts();
+    Assert.assertEquals(Long.valueOf(mailCount), counts.get("status.SENT.domain.count.example.com"));
+    Assert.assertTrue(counts.get("status.SENT.relay.default") >= mailCount);
+    for (Email.MailStatus status : Email.MailStatus.values()) {
+      Assert.assertTrue(service.getEmailCount(status) >= 0);
+    }
+  }
+
+  private Email.TemplateVariables createVariable(String name, String value) {
+    Email.TemplateVariables variable = new Email.TemplateVariables();
+    variable.setName(name);
+    variable.setValue(value);
+    return variable;
+  }
+
+  private Email createBenchmarkEmail(int index) {
+    Email email = new Email();
+    email.setFrom("imran@smartitengineering.com");
+    email.setTo(Arrays.<String>asList("imyousuf@gmail.com"));
+    email.setSubject("Batch Save Test");
+    Message message = new Message();
+    message.setMsgType(Message.MsgType.PLAIN);
+    message.setMsgBody("Batch save body " + index);
+    email.setMessage(message);
+    return email;
+  }
+
+  private Email createPriorityEmail(String marker) {
+    Email email = new Email();
+    email.setFrom("imran@smartitengineering.com");
+    email.setTo(Arrays.<String>asList("imyousuf@gmail.com"));
+    email.setSubject(PRIORITY_SUBJECT);
+    Message message = new Message();
+    message.setMsgType(Message.MsgType.PLAIN);
+    message.setMsgBody("Priority marker " + marker);
+    email.setMessage(message);
+    return email;
+  }
 }
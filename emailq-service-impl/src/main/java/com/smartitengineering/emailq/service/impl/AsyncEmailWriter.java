@@ -0,0 +1,234 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.emailq.domain.Email;
+import com.smartitengineering.emailq.service.SaveResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffers emails saved asynchronously and writes them in batches on a background thread, so that callers do not wait
+ * for the repository. The buffer is bounded; when it is full an email is either rejected right away or, if blocking is
+ * enabled, after waiting up to the offer timeout for room. Closing stops taking emails and drains those buffered.
+ * @author imyousuf
+ */
+public class AsyncEmailWriter {
+
+  /**
+   * Writes a batch of emails, reporting the outcome of each in order.
+   */
+  public interface BatchWriter {
+
+    List<SaveResult> write(List<Email> batch);
+  }
+  private static final long POLL_MILLIS = 100;
+  private final BatchWriter batchWriter;
+  private final BlockingQueue<PendingSave> buffer;
+  private final int batchSize;
+  private final boolean blockOnFull;
+  private final long offerTimeoutInMillis;
+  private final Thread writerThread;
+  private volatile boolean closed;
+  private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+  public AsyncEmailWriter(BatchWriter batchWriter, ThreadFactory threadFactory, int bufferSize, int batchSize,
+                          boolean blockOnFull, long offerTimeoutInMillis) {
+    this.batchWriter = batchWriter;
+    this.buffer = new ArrayBlockingQueue<PendingSave>(bufferSize);
+    this.batchSize = batchSize;
+    this.blockOnFull = blockOnFull;
+    this.offerTimeoutInMillis = offerTimeoutInMillis;
+    this.writerThread = threadFactory.newThread(new Runnable() {
+
+      public void run() {
+        writeBuffered();
+      }
+    });
+    this.writerThread.start();
+  }
+
+  /**
+   * Buffer an email to be written.
+   * @return The id the email is stored with once written; the future fails with a {@link RejectedExecutionException}
+   *         if the buffer is full or the writer closed, and with an {@link IllegalStateException} if the write failed
+   */
+  public Future<String> submit(Email email) {
+    PendingSave pendingSave = new PendingSave(email);
+    if (closed) {
+      pendingSave.fail(new RejectedExecutionException("Email writer is closed"));
+      return pendingSave;
+    }
+    boolean buffered;
+    try {
+      buffered = blockOnFull ? buffer.offer(pendingSave, offerTimeoutInMillis, TimeUnit.MILLISECONDS) : buffer.offer(
+          pendingSave);
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      buffered = false;
+    }
+    if (!buffered) {
+      pendingSave.fail(new RejectedExecutionException("Email write buffer is full"));
+    }
+    // Closed while offering, the writer may have stopped already; unless it or close took the email, fail it here
+    else if (closed && buffer.remove(pendingSave)) {
+      pendingSave.fail(new RejectedExecutionException("Email writer is closed"));
+    }
+    return pendingSave;
+  }
+
+  public int getBufferedCount() {
+    return buffer.size();
+  }
+
+  /**
+   * Stop taking emails and wait for the buffered ones to be written. Emails still buffered when the timeout elapses,
+   * or buffered by a submit racing the close after the writer stopped, are failed.
+   */
+  public void close(long timeoutInMillis) throws InterruptedException {
+    closed = true;
+    writerThread.join(timeoutInMillis);
+    if (writerThread.isAlive()) {
+      writerThread.interrupt();
+      writerThread.join(POLL_MILLIS);
+    }
+    List<PendingSave> left = new ArrayList<PendingSave>();
+    buffer.drainTo(left);
+    if (!left.isEmpty()) {
+      logger.warn(new StringBuilder("Could not write ").append(left.size()).append(
+          " buffered emails before shutting down").toString());
+    }
+    for (PendingSave pendingSave : left) {
+      pendingSave.fail(new RejectedExecutionException("Email writer shut down"));
+    }
+  }
+
+  private void writeBuffered() {
+    List<PendingSave> batch = new ArrayList<PendingSave>(batchSize);
+    while (!(closed && buffer.isEmpty())) {
+      try {
+        PendingSave first = buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+      }
+      catch (InterruptedException ex) {
+        return;
+      }
+      buffer.drainTo(batch, batchSize - 1);
+      write(batch);
+      batch.clear();
+    }
+  }
+
+  private void write(List<PendingSave> batch) {
+    List<Email> emails = new ArrayList<Email>(batch.size());
+    for (PendingSave pendingSave : batch) {
+      emails.add(pendingSave.email);
+    }
+    try {
+      List<SaveResult> results = batchWriter.write(emails);
+      for (int i = 0; i < batch.size(); ++i) {
+        SaveResult result = results.get(i);
+        if (result.isAccepted()) {
+          batch.get(i).complete(result.getId());
+        }
+        else {
+          batch.get(i).fail(new IllegalStateException(result.getRejectionReason()));
+        }
+      }
+    }
+    catch (RuntimeException ex) {
+      logger.warn("Could not write buffered emails", ex);
+      for (PendingSave pendingSave : batch) {
+        pendingSave.fail(ex);
+      }
+    }
+  }
+
+  /**
+   * A buffered email and the future of its id.
+   */
+  private static class PendingSave implements Future<String> {
+
+    private final Email email;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile String id;
+    private volatile Exception failure;
+
+    PendingSave(Email email) {
+      this.email = email;
+    }
+
+    void complete(String id) {
+      this.id = id;
+      done.countDown();
+    }
+
+    void fail(Exception failure) {
+      this.failure = failure;
+      done.countDown();
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    public boolean isCancelled() {
+      return false;
+    }
+
+    public boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    public String get() throws InterruptedException, ExecutionException {
+      done.await();
+      return getResult();
+    }
+
+    public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                                                          TimeoutException {
+      if (!done.await(timeout, unit)) {
+        throw new TimeoutException();
+      }
+      return getResult();
+    }
+
+    private String getResult() throws ExecutionException {
+      if (failure != null) {
+        throw new ExecutionException(failure);
+      }
+      return id;
+    }
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.dao.common.CommonDao;
+import com.smartitengineering.emailq.domain.AttachmentBlob;
+import com.smartitengineering.emailq.domain.AttachmentChunk;
+import com.smartitengineering.emailq.domain.Email;
+import com.smartitengineering.emailq.domain.Email.Attachments;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.activation.DataSource;
+import javax.mail.util.ByteArrayDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores attachment bodies once under the SHA-256 hash of their content, so that an attachment sent along with many
+ * emails is written and read once instead of once per email. An email's attachments keep only the hash of their body;
+ * every email referencing a body counts towards its reference count and the body is deleted once no email that has not
+ * yet been sent or failed references it. Bodies read are kept in a cache bounded by their total size, evicting the
+ * least recently used.
+ * <p>
+ * Bodies larger than the chunk size are stored in chunks and streamed chunk by chunk when sent, so that sending one
+ * holds no more than a chunk of it in memory; they are never cached.
+ * </p>
+ * <p>
+ * A body is stored with its hash as its id and its chunks with ids derived from it, so they are read by id rather than
+ * looked up in the search index, which may not have caught up with a body just written. Reference counts are updated
+ * under a lock of this store only; nodes updating the count of the same body at the same time may lose an update,
+ * leaving the body behind longer than needed or, rarely, deleting it early.
+ * </p>
+ * @author imyousuf
+ */
+public class AttachmentStore {
+
+  private final CommonDao<AttachmentBlob, String> blobDao;
+  private final CommonDao<AttachmentChunk, String> chunkDao;
+  private final int chunkSizeInBytes;
+  private final long cacheSizeInBytes;
+  private final Map<String, byte[]> cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+  private long cachedBytes;
+  private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+  /**
+   * @param chunkDao Where to store chunks of large bodies, if null every body is stored whole
+   */
+  public AttachmentStore(CommonDao<AttachmentBlob, String> blobDao, CommonDao<AttachmentChunk, String> chunkDao,
+                         int chunkSizeInBytes, long cacheSizeInBytes) {
+    this.blobDao = blobDao;
+    this.chunkDao = chunkDao;
+    this.chunkSizeInBytes = chunkSizeInBytes;
+    this.cacheSizeInBytes = cacheSizeInBytes;
+  }
+
+  /**
+   * Move the bodies of the email's attachments to the store, leaving their hashes in their place.
+   */
+  public void store(Email email) {
+    if (email.getAttachments() == null) {
+      return;
+    }
+    for (Attachments attachment : email.getAttachments()) {
+      if (attachment.getBlob() != null) {
+        final String hash = hash(attachment.getBlob());
+        addReference(hash, attachment.getBlob());
+        attachment.setBlobHash(hash);
+        attachment.setBlob(null);
+      }
+    }
+  }
+
+  /**
+   * Drop the email's references to the bodies of its attachments, e.g. once it is sent or could not be saved.
+   */
+  public void release(Email email) {
+    if (email.getAttachments() == null) {
+      return;
+    }
+    for (Attachments attachment : email.getAttachments()) {
+      if (attachment.getBlob() == null && attachment.getBlobHash() != null) {
+        removeReference(attachment.getBlobHash());
+      }
+    }
+  }
+
+  /**
+   * Get the body of an attachment as a data source, read from the cache if it was read recently or streamed if it is
+   * stored in chunks.
+   * @return The body or null if it is missing
+   */
+  public DataSource getDataSource(Attachments attachment) {
+    if (attachment.getBlob() != null || attachment.getBlobHash() == null) {
+      return attachment.getBlob() == null ? null : new ByteArrayDataSource(attachment.getBlob(), attachment.
+          getContentType());
+    }
+    final String hash = attachment.getBlobHash();
+    synchronized (cache) {
+      byte[] blob = cache.get(hash);
+      if (blob != null) {
+        return new ByteArrayDataSource(blob, attachment.getContentType());
+      }
+    }
+    AttachmentBlob stored = find(hash);
+    if (stored == null) {
+      logger.warn("Attachment body not found for hash " + hash);
+      return null;
+    }
+    if (stored.getBlob() == null && stored.getChunkCount() != null) {
+      return new ChunkedBlobDataSource(attachment.getName(), attachment.getContentType(), stored.getChunkCount().
+          intValue(), new ChunkedBlobDataSource.ChunkReader() {
+
+        public byte[] readChunk(int index) throws IOException {
+          AttachmentChunk chunk = chunkDao.getById(getChunkId(hash, index));
+          return chunk == null ? null : chunk.getData();
+        }
+      });
+    }
+    cache(hash, stored.getBlob());
+    return new ByteArrayDataSource(stored.getBlob(), attachment.getContentType());
+  }
+
+  private synchronized void addReference(String hash, byte[] blob) {
+    AttachmentBlob stored = find(hash);
+    if (stored == null) {
+      stored = new AttachmentBlob();
+      stored.setId(hash);
+      stored.setContentHash(hash);
+      stored.setReferenceCount(1);
+      if (chunkDao != null && blob.length > chunkSizeInBytes) {
+        final int chunkCount = (blob.length + chunkSizeInBytes - 1) / chunkSizeInBytes;
+        // Chunks are written one at a time so that no more than one chunk is copied at once
+        for (int i = 0; i < chunkCount; ++i) {
+          AttachmentChunk chunk = new AttachmentChunk();
+          chunk.setId(getChunkId(hash, i));
+          chunk.setContentHash(hash);
+          chunk.setChunkIndex(i);
+          chunk.setData(Arrays.copyOfRange(blob, i * chunkSizeInBytes, Math.min((i + 1) * chunkSizeInBytes,
+                                                                                 blob.length)));
+          chunkDao.save(chunk);
+        }
+        stored.setChunkCount(chunkCount);
+      }
+      else {
+        stored.setBlob(blob);
+      }
+      blobDao.save(stored);
+    }
+    else {
+      stored.setReferenceCount(getReferenceCount(stored) + 1);
+      blobDao.update(stored);
+    }
+  }
+
+  private synchronized void removeReference(String hash) {
+    AttachmentBlob stored = find(hash);
+    if (stored == null) {
+      return;
+    }
+    final int referenceCount = getReferenceCount(stored) - 1;
+    if (referenceCount > 0) {
+      stored.setReferenceCount(referenceCount);
+      blobDao.update(stored);
+    }
+    else {
+      blobDao.delete(stored);
+      if (stored.getChunkCount() != null && chunkDao != null) {
+        List<String> chunkIds = new ArrayList<String>(stored.getChunkCount().intValue());
+        for (int i = 0; i < stored.getChunkCount().intValue(); ++i) {
+          chunkIds.add(getChunkId(hash, i));
+        }
+        Set<AttachmentChunk> chunks = chunkDao.getByIds(chunkIds);
+        if (chunks != null && !chunks.isEmpty()) {
+          chunkDao.delete(chunks.toArray(new AttachmentChunk[chunks.size()]));
+        }
+      }
+      synchronized (cache) {
+        byte[] blob = cache.remove(hash);
+        if (blob != null) {
+          cachedBytes -= blob.length;
+        }
+      }
+    }
+  }
+
+  private AttachmentBlob find(String hash) {
+    return blobDao.getById(hash);
+  }
+
+  private static String getChunkId(String hash, int index) {
+    return new StringBuilder(hash).append('-').append(index).toString();
+  }
+
+  private void cache(String hash, byte[] blob) {
+    if (blob == null || blob.length > cacheSizeInBytes) {
+      return;
+    }
+    synchronized (cache) {
+      if (cache.put(hash, blob) == null) {
+        cachedBytes += blob.length;
+      }
+      Iterator<byte[]> eldest = cache.values().iterator();
+      while (cachedBytes > cacheSizeInBytes && eldest.hasNext()) {
+        cachedBytes -= eldest.next().length;
+        eldest.remove();
+      }
+    }
+  }
+
+  private static int getReferenceCount(AttachmentBlob stored) {
+    return stored.getReferenceCount() == null ? 0 : stored.getReferenceCount().intValue();
+  }
+
+  static String hash(byte[] blob) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(blob);
+      StringBuilder hash = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hash.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return hash.toString();
+    }
+    catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
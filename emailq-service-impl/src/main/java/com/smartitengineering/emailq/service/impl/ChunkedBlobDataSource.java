@@ -0,0 +1,128 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.activation.DataSource;
+
+/**
+ * A data source over a body stored in chunks, reading one chunk at a time as the stream is consumed so that no more
+ * than a chunk of the body is held in memory however large it is.
+ * @author imyousuf
+ */
+public class ChunkedBlobDataSource implements DataSource {
+
+  /**
+   * Reads a chunk of the body.
+   */
+  public interface ChunkReader {
+
+    byte[] readChunk(int index) throws IOException;
+  }
+  private final String name;
+  private final String contentType;
+  private final int chunkCount;
+  private final ChunkReader chunkReader;
+
+  public ChunkedBlobDataSource(String name, String contentType, int chunkCount, ChunkReader chunkReader) {
+    this.name = name;
+    this.contentType = contentType;
+    this.chunkCount = chunkCount;
+    this.chunkReader = chunkReader;
+  }
+
+  public InputStream getInputStream() throws IOException {
+    return new ChunkedInputStream();
+  }
+
+  public OutputStream getOutputStream() throws IOException {
+    throw new IOException("Chunked bodies are read only");
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  private class ChunkedInputStream extends InputStream {
+
+    private int nextChunk;
+    private byte[] chunk = new byte[0];
+    private int position;
+
+    @Override
+    public int read() throws IOException {
+      if (!fill()) {
+        return -1;
+      }
+      return chunk[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      if (!fill()) {
+        return -1;
+      }
+      final int read = Math.min(length, chunk.length - position);
+      System.arraycopy(chunk, position, buffer, offset, read);
+      position += read;
+      return read;
+    }
+
+    @Override
+    public int available() {
+      return chunk.length - position;
+    }
+
+    @Override
+    public void close() {
+      chunk = new byte[0];
+      position = 0;
+      nextChunk = chunkCount;
+    }
+
+    /**
+     * @return False if the body is read through
+     */
+    private boolean fill() throws IOException {
+      while (position >= chunk.length) {
+        if (nextChunk >= chunkCount) {
+          return false;
+        }
+        byte[] read = chunkReader.readChunk(nextChunk);
+        if (read == null) {
+          throw new IOException(new StringBuilder("Chunk ").append(nextChunk).append(" of ").append(name).append(
+              " is missing").toString());
+        }
+        nextChunk++;
+        chunk = read;
+        position = 0;
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.emailq.domain.Email;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Limits sending per recipient domain, so that a provider throttling us only slows down the emails to it. A domain
+ * may have at most a given number of sends in flight at once and is sent to at most at a given rate, enforced with a
+ * token bucket holding up to a burst of sends. A domain replying with a 4xx is backed off from, for a period
+ * doubling with every further throttled reply up to the max backoff; a successful send to it ends the backoff.
+ * <p>
+ * An email to several domains is let through only when every one of them would let it through, and then counts
+ * against each of them.
+ * </p>
+ * @author imyousuf
+ */
+public class DomainThrottle {
+
+  private static final int MAX_IDLE_DOMAINS = 10000;
+  private final int maxConcurrency;
+  private final double tokensPerMilli;
+  private final double burst;
+  private final long initialBackoffInMillis;
+  private final long maxBackoffInMillis;
+  private final Map<String, DomainState> domains = new HashMap<String, DomainState>();
+
+  /**
+   * @param maxConcurrency Max sends in flight per domain, 0 or less for no limit
+   * @param sendsPerMinute Max sends per domain per minute, 0 or less for no limit
+   * @param burst Sends a domain may get at once after having been idle, at least 1
+   */
+  public DomainThrottle(int maxConcurrency, int sendsPerMinute, int burst, long initialBackoffInMillis,
+                        long maxBackoffInMillis) {
+    this.maxConcurrency = maxConcurrency;
+    this.tokensPerMilli = sendsPerMinute > 0 ? sendsPerMinute / 60000d : 0;
+    this.burst = Math.max(1, burst);
+    this.initialBackoffInMillis = initialBackoffInMillis;
+    this.maxBackoffInMillis = maxBackoffInMillis;
+  }
+
+  /**
+   * Get the distinct recipient domains of the emails, in lower case.
+   */
+  public static Set<String> getDomains(Collection<Email> emails) {
+    Set<String> emailDomains = new TreeSet<String>();
+    for (Email email : emails) {
+      addDomains(emailDomains, email.getTo());
+      addDomains(emailDomains, email.getCc());
+      addDomains(emailDomains, email.getBcc());
+    }
+    return emailDomains;
+  }
+
+  private static void addDomains(Set<String> emailDomains, Collection<String> addresses) {
+    if (addresses == null) {
+      return;
+    }
+    for (String address : addresses) {
+      if (address != null) {
+        emailDomains.add(getDomain(address));
+      }
+    }
+  }
+
+  /**
+   * Get the domain of an address, in lower case.
+   */
+  public static String getDomain(String address) {
+    String domain = address.substring(address.lastIndexOf('@') + 1).trim();
+    // Strip what is left of a "Name <user@domain>" address
+    if (domain.endsWith(">")) {
+      domain = domain.substring(0, domain.length() - 1);
+    }
+    return domain.toLowerCase();
+  }
+
+  /**
+   * Try to take a send to each of the domains, taking none unless all of them can be sent to now.
+   * @return 0 if taken, otherwise the estimated millis till it could be taken
+   */
+  public synchronized long tryAcquire(Set<String> emailDomains) {
+    final long now = System.currentTimeMillis();
+    long wait = 0;
+    for (String domain : emailDomains) {
+      wait = Math.max(wait, getState(domain, now).getWait(now));
+    }
+    if (wait > 0) {
+      return wait;
+    }
+    for (String domain : emailDomains) {
+      DomainState state = domains.get(domain);
+      state.inFlight++;
+      if (tokensPerMilli > 0) {
+        state.tokens -= 1;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Give back the sends taken with {@link #tryAcquire(java.util.Set)}.
+   * @param throttled Whether the server replied with a 4xx, in which case the domains are backed off from
+   */
+  public synchronized void release(Set<String> emailDomains, boolean throttled) {
+    final long now = System.currentTimeMillis();
+    for (String domain : emailDomains) {
+      DomainState state = getState(domain, now);
+      state.inFlight = Math.max(0, state.inFlight - 1);
+      if (throttled) {
+        state.backoff = state.backoff <= 0 ? initialBackoffInMillis : Math.min(state.backoff * 2, maxBackoffInMillis);
+        state.blockedUntil = now + state.backoff;
+      }
+      else if (state.blockedUntil <= now) {
+        state.backoff = 0;
+      }
+    }
+  }
+
+  /**
+   * Whether the domain is being backed off from, for monitoring.
+   */
+  public synchronized boolean isBackingOff(String domain) {
+    DomainState state = domains.get(domain);
+    return state != null && state.blockedUntil > System.currentTimeMillis();
+  }
+
+  private DomainState getState(String domain, long now) {
+    DomainState state = domains.get(domain);
+    if (state == null) {
+      if (domains.size() >= MAX_IDLE_DOMAINS) {
+        pruneIdle(now);
+      }
+      state = new DomainState(burst, now);
+      domains.put(domain, state);
+    }
+    else {
+      state.refill(now);
+    }
+    return state;
+  }
+
+  private void pruneIdle(long now) {
+    for (Iterator<DomainState> states = domains.values().iterator(); states.hasNext();) {
+      DomainState state = states.next();
+      if (state.inFlight == 0 && state.blockedUntil <= now) {
+        states.remove();
+      }
+    }
+  }
+
+  private class DomainState {
+
+    private int inFlight;
+    private double tokens;
+    private long lastRefill;
+    private long backoff;
+    private long blockedUntil;
+
+    DomainState(double tokens, long now) {
+      this.tokens = tokens;
+      this.lastRefill = now;
+    }
+
+    void refill(long now) {
+      if (tokensPerMilli > 0 && now > lastRefill) {
+        tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerMilli);
+      }
+      lastRefill = now;
+    }
+
+    long getWait(long now) {
+      if (blockedUntil > now) {
+        return blockedUntil - now;
+      }
+      long wait = 0;
+      if (tokensPerMilli > 0 && tokens < 1) {
+        wait = (long) Math.ceil((1 - tokens) / tokensPerMilli);
+      }
+      if (maxConcurrency > 0 && inFlight >= maxConcurrency) {
+        // A slot frees up as soon as one of the sends in flight is done
+        wait = Math.max(wait, 1);
+      }
+      return wait;
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.emailq.domain.Email;
+import com.smartitengineering.emailq.domain.Email.Attachments;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes a hash of everything of an email that ends up in the message sent except its recipients, so that emails with
+ * the same key can be sent as one message to all of their recipients. The hash is of the fields the message is built
+ * from, so pre-rendered emails are keyed just the same; a coalesced message is built afresh from those fields.
+ * @author imyousuf
+ */
+public final class EmailContentKey {
+
+  private EmailContentKey() {
+  }
+
+  /**
+   * @return The key or null if the email can not share its message with others, i.e. it has visible CC recipients
+   */
+  public static String of(Email email) {
+    if (email.getCc() != null && !email.getCc().isEmpty()) {
+      return null;
+    }
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      update(digest, email.getSubject());
+      update(digest, email.getFrom());
+      if (email.getMessage() != null) {
+        update(digest, email.getMessage().getMsgType() == null ? null : email.getMessage().getMsgType().name());
+        update(digest, email.getMessage().getMsgBody());
+      }
+      update(digest, email.getTemplateId());
+      if (email.getTemplateVariables() != null) {
+        for (Email.TemplateVariables variable : email.getTemplateVariables()) {
+          update(digest, variable.getName());
+          update(digest, variable.getValue());
+        }
+      }
+      if (email.getAttachments() != null) {
+        for (Attachments attachment : email.getAttachments()) {
+          update(digest, attachment.getName());
+          update(digest, attachment.getDescription());
+          update(digest, attachment.getDisposition());
+          update(digest, attachment.getContentType());
+          update(digest, attachment.getBlobHash());
+          if (attachment.getBlob() != null) {
+            digest.update(attachment.getBlob());
+          }
+          digest.update((byte) 0);
+        }
+      }
+      StringBuilder key = new StringBuilder();
+      for (byte b : digest.digest()) {
+        key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return key.toString();
+    }
+    catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+    catch (UnsupportedEncodingException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static void update(MessageDigest digest, String value) throws UnsupportedEncodingException {
+    // A separator keeps values that run into each other from colliding, e.g. "ab" + "c" and "a" + "bc"
+    if (value != null) {
+      digest.update(value.getBytes("UTF-8"));
+    }
+    digest.update((byte) 0);
+  }
+}
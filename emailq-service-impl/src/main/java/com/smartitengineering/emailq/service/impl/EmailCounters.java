@@ -0,0 +1,353 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.emailq.domain.Email;
+import com.smartitengineering.emailq.service.CounterStore;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts emails by status, in total and split by priority, by recipient domain and, for emails sent or failed, by the
+ * relay they went through. The counts are kept up as emails are enqueued and change status, so reading them costs no
+ * query. Counting only adds to deltas kept in memory, which are written to the store in one batch per flush interval
+ * by a background thread, so that counting never waits on the store. Reads are served from a snapshot of the store
+ * taken at most once per cache duration plus the deltas not written yet.
+ * <p>
+ * Counters are named status.&lt;status&gt;, status.&lt;status&gt;.priority.&lt;priority&gt;,
+ * status.&lt;status&gt;.domain.&lt;domain&gt; and status.&lt;status&gt;.relay.&lt;relay&gt;. Counting by domain and
+ * relay starts with the first email counted, so emails queued before then are not in them; such counts are read as 0
+ * rather than below it. At most the max domains are counted by name, emails to any other domain are counted under
+ * status.&lt;status&gt;.domain.other so that a queue sent to many domains does not grow the counters without bound;
+ * their own count is then 0 while the {@link #getOtherDomainCount(Email.MailStatus) other domains count} holds them.
+ * </p>
+ * <p>
+ * The names of the counters updated as emails change status are made once per status, priority, domain and relay
+ * rather than for every update.
+ * </p>
+ * @author imyousuf
+ */
+public class EmailCounters {
+
+  private static final String STATUS_PREFIX = "status.";
+  private static final String DOMAIN = "domain";
+  private static final String OTHER_DOMAIN = "other";
+  private static final Email.MailStatus[] STATUSES = Email.MailStatus.values();
+  private static final Email.Priority[] PRIORITIES = Email.Priority.values();
+  private final CounterStore store;
+  private final long cacheDurationInMillis;
+  private final int maxDomains;
+  private final String[] statusNames = new String[STATUSES.length];
+  private final String[][] priorityNames = new String[STATUSES.length][PRIORITIES.length];
+  private final String[] otherDomainNames = getNames(DOMAIN, OTHER_DOMAIN);
+  private final ConcurrentMap<String, String[]> domainNames = new ConcurrentHashMap<String, String[]>();
+  private final ConcurrentMap<String, String[]> relayNames = new ConcurrentHashMap<String, String[]>();
+  private final ThreadLocal<Set<String>> countedDomains = new ThreadLocal<Set<String>>() {
+
+    @Override
+    protected Set<String> initialValue() {
+      return new HashSet<String>();
+    }
+  };
+  private final ConcurrentMap<String, AtomicLong> pending = new ConcurrentHashMap<String, AtomicLong>();
+  private final transient Logger logger = LoggerFactory.getLogger(getClass());
+  private final Runnable flushTask = new Runnable() {
+
+    public void run() {
+      flush();
+    }
+  };
+  private Map<String, Long> snapshot = Collections.emptyMap();
+  private long snapshotAt;
+
+  /**
+   * @param maxDomains The most recipient domains counted by name
+   */
+  public EmailCounters(CounterStore store, long cacheDurationInMillis, int maxDomains) {
+    this.store = store;
+    this.cacheDurationInMillis = cacheDurationInMillis;
+    this.maxDomains = maxDomains;
+    for (Email.MailStatus status : STATUSES) {
+      statusNames[status.ordinal()] = getName(status);
+      for (Email.Priority priority : PRIORITIES) {
+        priorityNames[status.ordinal()][priority.ordinal()] = getName(status, "priority", priority.name());
+      }
+    }
+  }
+
+  /**
+   * Count an email just written to the queue.
+   */
+  public void enqueued(Email email) {
+    add(email, email.getMailStatus(), null, 1);
+  }
+
+  /**
+   * Move an email from the count of its previous status to that of its current one.
+   * @param relay The relay the email was sent through or failed at, null if it did not get that far
+   */
+  public void statusChanged(Email email, Email.MailStatus previous, String relay) {
+    if (previous != null && previous.equals(email.getMailStatus())) {
+      return;
+    }
+    if (previous != null) {
+      add(email, previous, null, -1);
+    }
+    add(email, email.getMailStatus(), relay, 1);
+  }
+
+  /**
+   * Counts the emails in the repository to seed the counters with.
+   */
+  public interface RepositoryCount {
+
+    /**
+     * Count the emails of a status, of all priorities if the priority is null.
+     */
+    long count(Email.MailStatus status, Email.Priority priority);
+  }
+
+  /**
+   * Set the counts of each status and priority to what the repository counts, unless the store was seeded already.
+   * Only the first of the nodes starting together seeds the store; the repository is not counted at all if it was
+   * seeded before.
+   * @return True if the counters were seeded by this call
+   */
+  public boolean seed(RepositoryCount repositoryCount) {
+    if (store.isSeeded()) {
+      return false;
+    }
+    Map<String, Long> counts = new HashMap<String, Long>();
+    for (Email.MailStatus status : STATUSES) {
+      counts.put(statusNames[status.ordinal()], repositoryCount.count(status, null));
+      for (Email.Priority priority : PRIORITIES) {
+        counts.put(priorityNames[status.ordinal()][priority.ordinal()], repositoryCount.count(status, priority));
+      }
+    }
+    return store.seed(counts);
+  }
+
+  /**
+   * Write the deltas counted since the last flush every flush interval on the executor.
+   */
+  public void startFlushing(ScheduledExecutorService executor, long flushIntervalInMillis) {
+    executor.scheduleWithFixedDelay(flushTask, flushIntervalInMillis, flushIntervalInMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Write the deltas counted since the last flush to the store in one batch. Deltas that could not be written are
+   * kept for the next flush rather than lost.
+   */
+  public synchronized void flush() {
+    Map<String, Long> deltas = new HashMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> delta : pending.entrySet()) {
+      final long value = delta.getValue().getAndSet(0);
+      if (value != 0) {
+        deltas.put(delta.getKey(), value);
+      }
+    }
+    if (deltas.isEmpty()) {
+      return;
+    }
+    try {
+      store.add(deltas);
+    }
+    catch (RuntimeException ex) {
+      for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+        addPending(delta.getKey(), delta.getValue().longValue());
+      }
+      logger.warn("Could not write email counters, retrying with the next flush", ex);
+    }
+  }
+
+  public long getCount(Email.MailStatus status) {
+    return get(statusNames[status.ordinal()]);
+  }
+
+  public long getCount(Email.MailStatus status, Email.Priority priority) {
+    return get(priorityNames[status.ordinal()][priority.ordinal()]);
+  }
+
+  /**
+   * Get the count of a domain, 0 if this node counts all domains it can by name and the domain is not one of them.
+   */
+  public long getDomainCount(Email.MailStatus status, String domain) {
+    final String[] names = domainNames.get(domain.toLowerCase());
+    if (names == null && domainNames.size() >= maxDomains) {
+      return 0;
+    }
+    return get(names == null ? getName(status, DOMAIN, domain.toLowerCase()) : names[status.ordinal()]);
+  }
+
+  /**
+   * Get the count of the domains past the max domains, which are not counted by name.
+   */
+  public long getOtherDomainCount(Email.MailStatus status) {
+    return get(otherDomainNames[status.ordinal()]);
+  }
+
+  public long getRelayCount(Email.MailStatus status, String relay) {
+    return get(getName(status, "relay", relay));
+  }
+
+  /**
+   * All counters by name, as of the snapshot.
+   */
+  public Map<String, Long> getCounts() {
+    Map<String, Long> counts = new HashMap<String, Long>(getSnapshot());
+    for (Map.Entry<String, AtomicLong> delta : pending.entrySet()) {
+      final long value = delta.getValue().get();
+      if (value != 0) {
+        final Long count = counts.get(delta.getKey());
+        counts.put(delta.getKey(), (count == null ? 0 : count.longValue()) + value);
+      }
+    }
+    return Collections.unmodifiableMap(counts);
+  }
+
+  private long get(String name) {
+    final Long count = getSnapshot().get(name);
+    final AtomicLong delta = pending.get(name);
+    return Math.max(0, (count == null ? 0 : count.longValue()) + (delta == null ? 0 : delta.get()));
+  }
+
+  private synchronized Map<String, Long> getSnapshot() {
+    final long now = System.currentTimeMillis();
+    if (snapshotAt == 0 || now - snapshotAt >= cacheDurationInMillis) {
+      try {
+        snapshot = store.getAll();
+        snapshotAt = now;
+      }
+      catch (RuntimeException ex) {
+        // The last snapshot is better than none
+        logger.warn("Could not read email counters", ex);
+      }
+    }
+    return snapshot;
+  }
+
+  private void add(Email email, Email.MailStatus status, String relay, long delta) {
+    if (status == null) {
+      return;
+    }
+    final int index = status.ordinal();
+    addPending(statusNames[index], delta);
+    if (email.getPriority() != null) {
+      addPending(priorityNames[index][email.getPriority().ordinal()], delta);
+    }
+    addDomains(email, index, delta);
+    // Emails move on from other statuses, so only counting the final ones by relay keeps the counts right
+    if (relay != null && (Email.MailStatus.SENT.equals(status) || Email.MailStatus.FAILED.equals(status))) {
+      addPending(getRelayNames(relay)[index], delta);
+    }
+  }
+
+  private void addPending(String name, long delta) {
+    AtomicLong pendingDelta = pending.get(name);
+    if (pendingDelta == null) {
+      pending.putIfAbsent(name, new AtomicLong());
+      pendingDelta = pending.get(name);
+    }
+    pendingDelta.addAndGet(delta);
+  }
+
+  /**
+   * Add to the counter of each distinct recipient domain of the email once, however many of its recipients share it.
+   */
+  private void addDomains(Email email, int index, long delta) {
+    final Set<String> counted = countedDomains.get();
+    try {
+      addDomains(email.getTo(), index, delta, counted);
+      addDomains(email.getCc(), index, delta, counted);
+      addDomains(email.getBcc(), index, delta, counted);
+    }
+    finally {
+      counted.clear();
+    }
+  }
+
+  private void addDomains(Collection<String> addresses, int index, long delta, Set<String> counted) {
+    if (addresses == null) {
+      return;
+    }
+    for (String address : addresses) {
+      if (address == null) {
+        continue;
+      }
+      final String name = getDomainNames(DomainThrottle.getDomain(address))[index];
+      if (counted.add(name)) {
+        addPending(name, delta);
+      }
+    }
+  }
+
+  private String[] getDomainNames(String domain) {
+    final String[] names = domainNames.get(domain);
+    if (names != null) {
+      return names;
+    }
+    // Racing threads may go a few over the max, which still bounds the counters
+    if (domainNames.size() >= maxDomains) {
+      return otherDomainNames;
+    }
+    return putNames(domainNames, DOMAIN, domain);
+  }
+
+  private String[] getRelayNames(String relay) {
+    final String[] names = relayNames.get(relay);
+    // Relays are configured, so there are few enough of them to count each by name
+    return names == null ? putNames(relayNames, "relay", relay) : names;
+  }
+
+  private static String[] putNames(ConcurrentMap<String, String[]> namesByValue, String split, String value) {
+    final String[] names = getNames(split, value);
+    final String[] current = namesByValue.putIfAbsent(value, names);
+    return current == null ? names : current;
+  }
+
+  /**
+   * The names of the counters of a split value for every status, by the ordinal of the status.
+   */
+  private static String[] getNames(String split, String value) {
+    String[] names = new String[STATUSES.length];
+    for (Email.MailStatus status : STATUSES) {
+      names[status.ordinal()] = getName(status, split, value);
+    }
+    return names;
+  }
+
+  private static String getName(Email.MailStatus status) {
+    return STATUS_PREFIX + status.name();
+  }
+
+  private static String getName(Email.MailStatus status, String split, String value) {
+    return STATUS_PREFIX + status.name() + '.' + split + '.' + value;
+  }
+}
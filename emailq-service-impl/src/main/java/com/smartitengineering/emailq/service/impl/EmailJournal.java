@@ -0,0 +1,542 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.emailq.domain.Email;
+import com.smartitengineering.emailq.domain.Email.Attachments;
+import com.smartitengineering.emailq.domain.Email.Message;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append only journal of emails on local disk, so that saving an email only takes a local append and survives the
+ * repository being slow or down. Emails are appended to the active segment file; appends are made durable in groups,
+ * one fsync covering every append waiting on it. {@link #replay(Replayer)} seals the active segment once its oldest
+ * email is older than the max replay delay, and hands the emails of the sealed segments, oldest first and a batch at a
+ * time, to a replayer that moves them into the repository; a segment is deleted once all of its emails are moved.
+ * <p>
+ * Emails are journaled with their ids already assigned and the number of emails of a segment moved so far is recorded
+ * after each batch, so a replay goes on where the last one stopped. A batch moved just before a crash, with its
+ * progress not yet recorded, is handed out again after a restart; the replayer skips the emails of it that are stored
+ * already, see {@link EmailJournalReplayer}. A record torn by a crash fails its checksum and ends the segment.
+ * </p>
+ * @author imyousuf
+ */
+public class EmailJournal {
+
+  /**
+   * Moves journaled emails into the repository.
+   */
+  public interface Replayer {
+
+    /**
+     * @param emails Emails with their ids assigned, some of which may have been moved already
+     * @throws Exception If the emails could not be moved, they will be handed out again at the next replay
+     */
+    void replay(List<Email> emails) throws Exception;
+  }
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String OFFSET_SUFFIX = ".offset";
+  private static final int RECORD_HEADER_SIZE = 12;
+  private static final byte FORMAT_VERSION = 1;
+  private final File directory;
+  private final long segmentSizeInBytes;
+  private final int replayBatchSize;
+  private final long maxReplayDelayInMillis;
+  private final Object syncLock = new Object();
+  private long nextSegmentNumber;
+  private RandomAccessFile activeFile;
+  private FileChannel activeChannel;
+  private long written;
+  private long durable;
+  /**
+   * When the first email was appended to the active segment.
+   */
+  private long activeSince;
+  private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+  public EmailJournal(File directory, long segmentSizeInBytes, int replayBatchSize, long maxReplayDelayInMillis)
+      throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create journal directory " + directory);
+    }
+    this.directory = directory;
+    this.segmentSizeInBytes = segmentSizeInBytes;
+    this.replayBatchSize = replayBatchSize;
+    this.maxReplayDelayInMillis = maxReplayDelayInMillis;
+    // Segments left by an earlier run stay sealed and get replayed, this run appends to new ones
+    for (File segment : getSegments()) {
+      nextSegmentNumber = Math.max(nextSegmentNumber, getSegmentNumber(segment) + 1);
+    }
+  }
+
+  /**
+   * Append an email, returning once it is durable.
+   */
+  public void append(Email email) throws IOException {
+    append(Collections.singletonList(email));
+  }
+
+  /**
+   * Append emails to the same segment, returning once all of them are durable.
+   */
+  public void append(List<Email> emails) throws IOException {
+    List<ByteBuffer> records = new ArrayList<ByteBuffer>(emails.size());
+    for (Email email : emails) {
+      final byte[] payload = encode(email);
+      final CRC32 crc = new CRC32();
+      crc.update(payload);
+      final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+      record.putInt(payload.length).putLong(crc.getValue()).put(payload);
+      record.flip();
+      records.add(record);
+    }
+    final FileChannel channel;
+    final long position;
+    synchronized (this) {
+      if (activeChannel == null || written >= segmentSizeInBytes) {
+        roll();
+      }
+      if (written == 0) {
+        activeSince = System.currentTimeMillis();
+      }
+      for (ByteBuffer record : records) {
+        while (record.hasRemaining()) {
+          activeChannel.write(record);
+        }
+        written += record.limit();
+      }
+      channel = activeChannel;
+      position = written;
+    }
+    sync(channel, position);
+  }
+
+  /**
+   * Seal the active segment if its oldest email is older than the max replay delay, and replay every sealed segment,
+   * oldest first. Replay stops at the first batch the replayer fails on.
+   * @return The number of emails replayed
+   */
+  public int replay(Replayer replayer) throws IOException {
+    synchronized (this) {
+      // Sealing a young segment on every replay would leave a segment file per replay interval
+      if (activeChannel != null && written > 0 && System.currentTimeMillis() - activeSince >= maxReplayDelayInMillis) {
+        roll();
+      }
+    }
+    int replayed = 0;
+    for (File segment : getSegments()) {
+      synchronized (this) {
+        if (activeChannel != null && getSegmentNumber(segment) == nextSegmentNumber - 1) {
+          break;
+        }
+      }
+      final File offsetFile = getOffsetFile(segment);
+      int offset = readOffset(offsetFile);
+      SegmentReader reader = new SegmentReader(segment);
+      try {
+        reader.skip(offset);
+        List<Email> batch = new ArrayList<Email>(replayBatchSize);
+        while (reader.read(batch, replayBatchSize) > 0) {
+          try {
+            replayer.replay(batch);
+          }
+          catch (Exception ex) {
+            logger.warn("Could not replay journal, will retry", ex);
+            return replayed;
+          }
+          replayed += batch.size();
+          offset += batch.size();
+          writeOffset(offsetFile, offset);
+          batch = new ArrayList<Email>(replayBatchSize);
+        }
+      }
+      finally {
+        reader.close();
+      }
+      if (!segment.delete()) {
+        logger.warn("Could not delete replayed journal segment " + segment);
+      }
+      else if (offsetFile.exists() && !offsetFile.delete()) {
+        logger.warn("Could not delete offset of replayed journal segment " + segment);
+      }
+    }
+    return replayed;
+  }
+
+  public synchronized void close() throws IOException {
+    if (activeFile != null) {
+      activeChannel.force(false);
+      activeFile.close();
+      activeFile = null;
+      activeChannel = null;
+    }
+  }
+
+  /**
+   * Group commit; an append whose bytes were covered by the fsync of another append while it waited does not need one
+   * of its own.
+   */
+  private void sync(FileChannel channel, long position) throws IOException {
+    synchronized (syncLock) {
+      final long target;
+      synchronized (this) {
+        // A rolled segment is forced before it is closed
+        if (channel != activeChannel || durable >= position) {
+          return;
+        }
+        target = written;
+      }
+      try {
+        channel.force(false);
+      }
+      catch (ClosedChannelException ex) {
+        return;
+      }
+      synchronized (this) {
+        if (channel == activeChannel) {
+          durable = Math.max(durable, target);
+        }
+      }
+    }
+  }
+
+  private void roll() throws IOException {
+    if (activeFile != null) {
+      activeChannel.force(false);
+      activeFile.close();
+    }
+    File segment = new File(directory, new StringBuilder(SEGMENT_PREFIX).append(String.format("%020d",
+                                                                                                nextSegmentNumber++)).
+        append(SEGMENT_SUFFIX).toString());
+    activeFile = new RandomAccessFile(segment, "rw");
+    activeChannel = activeFile.getChannel();
+    written = 0;
+    durable = 0;
+  }
+
+  private List<File> getSegments() {
+    File[] segments = directory.listFiles(new FilenameFilter() {
+
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    if (segments == null) {
+      return new ArrayList<File>();
+    }
+    // Segment numbers are zero padded so names sort in the order segments were written
+    Arrays.sort(segments);
+    return Arrays.asList(segments);
+  }
+
+  private File getOffsetFile(File segment) {
+    String name = segment.getName();
+    return new File(directory, new StringBuilder(name.substring(0, name.length() - SEGMENT_SUFFIX.length())).append(
+        OFFSET_SUFFIX).toString());
+  }
+
+  /**
+   * @return The number of emails of the segment moved already, 0 if none or the offset can not be read
+   */
+  private int readOffset(File offsetFile) {
+    if (!offsetFile.exists()) {
+      return 0;
+    }
+    try {
+      DataInputStream input = new DataInputStream(new FileInputStream(offsetFile));
+      try {
+        return input.readInt();
+      }
+      finally {
+        input.close();
+      }
+    }
+    catch (IOException ex) {
+      // The replayer skips the emails stored already, so starting over only costs time
+      logger.warn("Could not read journal offset " + offsetFile + ", replaying its segment from the start", ex);
+      return 0;
+    }
+  }
+
+  /**
+   * Record the number of emails of a segment moved, written aside and renamed over the offset so that a crash leaves
+   * either the old or the new offset.
+   */
+  private void writeOffset(File offsetFile, int offset) throws IOException {
+    File tempFile = new File(directory, offsetFile.getName() + ".tmp");
+    RandomAccessFile output = new RandomAccessFile(tempFile, "rw");
+    try {
+      output.setLength(0);
+      output.writeInt(offset);
+      output.getFD().sync();
+    }
+    finally {
+      output.close();
+    }
+    if (!tempFile.renameTo(offsetFile)) {
+      throw new IOException("Could not write journal offset " + offsetFile);
+    }
+  }
+
+  private static long getSegmentNumber(File segment) {
+    String name = segment.getName();
+    return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  /**
+   * Reads the records of a segment one at a time, so that replaying a segment holds no more than a batch of its emails
+   * in memory however large the segment is.
+   */
+  private class SegmentReader {
+
+    private final File segment;
+    private final DataInputStream input;
+
+    SegmentReader(File segment) throws IOException {
+      this.segment = segment;
+      this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+    }
+
+    /**
+     * Skip the given number of records, those moved already.
+     */
+    void skip(int count) throws IOException {
+      int skipped = 0;
+      while (skipped < count && next() != null) {
+        ++skipped;
+      }
+    }
+
+    /**
+     * Read up to max emails into the given list.
+     * @return The number of emails read, 0 at the end of the segment
+     */
+    int read(List<Email> emails, int max) throws IOException {
+      byte[] payload;
+      while (emails.size() < max && (payload = next()) != null) {
+        emails.add(decode(new ByteArrayInputStream(payload)));
+      }
+      return emails.size();
+    }
+
+    /**
+     * @return The payload of the next record, null at the end of the segment or at a torn or corrupt record
+     */
+    private byte[] next() throws IOException {
+      final int length;
+      final long checksum;
+      try {
+        length = input.readInt();
+        checksum = input.readLong();
+      }
+      catch (EOFException ex) {
+        return null;
+      }
+      if (length < 0 || length > segment.length()) {
+        logger.warn("Corrupt record in journal segment " + segment + ", skipping the rest of it");
+        return null;
+      }
+      byte[] payload = new byte[length];
+      try {
+        input.readFully(payload);
+      }
+      catch (EOFException ex) {
+        logger.warn("Torn record at the end of journal segment " + segment);
+        return null;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if (crc.getValue() != checksum) {
+        logger.warn("Corrupt record in journal segment " + segment + ", skipping the rest of it");
+        return null;
+      }
+      return payload;
+    }
+
+    void close() throws IOException {
+      input.close();
+    }
+  }
+
+  static byte[] encode(Email email) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    output.writeByte(FORMAT_VERSION);
+    writeString(output, email.getId());
+    writeString(output, email.getPriority() == null ? null : email.getPriority().name());
+    writeString(output, email.getSubject());
+    writeString(output, email.getFrom());
+    writeStrings(output, email.getTo());
+    writeStrings(output, email.getCc());
+    writeStrings(output, email.getBcc());
+    Message message = email.getMessage();
+    output.writeBoolean(message != null);
+    if (message != null) {
+      writeString(output, message.getMsgType() == null ? null : message.getMsgType().name());
+      writeString(output, message.getMsgBody());
+    }
+    Collection<Attachments> attachments = email.getAttachments();
+    output.writeInt(attachments == null ? -1 : attachments.size());
+    if (attachments != null) {
+      for (Attachments attachment : attachments) {
+        writeString(output, attachment.getName());
+        writeString(output, attachment.getDescription());
+        writeString(output, attachment.getDisposition());
+        writeString(output, attachment.getContentType());
+        writeBytes(output, attachment.getBlob());
+      }
+    }
+    writeString(output, email.getTemplateId());
+    Collection<Email.TemplateVariables> variables = email.getTemplateVariables();
+    output.writeInt(variables == null ? -1 : variables.size());
+    if (variables != null) {
+      for (Email.TemplateVariables variable : variables) {
+        writeString(output, variable.getName());
+        writeString(output, variable.getValue());
+      }
+    }
+    output.writeLong(email.getSendAfter() == null ? -1 : email.getSendAfter().getTime());
+    output.flush();
+    return bytes.toByteArray();
+  }
+
+  static Email decode(InputStream stream) throws IOException {
+    DataInputStream input = new DataInputStream(stream);
+    final byte version = input.readByte();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("Unknown journal record format " + version);
+    }
+    Email email = new Email();
+    email.setId(readString(input));
+    String priority = readString(input);
+    email.setPriority(priority == null ? null : Email.Priority.valueOf(priority));
+    email.setSubject(readString(input));
+    email.setFrom(readString(input));
+    email.setTo(readStrings(input));
+    email.setCc(readStrings(input));
+    email.setBcc(readStrings(input));
+    if (input.readBoolean()) {
+      Message message = new Message();
+      String msgType = readString(input);
+      message.setMsgType(msgType == null ? null : Message.MsgType.valueOf(msgType));
+      message.setMsgBody(readString(input));
+      email.setMessage(message);
+    }
+    final int attachmentCount = input.readInt();
+    if (attachmentCount >= 0) {
+      List<Attachments> attachments = new ArrayList<Attachments>(attachmentCount);
+      for (int i = 0; i < attachmentCount; ++i) {
+        Attachments attachment = new Attachments();
+        attachment.setName(readString(input));
+        attachment.setDescription(readString(input));
+        attachment.setDisposition(readString(input));
+        attachment.setContentType(readString(input));
+        attachment.setBlob(readBytes(input));
+        attachments.add(attachment);
+      }
+      email.setAttachments(attachments);
+    }
+    email.setTemplateId(readString(input));
+    final int variableCount = input.readInt();
+    if (variableCount >= 0) {
+      List<Email.TemplateVariables> variables = new ArrayList<Email.TemplateVariables>(variableCount);
+      for (int i = 0; i < variableCount; ++i) {
+        Email.TemplateVariables variable = new Email.TemplateVariables();
+        variable.setName(readString(input));
+        variable.setValue(readString(input));
+        variables.add(variable);
+      }
+      email.setTemplateVariables(variables);
+    }
+    final long sendAfter = input.readLong();
+    email.setSendAfter(sendAfter < 0 ? null : new Date(sendAfter));
+    return email;
+  }
+
+  private static void writeString(DataOutputStream output, String string) throws IOException {
+    writeBytes(output, string == null ? null : string.getBytes("UTF-8"));
+  }
+
+  private static String readString(DataInputStream input) throws IOException {
+    byte[] bytes = readBytes(input);
+    return bytes == null ? null : new String(bytes, "UTF-8");
+  }
+
+  private static void writeStrings(DataOutputStream output, Collection<String> strings) throws IOException {
+    output.writeInt(strings == null ? -1 : strings.size());
+    if (strings != null) {
+      for (String string : strings) {
+        writeString(output, string);
+      }
+    }
+  }
+
+  private static List<String> readStrings(DataInputStream input) throws IOException {
+    final int size = input.readInt();
+    if (size < 0) {
+      return null;
+    }
+    List<String> strings = new ArrayList<String>(size);
+    for (int i = 0; i < size; ++i) {
+      strings.add(readString(input));
+    }
+    return strings;
+  }
+
+  private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+    output.writeInt(bytes == null ? -1 : bytes.length);
+    if (bytes != null) {
+      output.write(bytes);
+    }
+  }
+
+  private static byte[] readBytes(DataInputStream input) throws IOException {
+    final int length = input.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    input.readFully(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.dao.common.CommonDao;
+import com.smartitengineering.emailq.domain.Email;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Moves journaled emails into the repository, skipping those stored already by a replay that stopped before its
+ * progress was recorded. Emails are stored under the ids they were journaled with, so an email replayed again is
+ * found by its id and stored once.
+ * @author imyousuf
+ */
+public class EmailJournalReplayer implements EmailJournal.Replayer {
+
+  private final CommonDao<Email, String> commonDao;
+
+  public EmailJournalReplayer(CommonDao<Email, String> commonDao) {
+    this.commonDao = commonDao;
+  }
+
+  public void replay(List<Email> emails) throws Exception {
+    List<String> ids = new ArrayList<String>(emails.size());
+    for (Email email : emails) {
+      ids.add(email.getId());
+    }
+    Set<String> storedIds = new HashSet<String>();
+    Collection<Email> stored = commonDao.getByIds(ids);
+    if (stored != null) {
+      for (Email email : stored) {
+        storedIds.add(email.getId());
+      }
+    }
+    List<Email> unsaved = new ArrayList<Email>(emails.size());
+    for (Email email : emails) {
+      if (!storedIds.contains(email.getId())) {
+        prepare(email);
+        unsaved.add(email);
+      }
+    }
+    if (unsaved.isEmpty()) {
+      return;
+    }
+    try {
+      commonDao.save(unsaved.toArray(new Email[unsaved.size()]));
+    }
+    catch (RuntimeException ex) {
+      // They are prepared again at the next replay
+      for (Email email : unsaved) {
+        unprepare(email);
+      }
+      throw ex;
+    }
+    for (Email email : unsaved) {
+      saved(email);
+    }
+  }
+
+  /**
+   * Prepare an email not stored yet for the queue, before it is saved.
+   */
+  protected void prepare(Email email) {
+  }
+
+  /**
+   * Undo the preparation of an email that could not be saved.
+   */
+  protected void unprepare(Email email) {
+  }
+
+  /**
+   * Called for each email once it is saved.
+   */
+  protected void saved(Email email) {
+  }
+}
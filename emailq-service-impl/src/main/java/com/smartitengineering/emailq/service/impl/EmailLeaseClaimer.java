@@ -0,0 +1,205 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.dao.common.CommonDao;
+import com.smartitengineering.dao.common.queryparam.MatchMode;
+import com.smartitengineering.dao.common.queryparam.QueryParameter;
+import com.smartitengineering.dao.common.queryparam.QueryParameterFactory;
+import com.smartitengineering.emailq.domain.Email;
+import com.smartitengineering.emailq.service.LeaseStore;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Claims emails for a sender node before they are sent so that several nodes can drain the same queue without sending
+ * an email twice. A claimed email is IN_FLIGHT with the claiming node as its owner till its lease expires; an email
+ * whose lease expired, e.g. because its owner crashed, is claimable again.
+ * <p>
+ * The repository does not offer a compare and set, so the lease itself is taken by a compare and set on the lease
+ * store; of the nodes racing for an email only the one that gets the lease claims it. The claim is then written to the
+ * email so that the queries of every node skip it. The lease of a sent email is left to expire rather than given up,
+ * so that a node acting on a read from before the claim can not take it while the sent status is still being written.
+ * </p>
+ * @author imyousuf
+ */
+public class EmailLeaseClaimer {
+
+  private final CommonDao<Email, String> commonDao;
+  private final LeaseStore leaseStore;
+  private final String owner;
+  private final long leaseInMillis;
+  private final EmailCounters counters;
+  private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+  public EmailLeaseClaimer(CommonDao<Email, String> commonDao, LeaseStore leaseStore, String owner,
+                           long leaseInMillis) {
+    this(commonDao, leaseStore, owner, leaseInMillis, null);
+  }
+
+  /**
+   * @param counters Where emails claimed are moved to the IN_FLIGHT count, null to not count them
+   */
+  public EmailLeaseClaimer(CommonDao<Email, String> commonDao, LeaseStore leaseStore, String owner,
+                           long leaseInMillis, EmailCounters counters) {
+    this.commonDao = commonDao;
+    this.leaseStore = leaseStore;
+    this.owner = owner;
+    this.leaseInMillis = leaseInMillis;
+    this.counters = counters;
+  }
+
+  public String getOwner() {
+    return owner;
+  }
+
+  /**
+   * Query for emails that are either waiting to be sent or claimed by a lease that has expired.
+   */
+  public QueryParameter getClaimableParam() {
+    return QueryParameterFactory.getDisjunctionParam(
+        QueryParameterFactory.getStringLikePropertyParam(Email.PROPERTY_MAILSTATUS, Email.MailStatus.NOT_SENT.name(),
+                                                         MatchMode.EXACT),
+        QueryParameterFactory.getConjunctionParam(
+        QueryParameterFactory.getStringLikePropertyParam(Email.PROPERTY_MAILSTATUS, Email.MailStatus.IN_FLIGHT.name(),
+                                                         MatchMode.EXACT),
+        QueryParameterFactory.getLesserThanPropertyParam(Email.PROPERTY_LEASEEXPIRY, new Date())));
+  }
+
+  /**
+   * Query for emails that are due to be attempted, i.e. not backing off after a failed attempt. Emails queued before
+   * the due time was kept have none and are due right away, as {@link #isClaimable(Email, Date)} has it.
+   */
+  public QueryParameter getDueParam() {
+    return QueryParameterFactory.getDisjunctionParam(
+        QueryParameterFactory.getLesserThanEqualToPropertyParam(Email.PROPERTY_NEXTATTEMPTTIME, new Date()),
+        QueryParameterFactory.getIsNullPropertyParam(Email.PROPERTY_NEXTATTEMPTTIME));
+  }
+
+  /**
+   * Claim the given emails for this node.
+   * @param candidates Emails to claim, as read from the queue
+   * @return The freshly read copies of the emails this node now owns
+   */
+  public List<Email> claim(Collection<Email> candidates) {
+    if (candidates == null || candidates.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<String> ids = new ArrayList<String>(candidates.size());
+    for (Email candidate : candidates) {
+      ids.add(candidate.getId());
+    }
+    return claimByIds(ids);
+  }
+
+  /**
+   * Claim the emails with the given ids for this node.
+   * @return The freshly read copies of the emails this node now owns, in the order of the ids
+   */
+  public List<Email> claimByIds(List<String> candidateIds) {
+    if (candidateIds == null || candidateIds.isEmpty()) {
+      return Collections.emptyList();
+    }
+    // The query result may be stale, so decide on the stored state
+    final Date now = new Date();
+    final Date leaseExpiry = new Date(now.getTime() + leaseInMillis);
+    final Map<String, Email> stored = read(candidateIds);
+    List<Email> claimed = new ArrayList<Email>(stored.size());
+    List<Email.MailStatus> previousStatuses = new ArrayList<Email.MailStatus>(stored.size());
+    int lost = 0;
+    for (String id : candidateIds) {
+      // Removed so that an id given twice is claimed once
+      Email email = stored.remove(id);
+      if (email == null || !isClaimable(email, now)) {
+        continue;
+      }
+      if (!leaseStore.acquire(id, owner, leaseExpiry.getTime(), now.getTime())) {
+        lost++;
+        continue;
+      }
+      previousStatuses.add(email.getMailStatus());
+      email.setMailStatus(Email.MailStatus.IN_FLIGHT);
+      email.setClaimOwner(owner);
+      email.setLeaseExpiry(leaseExpiry);
+      claimed.add(email);
+    }
+    if (lost > 0 && logger.isInfoEnabled()) {
+      logger.info(new StringBuilder("Lost claim of ").append(lost).append(" emails to other nodes").toString());
+    }
+    if (claimed.isEmpty()) {
+      return claimed;
+    }
+    try {
+      commonDao.update(claimed.toArray(new Email[claimed.size()]));
+    }
+    catch (RuntimeException ex) {
+      // Nothing was claimed as far as the queries of other nodes can tell, so let them have the emails
+      for (Email email : claimed) {
+        leaseStore.release(email.getId(), owner);
+      }
+      throw ex;
+    }
+    if (counters != null) {
+      for (int i = 0; i < claimed.size(); ++i) {
+        counters.statusChanged(claimed.get(i), previousStatuses.get(i), null);
+      }
+    }
+    return claimed;
+  }
+
+  /**
+   * Give up the claim of an email that was not sent, making it claimable right away. The caller is responsible for
+   * writing the email back.
+   */
+  public void release(Email email) {
+    email.setMailStatus(Email.MailStatus.NOT_SENT);
+    email.setClaimOwner(null);
+    email.setLeaseExpiry(null);
+    leaseStore.release(email.getId(), owner);
+  }
+
+  protected boolean isClaimable(Email email, Date now) {
+    if (email.getNextAttemptTime() != null && email.getNextAttemptTime().after(now)) {
+      return false;
+    }
+    if (Email.MailStatus.NOT_SENT.equals(email.getMailStatus())) {
+      return true;
+    }
+    return Email.MailStatus.IN_FLIGHT.equals(email.getMailStatus()) && (email.getLeaseExpiry() == null || email.
+        getLeaseExpiry().before(now));
+  }
+
+  private Map<String, Email> read(List<String> ids) {
+    Collection<Email> emails = commonDao.getByIds(ids);
+    Map<String, Email> emailsById = new HashMap<String, Email>();
+    if (emails != null) {
+      for (Email email : emails) {
+        emailsById.put(email.getId(), email);
+      }
+    }
+    return emailsById;
+  }
+}
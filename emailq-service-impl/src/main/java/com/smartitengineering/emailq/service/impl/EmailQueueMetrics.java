@@ -0,0 +1,135 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.emailq.service.MetricsRegistry;
+import com.smartitengineering.emailq.service.MetricsRegistry.Counter;
+import com.smartitengineering.emailq.service.MetricsRegistry.Histogram;
+
+/**
+ * The metrics of the email queue, looked up from the registry once so that updating them on the sending path is
+ * nothing but the update itself. Durations are recorded in microseconds.
+ * @author imyousuf
+ */
+public class EmailQueueMetrics {
+
+  private static final String[] REPLY_CLASSES = {"noReply", "1xx", "2xx", "3xx", "4xx", "5xx"};
+  private final MetricsRegistry registry;
+  private final Counter enqueued;
+  private final Counter rejected;
+  private final Counter sent;
+  private final Counter[] failedByReplyClass = new Counter[REPLY_CLASSES.length];
+  private final Histogram dispatchDuration;
+  private final Histogram sendMutexWait;
+  private final Histogram sendMutexHeld;
+
+  public EmailQueueMetrics(MetricsRegistry registry) {
+    this.registry = registry;
+    enqueued = registry.counter("emails.enqueued");
+    rejected = registry.counter("emails.rejected");
+    sent = registry.counter("emails.sent");
+    for (int i = 0; i < REPLY_CLASSES.length; ++i) {
+      failedByReplyClass[i] = registry.counter("emails.failed." + REPLY_CLASSES[i]);
+    }
+    dispatchDuration = registry.histogram("dispatch.durationMicros");
+    sendMutexWait = registry.histogram("sendMutex.waitMicros");
+    sendMutexHeld = registry.histogram("sendMutex.heldMicros");
+  }
+
+  public MetricsRegistry getRegistry() {
+    return registry;
+  }
+
+  public void enqueued() {
+    enqueued.increment();
+  }
+
+  public void rejected() {
+    rejected.increment();
+  }
+
+  public void sent() {
+    sent.increment();
+  }
+
+  /**
+   * @param replyClass The first digit of the SMTP reply the send failed with, 0 if there was none
+   */
+  public void failed(int replyClass) {
+    failedByReplyClass[replyClass > 0 && replyClass < REPLY_CLASSES.length ? replyClass : 0].increment();
+  }
+
+  public Histogram getDispatchDuration() {
+    return dispatchDuration;
+  }
+
+  public Histogram getSendMutexWait() {
+    return sendMutexWait;
+  }
+
+  public Histogram getSendMutexHeld() {
+    return sendMutexHeld;
+  }
+
+  public RelayMetrics getRelayMetrics(String relayName) {
+    return new RelayMetrics(registry, relayName);
+  }
+
+  /**
+   * Send latency through a relay: connecting, the DATA transaction of a message and the whole send including building
+   * the message.
+   */
+  public static class RelayMetrics {
+
+    static final RelayMetrics NONE = new RelayMetrics();
+    private final Histogram connect;
+    private final Histogram data;
+    private final Histogram total;
+
+    private RelayMetrics() {
+      Histogram none = new Histogram() {
+
+        public void record(long value) {
+        }
+      };
+      connect = none;
+      data = none;
+      total = none;
+    }
+
+    RelayMetrics(MetricsRegistry registry, String relayName) {
+      final String prefix = "relay." + relayName + ".";
+      connect = registry.histogram(prefix + "connectMicros");
+      data = registry.histogram(prefix + "dataMicros");
+      total = registry.histogram(prefix + "totalMicros");
+    }
+
+    public Histogram getConnect() {
+      return connect;
+    }
+
+    public Histogram getData() {
+      return data;
+    }
+
+    public Histogram getTotal() {
+      return total;
+    }
+  }
+}
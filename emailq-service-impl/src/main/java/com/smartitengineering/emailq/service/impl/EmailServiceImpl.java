@@ -24,19 +24,56 @@ import com.google.inject.name.Named;
 import com.smartitengineering.cms.repo.dao.impl.ExtendedReadDao;
 import com.smartitengineering.dao.common.CommonDao;
 import com.smartitengineering.dao.common.queryparam.MatchMode;
+import com.smartitengineering.dao.common.queryparam.Order;
 import com.smartitengineering.dao.common.queryparam.QueryParameter;
 import com.smartitengineering.dao.common.queryparam.QueryParameterFactory;
+import com.smartitengineering.emailq.domain.AttachmentBlob;
+import com.smartitengineering.emailq.domain.AttachmentChunk;
 import com.smartitengineering.emailq.domain.Email;
+import com.smartitengineering.emailq.domain.EmailTemplate;
 import com.smartitengineering.emailq.domain.Email.Attachments;
 import com.smartitengineering.emailq.domain.Email.Message.MsgType;
+import com.smartitengineering.emailq.service.CounterStore;
+import com.smartitengineering.emailq.service.EmailPage;
 import com.smartitengineering.emailq.service.EmailService;
+import com.smartitengineering.emailq.service.EmailSummary;
+import com.smartitengineering.emailq.service.LeaseStore;
 import com.smartitengineering.emailq.service.Emails;
+import com.smartitengineering.emailq.service.MetricsRegistry;
+import com.smartitengineering.emailq.service.SaveResult;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
 import javax.mail.Address;
@@ -45,12 +82,12 @@ import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.util.ByteArrayDataSource;
+import javax.management.ObjectName;
 import org.apache.commons.lang.StringUtils;
 import org.quartz.DateIntervalTrigger;
 import org.quartz.Job;
@@ -73,35 +110,488 @@ import org.slf4j.LoggerFactory;
 @Singleton
 public class EmailServiceImpl implements EmailService {
 
+  private static final long FEED_POLL_MILLIS = 100;
+  private static final String[] RENDER_IGNORED_HEADERS = new String[]{"Bcc"};
+  /**
+   * Emails whose domains will not be sendable for longer than this are handed back to the queue instead of being held
+   * by the dispatch.
+   */
+  private static final long MAX_PARK_MILLIS = 5000;
+
   @Inject
   private CommonDao<Email, String> commonDao;
   @Inject
   private ExtendedReadDao<Email, String> extendedReadDao;
+  @Inject(optional = true)
+  private CommonDao<AttachmentBlob, String> attachmentBlobDao;
+  @Inject(optional = true)
+  private CommonDao<AttachmentChunk, String> attachmentChunkDao;
+  @Inject(optional = true)
+  private CommonDao<EmailTemplate, String> templateDao;
   @Inject
   private Session session;
   @Inject(optional = true)
+  @Named("mailSenderSmtpRelays")
+  private List<SmtpRelay> relays;
+  @Inject(optional = true)
   @Named("mailSenderCronDelayInSeonds")
   private Integer period = new Integer(120);
   @Inject(optional = true)
   @Named("mailSenderCronEnabled")
   private Boolean cronEnabled = false;
+  @Inject(optional = true)
+  @Named("mailSenderMaxMessagesPerConnection")
+  private Integer maxMessagesPerConnection = new Integer(100);
+  @Inject(optional = true)
+  @Named("mailSenderPoolSize")
+  private Integer poolSize = new Integer(4);
+  @Inject(optional = true)
+  @Named("mailSenderPoolIdleTimeoutInSeconds")
+  private Integer poolIdleTimeout = new Integer(60);
+  @Inject(optional = true)
+  @Named("mailSenderPageSize")
+  private Integer pageSize = new Integer(100);
+  @Inject(optional = true)
+  @Named("mailSenderMemoryBudgetInMB")
+  private Integer memoryBudgetInMB = new Integer(64);
+  @Inject(optional = true)
+  @Named("mailSenderStatusFlushSize")
+  private Integer statusFlushSize = new Integer(50);
+  @Inject(optional = true)
+  @Named("mailSenderStatusFlushIntervalInMillis")
+  private Integer statusFlushInterval = new Integer(1000);
+  @Inject(optional = true)
+  @Named("mailSenderWakeupOnSave")
+  private Boolean wakeupOnSave = true;
+  @Inject(optional = true)
+  @Named("mailSenderWakeupDebounceInMillis")
+  private Integer wakeupDebounce = new Integer(250);
+  @Inject(optional = true)
+  @Named("mailSenderNodeId")
+  private String nodeId;
+  @Inject(optional = true)
+  @Named("mailSenderClaimLeaseInSeconds")
+  private Integer claimLease = new Integer(300);
+  @Inject(optional = true)
+  @Named("mailSenderMaxSendAttempts")
+  private Integer maxSendAttempts = new Integer(8);
+  @Inject(optional = true)
+  @Named("mailSenderRetryInitialBackoffInSeconds")
+  private Integer retryInitialBackoff = new Integer(60);
+  @Inject(optional = true)
+  @Named("mailSenderRetryMaxBackoffInSeconds")
+  private Integer retryMaxBackoff = new Integer(6 * 60 * 60);
+  @Inject(optional = true)
+  @Named("mailSenderHighPriorityWeight")
+  private Integer highPriorityWeight = new Integer(8);
+  @Inject(optional = true)
+  @Named("mailSenderNormalPriorityWeight")
+  private Integer normalPriorityWeight = new Integer(3);
+  @Inject(optional = true)
+  @Named("mailSenderBulkPriorityWeight")
+  private Integer bulkPriorityWeight = new Integer(1);
+  @Inject(optional = true)
+  @Named("mailSenderHighPriorityReservedWorkers")
+  private Integer highPriorityReservedWorkers = new Integer(1);
+  @Inject(optional = true)
+  @Named("mailSenderSaveBatchSize")
+  private Integer saveBatchSize = new Integer(500);
+  @Inject(optional = true)
+  @Named("mailSenderSaveParallelism")
+  private Integer saveParallelism = new Integer(4);
+  @Inject(optional = true)
+  @Named("mailSenderAsyncBufferSize")
+  private Integer asyncBufferSize = new Integer(10000);
+  @Inject(optional = true)
+  @Named("mailSenderAsyncBlockOnFull")
+  private Boolean asyncBlockOnFull = Boolean.FALSE;
+  @Inject(optional = true)
+  @Named("mailSenderAsyncOfferTimeoutInMillis")
+  private Integer asyncOfferTimeout = new Integer(1000);
+  @Inject(optional = true)
+  @Named("mailSenderShutdownTimeoutInSeconds")
+  private Integer shutdownTimeout = new Integer(30);
+  @Inject(optional = true)
+  @Named("mailSenderJournalDirectory")
+  private String journalDirectory;
+  @Inject(optional = true)
+  @Named("mailSenderJournalSegmentSizeInMB")
+  private Integer journalSegmentSizeInMB = new Integer(64);
+  @Inject(optional = true)
+  @Named("mailSenderJournalReplayIntervalInMillis")
+  private Integer journalReplayInterval = new Integer(1000);
+  @Inject(optional = true)
+  @Named("mailSenderJournalMaxReplayDelayInMillis")
+  private Integer journalMaxReplayDelay = new Integer(5000);
+  @Inject(optional = true)
+  @Named("mailSenderPreRenderEnabled")
+  private Boolean preRenderEnabled = Boolean.FALSE;
+  @Inject(optional = true)
+  @Named("mailSenderAttachmentDedupEnabled")
+  private Boolean attachmentDedupEnabled = Boolean.FALSE;
+  @Inject(optional = true)
+  @Named("mailSenderAttachmentCacheSizeInMB")
+  private Integer attachmentCacheSizeInMB = new Integer(32);
+  @Inject(optional = true)
+  @Named("mailSenderAttachmentChunkSizeInKB")
+  private Integer attachmentChunkSizeInKB = new Integer(1024);
+  @Inject(optional = true)
+  @Named("mailSenderTemplateCacheSize")
+  private Integer templateCacheSize = new Integer(256);
+  @Inject(optional = true)
+  @Named("mailSenderCoalesceEnabled")
+  private Boolean coalesceEnabled = Boolean.FALSE;
+  @Inject(optional = true)
+  @Named("mailSenderCoalesceMaxRecipients")
+  private Integer coalesceMaxRecipients = new Integer(50);
+  @Inject(optional = true)
+  @Named("mailSenderDomainThrottleEnabled")
+  private Boolean domainThrottleEnabled = Boolean.FALSE;
+  @Inject(optional = true)
+  @Named("mailSenderDomainMaxConcurrency")
+  private Integer domainMaxConcurrency = new Integer(2);
+  @Inject(optional = true)
+  @Named("mailSenderDomainSendsPerMinute")
+  private Integer domainSendsPerMinute = new Integer(600);
+  @Inject(optional = true)
+  @Named("mailSenderDomainSendBurst")
+  private Integer domainSendBurst = new Integer(20);
+  @Inject(optional = true)
+  @Named("mailSenderDomainInitialBackoffInSeconds")
+  private Integer domainInitialBackoff = new Integer(30);
+  @Inject(optional = true)
+  @Named("mailSenderDomainMaxBackoffInSeconds")
+  private Integer domainMaxBackoff = new Integer(15 * 60);
+  @Inject(optional = true)
+  @Named("mailSenderRelayFailureThresholdPercent")
+  private Integer relayFailureThreshold = new Integer(50);
+  @Inject(optional = true)
+  @Named("mailSenderRelayMinSamples")
+  private Integer relayMinSamples = new Integer(10);
+  @Inject(optional = true)
+  @Named("mailSenderRelaySlowThresholdInMillis")
+  private Integer relaySlowThreshold = new Integer(10000);
+  @Inject(optional = true)
+  @Named("mailSenderRelayOpenInSeconds")
+  private Integer relayOpenPeriod = new Integer(30);
+  @Inject(optional = true)
+  @Named("mailSenderVirtualThreadsEnabled")
+  private Boolean virtualThreadsEnabled = Boolean.FALSE;
+  @Inject(optional = true)
+  @Named("mailSenderMaxConcurrentSends")
+  private Integer maxConcurrentSends = new Integer(0);
+  @Inject(optional = true)
+  @Named("mailSenderScheduledWakeupLimit")
+  private Integer scheduledWakeupLimit = new Integer(10000);
+  @Inject(optional = true)
+  private MetricsRegistry metricsRegistry;
+  @Inject(optional = true)
+  private CounterStore counterStore;
+  @Inject(optional = true)
+  @Named("mailSenderMaxCountedDomains")
+  private Integer maxCountedDomains = new Integer(100);
+  @Inject(optional = true)
+  private LeaseStore leaseStore;
+  @Inject(optional = true)
+  @Named("mailSenderJmxEnabled")
+  private Boolean jmxEnabled = Boolean.TRUE;
+  @Inject(optional = true)
+  @Named("mailSenderQueueDepthCacheInSeconds")
+  private Integer queueDepthCacheDuration = new Integer(10);
   private Scheduler scheduler;
   private final Semaphore sendEmailMutex = new Semaphore(1);
+  /**
+   * Guards {@link #runningPoll}, so that saved emails are only fed to a poll that has not yet started finishing.
+   */
+  private final Object runningPollLock = new Object();
+  /**
+   * The dispatch of the poll holding the send mutex, null when no poll is draining the queue.
+   */
+  private Dispatch runningPoll;
   private final transient Logger logger = LoggerFactory.getLogger(getClass());
-  private Transport transport;
+  private SmtpRelayBalancer connectionPool;
+  private ExecutorService senderExecutor;
+  /**
+   * Caps the sends in progress across all workers, null if only the connection pools cap them.
+   */
+  private Semaphore sendPermits;
+  private ExecutorService prefetchExecutor;
+  private EmailStatusFlusher statusFlusher;
+  private EmailLeaseClaimer claimer;
+  private SendRetryPolicy retryPolicy;
+  private ScheduledExecutorService wakeupExecutor;
+  private ScheduledExecutorService scheduledWakeupExecutor;
+  private ExecutorService saveExecutor;
+  private AsyncEmailWriter asyncWriter;
+  private EmailJournal journal;
+  private ScheduledExecutorService journalReplayExecutor;
+  private AttachmentStore attachmentStore;
+  private TemplateRenderer templateRenderer;
+  private DomainThrottle domainThrottle;
+  private EmailQueueMetrics metrics;
+  private EmailCounters counters;
+  private ScheduledExecutorService counterFlushExecutor;
+  private ObjectName metricsObjectName;
+  private final Queue<String> savedEmailIds = new ConcurrentLinkedQueue<String>();
+  private final AtomicInteger savedEmailCount = new AtomicInteger();
+  private final AtomicBoolean wakeupScheduled = new AtomicBoolean();
+  private final AtomicBoolean sweepRequested = new AtomicBoolean();
+  private final Set<String> scheduledWakeupIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
+  /**
+   * Set up the metrics, reporting to the bound registry if there is one and otherwise to one exposed over JMX. Called
+   * by the other initializers that need the metrics, whichever of them Guice happens to call first.
+   */
   @Inject
-  public void initSendMailCron() {
-    if (!cronEnabled.booleanValue()) {
+  public synchronized void initMetrics() {
+    if (metrics != null) {
       return;
     }
+    if (metricsRegistry == null) {
+      SimpleMetricsRegistry simpleRegistry = new SimpleMetricsRegistry();
+      if (jmxEnabled.booleanValue()) {
+        try {
+          metricsObjectName = new ObjectName("com.smartitengineering.emailq:type=EmailQueueMetrics");
+          simpleRegistry.register(metricsObjectName);
+        }
+        catch (Exception ex) {
+          // E.g. a second service in the same JVM, its metrics are simply not exposed
+          logger.warn("Could not expose email queue metrics over JMX", ex);
+          metricsObjectName = null;
+        }
+      }
+      metricsRegistry = simpleRegistry;
+    }
+    metrics = new EmailQueueMetrics(metricsRegistry);
+    initCounters();
+    for (Email.MailStatus status : Email.MailStatus.values()) {
+      metricsRegistry.gauge("queue.depth." + status.name(), new QueueDepthGauge(status));
+    }
+  }
+
+  /**
+   * Set up the email counters, counting the emails of each status in the repository once if the store was not seeded
+   * yet, i.e. on the first start of a single node or of the first node sharing the store. The counts are written in
+   * the background from then on.
+   */
+  private void initCounters() {
+    counters = new EmailCounters(counterStore == null ? new LocalCounterStore() : counterStore,
+                                 queueDepthCacheDuration.longValue() * 1000, maxCountedDomains.intValue());
     try {
-      transport = session.getTransport("smtp");
+      counters.seed(new EmailCounters.RepositoryCount() {
+
+        public long count(Email.MailStatus status, Email.Priority priority) {
+          QueryParameter statusParam = QueryParameterFactory.getStringLikePropertyParam(Email.PROPERTY_MAILSTATUS,
+                                                                                        status.name(),
+                                                                                        MatchMode.EXACT);
+          if (priority == null) {
+            return extendedReadDao.count(statusParam);
+          }
+          return extendedReadDao.count(statusParam, QueryParameterFactory.getStringLikePropertyParam(
+              Email.PROPERTY_PRIORITY, priority.name(), MatchMode.EXACT));
+        }
+      });
     }
     catch (Exception ex) {
-      logger.error("Could not initialize SMTP transport", ex);
+      // Counted from now on instead, off by the emails already queued
+      logger.warn("Could not count emails to seed the email counters", ex);
+    }
+    counterFlushExecutor = Executors.newSingleThreadScheduledExecutor(newDaemonThreadFactory(
+        "emailq-counter-flush-"));
+    counters.startFlushing(counterFlushExecutor, statusFlushInterval.longValue());
+  }
+
+  /**
+   * The number of emails of a status, as kept by the email counters.
+   */
+  private class QueueDepthGauge implements MetricsRegistry.Gauge {
+
+    private final Email.MailStatus status;
+
+    QueueDepthGauge(Email.MailStatus status) {
+      this.status = status;
+    }
+
+    public long getValue() {
+      return counters.getCount(status);
+    }
+  }
+
+  @Inject
+  public void initBatchSave() {
+    initMetrics();
+    saveExecutor = Executors.newFixedThreadPool(saveParallelism.intValue(), newDaemonThreadFactory("emailq-save-"));
+    asyncWriter = new AsyncEmailWriter(new AsyncEmailWriter.BatchWriter() {
+
+      public List<SaveResult> write(List<Email> batch) {
+        return saveChunk(batch);
+      }
+    }, newDaemonThreadFactory("emailq-async-save-"), asyncBufferSize.intValue(), saveBatchSize.intValue(),
+                                       asyncBlockOnFull.booleanValue(), asyncOfferTimeout.longValue());
+  }
+
+  @Inject
+  public void initAttachmentStore() {
+    // Created even with deduplication off so that emails saved while it was on can still be sent
+    if (attachmentBlobDao != null) {
+      attachmentStore = new AttachmentStore(attachmentBlobDao, attachmentChunkDao, attachmentChunkSizeInKB.intValue() *
+          1024, attachmentCacheSizeInMB.longValue() * 1024 * 1024);
+    }
+  }
+
+  @Inject
+  public void initTemplateRenderer() {
+    if (templateDao != null) {
+      templateRenderer = new TemplateRenderer(templateDao, templateCacheSize.intValue());
+    }
+  }
+
+  @Inject
+  public void initJournal() {
+    if (StringUtils.isBlank(journalDirectory)) {
+      return;
+    }
+    try {
+      journal = new EmailJournal(new File(journalDirectory), journalSegmentSizeInMB.longValue() * 1024 * 1024,
+                                 saveBatchSize.intValue(), journalMaxReplayDelay.longValue());
+    }
+    catch (IOException ex) {
+      logger.error("Could not open email journal!", ex);
       throw new IllegalStateException(ex);
     }
+    journalReplayExecutor = Executors.newSingleThreadScheduledExecutor(newDaemonThreadFactory("emailq-journal-"));
+    journalReplayExecutor.scheduleWithFixedDelay(new Runnable() {
+
+      public void run() {
+        replayJournal();
+      }
+    }, 0, journalReplayInterval.longValue(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Move journaled emails into the repository, leaving them in the journal if the repository is not available.
+   */
+  protected void replayJournal() {
+    try {
+      int replayed = journal.replay(new EmailJournalReplayer(commonDao) {
+
+        @Override
+        protected void prepare(Email email) {
+          prepareForQueue(email);
+        }
+
+        @Override
+        protected void unprepare(Email email) {
+          releaseAttachments(email);
+        }
+
+        @Override
+        protected void saved(Email email) {
+          counters.enqueued(email);
+          signalWakeup(email);
+        }
+      });
+      if (replayed > 0 && logger.isDebugEnabled()) {
+        logger.debug(new StringBuilder("Replayed ").append(replayed).append(" journaled emails").toString());
+      }
+    }
+    catch (Exception ex) {
+      logger.warn("Could not replay email journal", ex);
+    }
+  }
+
+  public void shutdown() {
+    final long timeoutInMillis = shutdownTimeout.longValue() * 1000;
+    try {
+      asyncWriter.close(timeoutInMillis);
+      if (journal != null) {
+        journalReplayExecutor.shutdown();
+        journalReplayExecutor.awaitTermination(timeoutInMillis, TimeUnit.MILLISECONDS);
+        // Closed first so that the replay seals the active segment; whatever can not be replayed now is replayed on the
+        // next start
+        journal.close();
+        replayJournal();
+      }
+      saveExecutor.shutdown();
+      if (scheduler != null) {
+        // Waits for a running poll to finish
+        scheduler.shutdown(true);
+      }
+      if (wakeupExecutor != null) {
+        // Emails not due yet are found by the poll after the next start
+        scheduledWakeupExecutor.shutdownNow();
+        wakeupExecutor.shutdown();
+        wakeupExecutor.awaitTermination(timeoutInMillis, TimeUnit.MILLISECONDS);
+      }
+      // A wakeup may still be sending, wait for it before writing the last statuses
+      if (sendEmailMutex.tryAcquire(timeoutInMillis, TimeUnit.MILLISECONDS)) {
+        sendEmailMutex.release();
+      }
+      if (statusFlusher != null) {
+        try {
+          statusFlusher.flush();
+        }
+        catch (ExecutionException ex) {
+          logger.error("Could not write the last email statuses", ex.getCause());
+        }
+      }
+      counterFlushExecutor.shutdown();
+      counters.flush();
+      if (connectionPool != null) {
+        connectionPool.close();
+      }
+      if (metricsObjectName != null) {
+        ((SimpleMetricsRegistry) metricsRegistry).unregister(metricsObjectName);
+      }
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    catch (Exception ex) {
+      logger.warn("Could not shut down cleanly", ex);
+    }
+  }
+
+  @Inject
+  public void initSendMailCron() {
+    if (!cronEnabled.booleanValue()) {
+      return;
+    }
+    initMetrics();
+    // Workers reserved for high priority emails get connections of their own on top of the pool size
+    final int workerCount = poolSize.intValue() + highPriorityReservedWorkers.intValue();
+    // Without relays configured everything goes through the relay of the session
+    final List<SmtpRelay> smtpRelays = relays == null || relays.isEmpty() ? Collections.singletonList(new SmtpRelay(
+        "default", session, 1)) : relays;
+    connectionPool = new SmtpRelayBalancer(smtpRelays, workerCount, poolIdleTimeout.longValue() * 1000,
+                                           maxMessagesPerConnection.intValue(),
+                                           relayFailureThreshold.doubleValue() / 100, relayMinSamples.intValue(),
+                                           relaySlowThreshold.longValue(), relayOpenPeriod.longValue() * 1000,
+                                           metrics);
+    senderExecutor = SenderExecutors.newSenderExecutor(virtualThreadsEnabled.booleanValue(), workerCount,
+                                                       newDaemonThreadFactory("emailq-sender-"));
+    // Fair, so that a worker waiting for a permit is not overtaken by one coming back for more
+    sendPermits = maxConcurrentSends.intValue() > 0 ? new Semaphore(maxConcurrentSends.intValue(), true) : null;
+    prefetchExecutor = Executors.newSingleThreadExecutor(newDaemonThreadFactory("emailq-prefetch-"));
+    statusFlusher = new EmailStatusFlusher(commonDao, Executors.newSingleThreadScheduledExecutor(
+        newDaemonThreadFactory("emailq-status-flush-")), statusFlushSize.intValue(), statusFlushInterval.longValue());
+    if (StringUtils.isBlank(nodeId)) {
+      nodeId = generateNodeId();
+    }
+    claimer = new EmailLeaseClaimer(commonDao, leaseStore == null ? new LocalLeaseStore() : leaseStore, nodeId,
+                                    claimLease.longValue() * 1000, counters);
+    retryPolicy = new SendRetryPolicy(maxSendAttempts.intValue(), retryInitialBackoff.longValue() * 1000,
+                                      retryMaxBackoff.longValue() * 1000);
+    if (domainThrottleEnabled.booleanValue()) {
+      domainThrottle = new DomainThrottle(domainMaxConcurrency.intValue(), domainSendsPerMinute.intValue(),
+                                          domainSendBurst.intValue(), domainInitialBackoff.longValue() * 1000,
+                                          domainMaxBackoff.longValue() * 1000);
+    }
+    if (wakeupOnSave.booleanValue()) {
+      wakeupExecutor = Executors.newSingleThreadScheduledExecutor(newDaemonThreadFactory("emailq-wakeup-"));
+      scheduledWakeupExecutor = Executors.newSingleThreadScheduledExecutor(newDaemonThreadFactory(
+          "emailq-scheduled-wakeup-"));
+    }
     try {
       scheduler = StdSchedulerFactory.getDefaultScheduler();
       JobDetail detail = new JobDetail("sendEmailJob", "sendEmailPoll", SendEmailJob.class);
@@ -137,11 +627,39 @@ public class EmailServiceImpl implements EmailService {
     }
   }
 
+  private static String generateNodeId() {
+    String host;
+    try {
+      host = InetAddress.getLocalHost().getHostName();
+    }
+    catch (Exception ex) {
+      host = "localhost";
+    }
+    return new StringBuilder(host).append('-').append(UUID.randomUUID().toString()).toString();
+  }
+
+  private static ThreadFactory newDaemonThreadFactory(final String namePrefix) {
+    return new ThreadFactory() {
+
+      private final AtomicInteger threadCount = new AtomicInteger();
+
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * The Quartz poll, it sweeps the whole queue so that emails saved by other nodes or missed by the wakeup get sent.
+   */
   private class SendEmailJob implements Job {
 
     public void execute(JobExecutionContext context) throws JobExecutionException {
+      final long acquiredAt;
       try {
-        sendEmailMutex.acquire();
+        acquiredAt = acquireSendMutex();
       }
       catch (Exception ex) {
         logger.warn("Could not acquire lock!", ex);
@@ -155,191 +673,1152 @@ public class EmailServiceImpl implements EmailService {
         throw new JobExecutionException(ex);
       }
       finally {
-        sendEmailMutex.release();
+        releaseSendMutex(acquiredAt);
       }
     }
   }
 
-  protected void sendPendingEmails() throws Exception {
-    QueryParameter statusParam = QueryParameterFactory.getStringLikePropertyParam(Email.PROPERTY_MAILSTATUS,
-                                                                                  Email.MailStatus.NOT_SENT.name(),
-                                                                                  MatchMode.EXACT);
-    long count = extendedReadDao.count(statusParam);
-    if (count > 0) {
-      Collection<Email> emails = commonDao.getList(statusParam, QueryParameterFactory.getMaxResultsParam((int) count),
-                                                   QueryParameterFactory.getFirstResultParam(0));
-      if (emails != null && !emails.isEmpty()) {
-        if (logger.isInfoEnabled()) {
-          logger.info(new StringBuilder("Number of messages attempting to send ").append(emails.size()).toString());
-        }
-        List<Email> successfulEmails = new ArrayList<Email>();
-        logger.debug("Connecting to SMTP server");
-        transport.connect();
-        try {
-          for (Email email : emails) {
-            sendEmail(email, successfulEmails);
-          }
-        }
-        finally {
-          logger.debug("Closing tunnel with SMTP server");
-          transport.close();
-        }
-        if (!successfulEmails.isEmpty()) {
-          if (logger.isInfoEnabled()) {
-            logger.info(new StringBuilder("Number of messages sent ").append(successfulEmails.size()).toString());
-          }
-          commonDao.update(successfulEmails.toArray(new Email[successfulEmails.size()]));
-        }
+  /**
+   * Acquire the mutex that lets one dispatch run at a time, recording how long it was waited for.
+   * @return When it was acquired, to be handed to {@link #releaseSendMutex(long)}
+   */
+  private long acquireSendMutex() throws InterruptedException {
+    final long start = System.nanoTime();
+    sendEmailMutex.acquire();
+    final long acquiredAt = System.nanoTime();
+    metrics.getSendMutexWait().record((acquiredAt - start) / 1000);
+    return acquiredAt;
+  }
+
+  private void releaseSendMutex(long acquiredAt) {
+    metrics.getSendMutexHeld().record((System.nanoTime() - acquiredAt) / 1000);
+    sendEmailMutex.release();
+  }
+
+  /**
+   * Signal that an email was just saved so that it is sent right away rather than at the next poll, or if it is not
+   * due yet as soon as it is due.
+   */
+  protected void signalWakeup(Email email) {
+    if (wakeupExecutor == null || email.getId() == null) {
+      return;
+    }
+    final Date due = email.getNextAttemptTime();
+    if (due != null && due.getTime() > System.currentTimeMillis()) {
+      scheduleWakeup(email.getId(), due);
+    }
+    else {
+      wakeup(email.getId());
+    }
+  }
+
+  /**
+   * Send the email with the given id soon. Signals arriving within the debounce delay of the first one are sent
+   * together. If too many emails are waiting a full sweep of the queue is requested instead of remembering each of
+   * them.
+   */
+  private void wakeup(String id) {
+    if (savedEmailCount.incrementAndGet() <= pageSize.intValue()) {
+      savedEmailIds.add(id);
+    }
+    else {
+      savedEmailCount.decrementAndGet();
+      sweepRequested.set(true);
+    }
+    if (wakeupScheduled.compareAndSet(false, true)) {
+      wakeupExecutor.schedule(new WakeupTask(), wakeupDebounce.longValue(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Wake up for the email with the given id when it is due. The scheduled wakeup executor keeps its tasks in a queue
+   * ordered by due time, so no scan of the queue is needed to find what is due next. Wakeups beyond the limit are left
+   * to the poll.
+   */
+  private void scheduleWakeup(final String id, Date due) {
+    if (scheduledWakeupIds.size() >= scheduledWakeupLimit.intValue() || !scheduledWakeupIds.add(id)) {
+      return;
+    }
+    scheduledWakeupExecutor.schedule(new Runnable() {
+
+      public void run() {
+        scheduledWakeupIds.remove(id);
+        wakeup(id);
+      }
+    }, Math.max(0, due.getTime() - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Schedule wakeups for the emails falling due before the next poll, i.e. those saved for later and those backing
+   * off after a failure, so that they go out when they are due rather than at the poll after. They are read off the
+   * index of the due time, oldest first.
+   */
+  protected void scheduleUpcomingWakeups() {
+    final int room = scheduledWakeupLimit.intValue() - scheduledWakeupIds.size();
+    if (wakeupExecutor == null || room <= 0) {
+      return;
+    }
+    final Date now = new Date();
+    final Date nextPoll = new Date(now.getTime() + period.longValue() * 1000);
+    List<Email> upcoming = commonDao.getList(QueryParameterFactory.getStringLikePropertyParam(
+        Email.PROPERTY_MAILSTATUS, Email.MailStatus.NOT_SENT.name(), MatchMode.EXACT), QueryParameterFactory.
+        getGreaterThanPropertyParam(Email.PROPERTY_NEXTATTEMPTTIME, now), QueryParameterFactory.
+        getLesserThanEqualToPropertyParam(Email.PROPERTY_NEXTATTEMPTTIME, nextPoll), QueryParameterFactory.
+        getOrderByParam(Email.PROPERTY_NEXTATTEMPTTIME, Order.ASC), QueryParameterFactory.getMaxResultsParam(room));
+    if (upcoming == null) {
+      return;
+    }
+    for (Email email : upcoming) {
+      if (email.getNextAttemptTime() != null) {
+        scheduleWakeup(email.getId(), email.getNextAttemptTime());
       }
     }
   }
 
-  protected void sendEmail(Email email,
-                           List<Email> successfulEmails) {
-    try {
-      if (logger.isDebugEnabled()) {
-        logger.debug("Attempting to send " + email.getId() + " " + email.getSubject());
-        if (email.getTo() != null) {
-          logger.debug("To: " + Arrays.toString(email.getTo().toArray()));
-        }
-        else {
-          logger.debug("To is NULL");
-        }
-        if (email.getTo() != null) {
-          logger.debug("CC: " + Arrays.toString(email.getCc().toArray()));
-        }
-        else {
-          logger.debug("CC is NULL");
-        }
-        if (email.getTo() != null) {
-          logger.debug("BCC: " + Arrays.toString(email.getBcc().toArray()));
-        }
-        else {
-          logger.debug("BCC is NULL");
-        }
-        if (email.getTo() != null) {
-          logger.debug("FROM: " + email.getFrom());
-        }
-        else {
-          logger.debug("FROM is NULL");
+  /**
+   * Sends the emails signalled as saved. While a poll holds the send mutex the emails are fed to its dispatch rather
+   * than waiting for the poll to drain the whole queue; the mutex is only waited for when no poll is draining.
+   */
+  private class WakeupTask implements Runnable {
+
+    public void run() {
+      wakeupScheduled.set(false);
+      final long acquiredAt;
+      try {
+        if (sendEmailMutex.tryAcquire()) {
+          acquiredAt = System.nanoTime();
         }
-        if (email.getAttachments() != null) {
-          logger.debug("Attachments: " + Arrays.toString(email.getAttachments().toArray()));
-          for (Attachments attachment : email.getAttachments()) {
-            logger.debug("Attachment: " + attachment.getName());
+        else if (feedRunningPoll()) {
+          // The running poll sweeps the queue itself, a sweep still requested is retried once it is done
+          if (sweepRequested.get() && wakeupScheduled.compareAndSet(false, true)) {
+            wakeupExecutor.schedule(new WakeupTask(), wakeupDebounce.longValue(), TimeUnit.MILLISECONDS);
           }
+          return;
         }
         else {
-          logger.debug("No attachments");
+          acquiredAt = acquireSendMutex();
         }
       }
-      //Send email
-      if (StringUtils.isBlank(email.getSubject()) || StringUtils.isBlank(email.getFrom())) {
-        logger.warn(new StringBuilder("Invalid email without either from or a subject, thus ignoring it ").append(email.
-            getId()).toString());
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
         return;
       }
-      MimeMessage message = new MimeMessage(session);
-      message.setSubject(email.getSubject());
-      message.setFrom(new InternetAddress(email.getFrom()));
-      addRecipients(message, Message.RecipientType.TO, email.getTo());
-      addRecipients(message, Message.RecipientType.CC, email.getCc());
-      addRecipients(message, Message.RecipientType.BCC, email.getBcc());
-      if (email.getMessage() != null && StringUtils.isNotBlank(email.getMessage().getMsgBody()) && email.getMessage().
-          getMsgType().equals(MsgType.PLAIN) && (email.getAttachments() == null || email.getAttachments().isEmpty())) {
-        message.setText(email.getMessage().getMsgBody());
+      catch (Exception ex) {
+        logger.error("Error sending saved emails", ex);
+        return;
       }
-      else {
-        Multipart multipart = new MimeMultipart();
-        if (email.getMessage() != null && StringUtils.isNotBlank(email.getMessage().getMsgBody())) {
-          MimeBodyPart bodyPart = new MimeBodyPart();
-          switch (email.getMessage().getMsgType()) {
-            case HTML:
-              bodyPart.setContent(email.getMessage().getMsgBody(), "html");
-              break;
-            case PLAIN:
-            default:
-              bodyPart.setText(email.getMessage().getMsgBody());
-          }
-          multipart.addBodyPart(bodyPart);
-        }
-        if (email.getAttachments() != null && !email.getAttachments().isEmpty()) {
-          for (Attachments attachment : email.getAttachments()) {
-            addAttachment(multipart, attachment);
-          }
+      try {
+        sendSavedEmails();
+        if (sweepRequested.getAndSet(false)) {
+          sendPendingEmails();
         }
-        message.setContent(multipart);
       }
-      Transport.send(message);
-      if (logger.isDebugEnabled()) {
-        logger.debug("Sent " + email.getId());
+      catch (Exception ex) {
+        logger.error("Error sending saved emails", ex);
       }
-      //Update status
-      email.setMailStatus(Email.MailStatus.SENT);
-      successfulEmails.add(email);
-      if (logger.isDebugEnabled()) {
-        logger.debug("Set new mail status and add to successful queue " + email.getSubject());
+      finally {
+        releaseSendMutex(acquiredAt);
       }
     }
-    catch (Exception ex) {
-      logger.warn(new StringBuilder("Error sending email with subject ").append(email.getSubject()).toString(),
-                  ex);
+  }
+
+  /**
+   * Send the emails signalled as saved. They are read by id, which unlike the pending query does not have to wait
+   * for the search index to catch up.
+   */
+  protected void sendSavedEmails() throws Exception {
+    Collection<Email> emails = claimSavedEmails();
+    if (emails.isEmpty()) {
+      return;
+    }
+    final long start = System.nanoTime();
+    Dispatch dispatch = new Dispatch(null);
+    try {
+      for (Email email : emails) {
+        dispatch.offer(email);
+      }
+    }
+    finally {
+      dispatch.finish();
+      metrics.getDispatchDuration().record((System.nanoTime() - start) / 1000);
+      statusFlusher.flush();
+    }
+    if (logger.isInfoEnabled()) {
+      logger.info(new StringBuilder("Number of saved messages sent ").append(dispatch.sentCount.get()).append(" of ").
+          append(emails.size()).toString());
     }
   }
 
-  protected void addRecipients(MimeMessage message, RecipientType recipientType, Collection<String> addresses) throws
-      MessagingException {
-    if (addresses != null && !addresses.isEmpty()) {
-      Address[] addressArray = new Address[addresses.size()];
-      int index = 0;
-      for (String address : addresses) {
-        addressArray[index++] = new InternetAddress(address);
+  /**
+   * Feed the emails signalled as saved to the dispatch of the running poll, if there is one that has not yet started
+   * finishing.
+   * @return False if no poll is running and the emails were left signalled
+   */
+  private boolean feedRunningPoll() throws InterruptedException {
+    synchronized (runningPollLock) {
+      if (runningPoll == null) {
+        return false;
       }
-      message.addRecipients(recipientType, addressArray);
+      Collection<Email> emails = claimSavedEmails();
+      for (Email email : emails) {
+        runningPoll.offerSaved(email);
+      }
+      if (!emails.isEmpty() && logger.isInfoEnabled()) {
+        logger.info("Fed " + emails.size() + " saved messages to the running poll");
+      }
+      return true;
     }
   }
 
-  private void addAttachment(Multipart multipart, Attachments attachment) throws MessagingException {
-    MimeBodyPart attachmentPart = new MimeBodyPart();
-    attachmentPart.setFileName(attachment.getName());
-    if (StringUtils.isNotBlank(attachment.getDescription())) {
-      attachmentPart.setDescription(attachment.getDescription());
+  private Collection<Email> claimSavedEmails() {
+    List<String> ids = new ArrayList<String>();
+    String id;
+    while ((id = savedEmailIds.poll()) != null) {
+      ids.add(id);
     }
-    if (StringUtils.isNotBlank(attachment.getDisposition())) {
-      attachmentPart.setDisposition(attachment.getDisposition());
+    savedEmailCount.addAndGet(-ids.size());
+    if (ids.isEmpty()) {
+      return Collections.emptyList();
     }
-    DataSource source = new ByteArrayDataSource(attachment.getBlob(), attachment.getContentType());
-    attachmentPart.setDataHandler(new DataHandler(source));
-    multipart.addBodyPart(attachmentPart);
+    return claimer.claimByIds(ids);
   }
 
-  public boolean saveEmail(com.smartitengineering.emailq.domain.Email email) {
-    // No deliverable configured
-    if ((email.getTo() == null || email.getTo().isEmpty()) && (email.getCc() == null || email.getCc().isEmpty()) &&
-        (email.getBcc() == null || email.getBcc().isEmpty())) {
-      logger.warn("Ignoring email as no deliverable address is set!");
-      return false;
+  protected void sendPendingEmails() throws Exception {
+    final long start = System.nanoTime();
+    connectionPool.evictIdle();
+    MemoryBudget memoryBudget = new MemoryBudget(memoryBudgetInMB.longValue() * 1024 * 1024);
+    PriorityLanes lanes = new PriorityLanes();
+    lanes.addLane(newLaneReader(Email.Priority.HIGH, memoryBudget), highPriorityWeight.intValue());
+    lanes.addLane(newLaneReader(Email.Priority.NORMAL, memoryBudget), normalPriorityWeight.intValue());
+    lanes.addLane(newLaneReader(Email.Priority.BULK, memoryBudget), bulkPriorityWeight.intValue());
+    Dispatch dispatch = new Dispatch(memoryBudget);
+    synchronized (runningPollLock) {
+      runningPoll = dispatch;
     }
-    // No from configured
-    if (StringUtils.isBlank(email.getFrom())) {
-      logger.warn("No From configured!");
-      return false;
+    long attempted = 0;
+    try {
+      Email email;
+      while (!dispatch.isAborted() && (email = lanes.next()) != null) {
+        attempted++;
+        dispatch.offer(email);
+      }
     }
-    // No message body
-    if (email.getMessage() == null || email.getMessage().getMsgType() == null || StringUtils.isBlank(email.getMessage().
-        getMsgBody())) {
-      logger.warn("No message body set!");
+    finally {
+      lanes.close();
+      // Emails fed after this would not be waited for by the workers as they finish
+      synchronized (runningPollLock) {
+        runningPoll = null;
+      }
+      dispatch.finish();
+      metrics.getDispatchDuration().record((System.nanoTime() - start) / 1000);
+      // Make sure the next poll does not read emails that were sent but whose status is not yet written, failing the
+      // poll if they could not be
+      statusFlusher.flush();
+    }
+    try {
+      scheduleUpcomingWakeups();
+    }
+    catch (Exception ex) {
+      logger.warn("Could not schedule wakeups for upcoming emails", ex);
+    }
+    if (attempted > 0 && logger.isInfoEnabled()) {
+      logger.info(new StringBuilder("Number of messages sent ").append(dispatch.sentCount.get()).append(" of ").
+          append(attempted).toString());
+    }
+  }
+
+  private PendingEmailReader newLaneReader(Email.Priority priority, MemoryBudget memoryBudget) {
+    QueryParameter priorityParam = QueryParameterFactory.getStringLikePropertyParam(Email.PROPERTY_PRIORITY, priority.
+        name(), MatchMode.EXACT);
+    if (Email.Priority.NORMAL.equals(priority)) {
+      // Emails queued before priorities were kept have none and are sent as normal ones
+      priorityParam = QueryParameterFactory.getDisjunctionParam(priorityParam, QueryParameterFactory.
+          getIsNullPropertyParam(Email.PROPERTY_PRIORITY));
+    }
+    return new PendingEmailReader(commonDao, claimer, prefetchExecutor, pageSize.intValue(), memoryBudget,
+                                  claimer.getClaimableParam(), claimer.getDueParam(), priorityParam);
+  }
+
+  /**
+   * A single run of draining the queue. Emails offered are fed to as many workers as there are pooled connections,
+   * each worker sending over its own connection. High priority emails have a feed of their own which every worker
+   * serves first, and some workers serve nothing else so that bulk emails can never hold them up. Workers share failure
+   * state so that they recover from SMTP failures together instead of each of them hammering a server that is down.
+   * <p>
+   * With the domain throttle on, emails whose recipient domains can not be sent to yet are parked aside while the
+   * workers go on with emails to other domains, and picked up again as soon as their domains allow. Emails to a domain
+   * being backed off from for long are handed back to the queue, due when the backoff ends.
+   * </p>
+   */
+  private class Dispatch {
+
+    private final MemoryBudget memoryBudget;
+    private final BlockingQueue<Email> urgentFeed;
+    private final BlockingQueue<Email> feed;
+    private final AtomicInteger consecutiveConnectionFailures = new AtomicInteger();
+    private final AtomicInteger sentCount = new AtomicInteger();
+    private final List<Future<?>> workers;
+    private final Map<Email, String> contentKeys = Collections.synchronizedMap(new IdentityHashMap<Email, String>());
+    private final List<DomainGroup> parked = new LinkedList<DomainGroup>();
+    private volatile boolean finished;
+
+    Dispatch(MemoryBudget memoryBudget) {
+      this.memoryBudget = memoryBudget;
+      this.urgentFeed = new ArrayBlockingQueue<Email>(pageSize.intValue());
+      this.feed = new ArrayBlockingQueue<Email>(pageSize.intValue());
+      this.workers = new ArrayList<Future<?>>(connectionPool.getPoolSize());
+      for (int i = 0; i < connectionPool.getPoolSize(); ++i) {
+        workers.add(senderExecutor.submit(new SendWorker(i < highPriorityReservedWorkers.intValue())));
+      }
+    }
+
+    boolean isAborted() {
+      return consecutiveConnectionFailures.get() >= connectionPool.getPoolSize();
+    }
+
+    /**
+     * Hand a claimed email to the workers, blocking while they are all busy. If the dispatch is aborted the claim of
+     * the email is given up instead.
+     * @return False if the dispatch was aborted and the email will not be sent
+     */
+    boolean offer(Email email) throws InterruptedException {
+      final BlockingQueue<Email> target = Email.Priority.HIGH.equals(email.getPriority()) ? urgentFeed : feed;
+      if (coalesceEnabled.booleanValue()) {
+        // Computed here rather than by the workers so that each email is hashed once
+        String contentKey = EmailContentKey.of(email);
+        if (contentKey != null) {
+          contentKeys.put(email, contentKey);
+        }
+      }
+      while (!isAborted()) {
+        if (target.offer(email, FEED_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+      giveUp(email);
       return false;
     }
+
+    /**
+     * Hand a claimed email that was not read by this dispatch to the workers, counting it against the memory budget as
+     * the emails read are.
+     */
+    boolean offerSaved(Email email) throws InterruptedException {
+      if (memoryBudget != null) {
+        memoryBudget.acquire(email);
+      }
+      return offer(email);
+    }
+
+    /**
+     * Give up the claim of an email that will not be sent by this dispatch, so that it does not wait for its lease to
+     * expire before being sent again.
+     */
+    void giveUp(Email email) {
+      claimer.release(email);
+      counters.statusChanged(email, Email.MailStatus.IN_FLIGHT, null);
+      statusFlusher.add(email);
+      if (memoryBudget != null) {
+        memoryBudget.release(email);
+      }
+    }
+
+    /**
+     * Signal that no more emails will be offered and wait for the workers to send the ones already fed.
+     */
+    void finish() throws InterruptedException {
+      finished = true;
+      for (Future<?> worker : workers) {
+        try {
+          worker.get();
+        }
+        catch (ExecutionException ex) {
+          logger.error("Email sender worker failed", ex.getCause());
+        }
+      }
+      if (isAborted()) {
+        logger.warn("SMTP server unreachable, leaving remaining emails for the next poll");
+        Email email;
+        while ((email = urgentFeed.poll()) != null) {
+          giveUp(email);
+        }
+        while ((email = feed.poll()) != null) {
+          giveUp(email);
+        }
+        synchronized (parked) {
+          for (DomainGroup group : parked) {
+            for (Email parkedEmail : group.emails) {
+              giveUp(parkedEmail);
+            }
+          }
+          parked.clear();
+        }
+      }
+    }
+
+    /**
+     * Hold back emails whose domains can not be sent to for the given millis, handing them back to the queue if that is
+     * too long to hold them.
+     */
+    void park(DomainGroup group, long waitInMillis) {
+      if (waitInMillis <= MAX_PARK_MILLIS) {
+        synchronized (parked) {
+          parked.add(group);
+        }
+        return;
+      }
+      if (logger.isDebugEnabled()) {
+        logger.debug(new StringBuilder("Deferring ").append(group.emails.size()).append(" emails to ").append(
+            group.domains).append(" by ").append(waitInMillis).append("ms").toString());
+      }
+      final Date nextAttemptTime = new Date(System.currentTimeMillis() + waitInMillis);
+      for (Email email : group.emails) {
+        // Not an attempt, so the attempt count is left as it is
+        email.setNextAttemptTime(nextAttemptTime);
+        giveUp(email);
+      }
+    }
+
+    /**
+     * Take the first parked group that can be sent now, with its domains acquired.
+     */
+    DomainGroup pollParked(boolean highPriorityOnly) {
+      if (domainThrottle == null) {
+        return null;
+      }
+      List<DomainGroup> deferred = new ArrayList<DomainGroup>();
+      DomainGroup sendable = null;
+      synchronized (parked) {
+        for (Iterator<DomainGroup> groups = parked.iterator(); groups.hasNext() && sendable == null;) {
+          DomainGroup group = groups.next();
+          if (highPriorityOnly && !group.highPriority) {
+            continue;
+          }
+          final long wait = domainThrottle.tryAcquire(group.domains);
+          if (wait == 0) {
+            groups.remove();
+            sendable = group;
+          }
+          else if (wait > MAX_PARK_MILLIS) {
+            // The domain started backing off while the group was parked
+            groups.remove();
+            group.waitInMillis = wait;
+            deferred.add(group);
+          }
+        }
+      }
+      for (DomainGroup group : deferred) {
+        park(group, group.waitInMillis);
+      }
+      return sendable;
+    }
+
+    boolean isParkedEmpty() {
+      synchronized (parked) {
+        return parked.isEmpty();
+      }
+    }
+
+    /**
+     * Take the emails waiting in the feed that share their content with the given email, up to the max recipients of
+     * a message.
+     */
+    List<Email> coalesce(Email email) {
+      final String contentKey = contentKeys.remove(email);
+      if (contentKey == null) {
+        return Collections.singletonList(email);
+      }
+      final BlockingQueue<Email> source = Email.Priority.HIGH.equals(email.getPriority()) ? urgentFeed : feed;
+      final int maxRecipients = coalesceMaxRecipients.intValue();
+      List<Email> group = new ArrayList<Email>();
+      group.add(email);
+      int recipients = countRecipients(email);
+      for (Iterator<Email> candidates = source.iterator(); candidates.hasNext() && recipients < maxRecipients;) {
+        Email candidate = candidates.next();
+        final int candidateRecipients = countRecipients(candidate);
+        // Another worker may have taken the candidate meanwhile, in which case it is not removed
+        if (contentKey.equals(contentKeys.get(candidate)) && recipients + candidateRecipients <= maxRecipients &&
+            source.remove(candidate)) {
+          contentKeys.remove(candidate);
+          group.add(candidate);
+          recipients += candidateRecipients;
+        }
+      }
+      return group;
+    }
+
+    private int countRecipients(Email email) {
+      return (email.getTo() == null ? 0 : email.getTo().size()) + (email.getBcc() == null ? 0 : email.getBcc().size());
+    }
+
+    private class SendWorker implements Runnable {
+
+      private final boolean reservedForHighPriority;
+      private boolean throttled;
+
+      SendWorker(boolean reservedForHighPriority) {
+        this.reservedForHighPriority = reservedForHighPriority;
+      }
+
+      private Email poll() throws InterruptedException {
+        Email email = urgentFeed.poll();
+        if (email != null) {
+          return email;
+        }
+        return reservedForHighPriority ? urgentFeed.poll(FEED_POLL_MILLIS, TimeUnit.MILLISECONDS) : feed.poll(
+            FEED_POLL_MILLIS, TimeUnit.MILLISECONDS);
+      }
+
+      public void run() {
+        SmtpConnection connection = null;
+        try {
+          while (!isAborted()) {
+            DomainGroup group = pollParked(reservedForHighPriority);
+            if (group == null) {
+              Email email = poll();
+              if (email == null) {
+                if (finished && urgentFeed.isEmpty() && feed.isEmpty() && isParkedEmpty()) {
+                  break;
+                }
+                continue;
+              }
+              group = new DomainGroup(coalesce(email));
+              if (domainThrottle != null) {
+                final long wait = domainThrottle.tryAcquire(group.domains);
+                if (wait > 0) {
+                  park(group, wait);
+                  continue;
+                }
+              }
+            }
+            connection = send(connection, group);
+          }
+        }
+        catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        finally {
+          if (connection != null) {
+            connectionPool.release(connection);
+          }
+        }
+      }
+
+      /**
+       * Send a group whose domains are acquired, releasing them once done.
+       */
+      private SmtpConnection send(SmtpConnection connection, DomainGroup group) throws InterruptedException {
+        throttled = false;
+        boolean permitted = false;
+        try {
+          if (sendPermits != null) {
+            sendPermits.acquire();
+            permitted = true;
+          }
+          if (group.emails.size() > 1) {
+            connection = sendGroup(connection, group.emails);
+          }
+          else {
+            connection = sendOne(connection, group.emails.get(0));
+          }
+          // Hand the connection back if its relay went bad or it is time to pick a relay afresh
+          return connection == null ? null : connectionPool.keepOrRelease(connection);
+        }
+        finally {
+          if (permitted) {
+            sendPermits.release();
+          }
+          if (domainThrottle != null) {
+            domainThrottle.release(group.domains, throttled);
+          }
+        }
+      }
+
+      /**
+       * @return The connection to go on with, null if it had to be given up
+       */
+      private SmtpConnection sendOne(SmtpConnection connection, Email email) throws InterruptedException {
+        boolean sent = false;
+        Exception failure = null;
+        String relay = null;
+        try {
+          if (connection == null) {
+            try {
+              connection = connectionPool.borrow();
+            }
+            catch (MessagingException ex) {
+              logger.warn("Could not connect to SMTP server", ex);
+              consecutiveConnectionFailures.incrementAndGet();
+              return null;
+            }
+          }
+          // Taken before sending, as a failed connection is handed back before the outcome is recorded
+          relay = connectionPool.getRelayName(connection);
+          final long start = System.nanoTime();
+          try {
+            sendEmail(connection, email);
+            sent = true;
+            connectionPool.recordSend(connection, (System.nanoTime() - start) / 1000, false);
+            consecutiveConnectionFailures.set(0);
+            sentCount.incrementAndGet();
+          }
+          catch (Exception ex) {
+            failure = ex;
+            logger.warn(new StringBuilder("Error sending email with subject ").append(email.getSubject()).toString(),
+                        ex);
+            // A broken email says nothing about the relay
+            connectionPool.recordSend(connection, (System.nanoTime() - start) / 1000, !retryPolicy.isPermanent(ex));
+            if (!connection.isOpen()) {
+              // Connection could not be recovered, hand it back so a fresh one replaces it
+              connectionPool.invalidate(connection);
+              connection = null;
+              consecutiveConnectionFailures.incrementAndGet();
+            }
+          }
+        }
+        finally {
+          complete(email, sent, failure, relay);
+        }
+        return connection;
+      }
+
+      /**
+       * Send content identical emails as one message, falling back to sending them one by one if that fails so that
+       * each gets its own outcome, e.g. when the server rejects some of the recipients.
+       */
+      private SmtpConnection sendGroup(SmtpConnection connection, List<Email> group) throws InterruptedException {
+        if (connection == null) {
+          try {
+            connection = connectionPool.borrow();
+          }
+          catch (MessagingException ex) {
+            logger.warn("Could not connect to SMTP server", ex);
+            consecutiveConnectionFailures.incrementAndGet();
+            for (Email email : group) {
+              complete(email, false, null, null);
+            }
+            return null;
+          }
+        }
+        final String relay = connectionPool.getRelayName(connection);
+        final long start = System.nanoTime();
+        try {
+          sendCoalesced(connection, group);
+          connectionPool.recordSend(connection, (System.nanoTime() - start) / 1000, false);
+        }
+        catch (Exception ex) {
+          logger.warn(new StringBuilder("Error sending ").append(group.size()).append(
+              " emails as one message, sending them one by one").toString(), ex);
+          connectionPool.recordSend(connection, (System.nanoTime() - start) / 1000, !retryPolicy.isPermanent(ex));
+          throttled |= retryPolicy.isThrottled(ex);
+          if (!connection.isOpen()) {
+            connectionPool.invalidate(connection);
+            connection = null;
+          }
+          for (Email email : group) {
+            connection = sendOne(connection, email);
+          }
+          return connection;
+        }
+        consecutiveConnectionFailures.set(0);
+        sentCount.addAndGet(group.size());
+        for (Email email : group) {
+          complete(email, true, null, relay);
+        }
+        return connection;
+      }
+
+      /**
+       * Record the outcome of sending an email.
+       * @param relay The relay the email was sent to, null if no connection could be had
+       */
+      private void complete(Email email, boolean sent, Exception failure, String relay) {
+        if (sent) {
+          metrics.sent();
+          retryPolicy.recordSuccess(email);
+          releaseAttachments(email);
+        }
+        else {
+          claimer.release(email);
+          if (failure != null) {
+            metrics.failed(retryPolicy.getReplyClass(failure));
+            throttled |= retryPolicy.isThrottled(failure);
+          }
+          if (failure != null && !retryPolicy.recordFailure(email, failure)) {
+            logger.warn(new StringBuilder("Giving up on email ").append(email.getId()).append(" after ").append(
+                email.getSendAttempts()).append(" attempts").toString());
+            releaseAttachments(email);
+          }
+        }
+        counters.statusChanged(email, Email.MailStatus.IN_FLIGHT, relay);
+        statusFlusher.add(email);
+        if (memoryBudget != null) {
+          memoryBudget.release(email);
+        }
+      }
+    }
+  }
+
+  /**
+   * Emails sent together along with their recipient domains, which are only worked out if the domain throttle is on.
+   */
+  private class DomainGroup {
+
+    private final List<Email> emails;
+    private final Set<String> domains;
+    private final boolean highPriority;
+    private long waitInMillis;
+
+    DomainGroup(List<Email> emails) {
+      this.emails = emails;
+      this.domains = domainThrottle == null ? Collections.<String>emptySet() : DomainThrottle.getDomains(emails);
+      this.highPriority = Email.Priority.HIGH.equals(emails.get(0).getPriority());
+    }
+  }
+
+  /**
+   * Send content identical emails as one message to all of their recipients. The message is addressed to undisclosed
+   * recipients so that, as with BCC, no recipient learns of the others. The message is built from the fields of the
+   * first email even if it was pre-rendered, as a rendered message is addressed to the recipients of its own email.
+   */
+  protected void sendCoalesced(SmtpConnection connection, List<Email> group) throws MessagingException {
+    MimeMessage message = buildMessage(group.get(0));
+    message.setHeader("To", "undisclosed-recipients:;");
+    List<Address> recipients = new ArrayList<Address>();
+    for (Email email : group) {
+      recipients.addAll(Arrays.asList(getRecipients(email)));
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug(new StringBuilder("Sending ").append(group.size()).append(" emails as one message to ").append(
+          recipients.size()).append(" recipients").toString());
+    }
+    connection.send(message, recipients.toArray(new Address[recipients.size()]));
+  }
+
+  /**
+   * Send an email over the given connection, leaving it to the caller to record the outcome.
+   */
+  protected void sendEmail(SmtpConnection connection, Email email) throws MessagingException {
+    if (logger.isDebugEnabled()) {
+      logger.debug("Attempting to send " + email.getId() + " " + email.getSubject());
+      if (email.getTo() != null) {
+        logger.debug("To: " + Arrays.toString(email.getTo().toArray()));
+      }
+      else {
+        logger.debug("To is NULL");
+      }
+      if (email.getTo() != null) {
+        logger.debug("CC: " + Arrays.toString(email.getCc().toArray()));
+      }
+      else {
+        logger.debug("CC is NULL");
+      }
+      if (email.getTo() != null) {
+        logger.debug("BCC: " + Arrays.toString(email.getBcc().toArray()));
+      }
+      else {
+        logger.debug("BCC is NULL");
+      }
+      if (email.getTo() != null) {
+        logger.debug("FROM: " + email.getFrom());
+      }
+      else {
+        logger.debug("FROM is NULL");
+      }
+      if (email.getAttachments() != null) {
+        logger.debug("Attachments: " + Arrays.toString(email.getAttachments().toArray()));
+        for (Attachments attachment : email.getAttachments()) {
+          logger.debug("Attachment: " + attachment.getName());
+        }
+      }
+      else {
+        logger.debug("No attachments");
+      }
+    }
+    if (email.getRenderedMessage() != null) {
+      // BCC is left out of rendered messages, so the envelope is taken from the recipients of the email instead
+      PreRenderedMessage message = new PreRenderedMessage(session, email.getRenderedMessage());
+      // Rendered when saved, the message is dated when it is sent
+      message.setSentDate(new Date());
+      connection.send(message, getRecipients(email));
+    }
+    else {
+      connection.send(buildMessage(email));
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("Sent " + email.getId());
+    }
+  }
+
+  /**
+   * Render the email to the RFC 822 bytes that are sent over the wire, leaving out the BCC header so that blind copied
+   * recipients are not disclosed to the others. The date is set when the message is sent.
+   */
+  protected byte[] render(Email email) throws MessagingException, IOException {
+    MimeMessage message = buildMessage(email);
+    message.saveChanges();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    message.writeTo(output, RENDER_IGNORED_HEADERS);
+    return output.toByteArray();
+  }
+
+  protected Address[] getRecipients(Email email) throws MessagingException {
+    List<Address> recipients = new ArrayList<Address>();
+    for (Collection<String> addresses : Arrays.asList(email.getTo(), email.getCc(), email.getBcc())) {
+      if (addresses != null) {
+        for (String address : addresses) {
+          recipients.add(new InternetAddress(address));
+        }
+      }
+    }
+    return recipients.toArray(new Address[recipients.size()]);
+  }
+
+  protected MimeMessage buildMessage(Email email) throws MessagingException {
+    String subject = email.getSubject();
+    String from = email.getFrom();
+    MsgType msgType = email.getMessage() == null ? null : email.getMessage().getMsgType();
+    String msgBody = email.getMessage() == null ? null : email.getMessage().getMsgBody();
+    if (StringUtils.isNotBlank(email.getTemplateId())) {
+      TemplateRenderer.CompiledTemplate template = templateRenderer == null ? null : templateRenderer.getTemplate(
+          email.getTemplateId());
+      if (template == null) {
+        throw new SendRetryPolicy.PermanentFailureException(new StringBuilder("Template ").append(
+            email.getTemplateId()).append(" of email ").append(email.getId()).append(" not found").toString());
+      }
+      // What is set on the email wins over the template
+      if (StringUtils.isBlank(subject)) {
+        subject = template.mergeSubject(email);
+      }
+      if (StringUtils.isBlank(from)) {
+        from = template.getFrom();
+      }
+      if (StringUtils.isBlank(msgBody)) {
+        msgType = template.getMsgType();
+        msgBody = template.mergeMsgBody(email);
+      }
+    }
+    if (StringUtils.isBlank(subject) || StringUtils.isBlank(from)) {
+      throw new SendRetryPolicy.PermanentFailureException(new StringBuilder(
+          "Invalid email without either from or a subject ").append(email.getId()).toString());
+    }
+    MimeMessage message = new MimeMessage(session);
+    message.setSubject(subject);
+    message.setFrom(new InternetAddress(from));
+    addRecipients(message, Message.RecipientType.TO, email.getTo());
+    addRecipients(message, Message.RecipientType.CC, email.getCc());
+    addRecipients(message, Message.RecipientType.BCC, email.getBcc());
+    if (StringUtils.isNotBlank(msgBody) && MsgType.PLAIN.equals(msgType) && (email.getAttachments() == null || email.
+        getAttachments().isEmpty())) {
+      message.setText(msgBody);
+    }
+    else {
+      Multipart multipart = new MimeMultipart();
+      if (StringUtils.isNotBlank(msgBody)) {
+        MimeBodyPart bodyPart = new MimeBodyPart();
+        switch (msgType) {
+          case HTML:
+            bodyPart.setContent(msgBody, "text/html; charset=UTF-8");
+            break;
+          case PLAIN:
+          default:
+            bodyPart.setText(msgBody);
+        }
+        multipart.addBodyPart(bodyPart);
+      }
+      if (email.getAttachments() != null && !email.getAttachments().isEmpty()) {
+        for (Attachments attachment : email.getAttachments()) {
+          addAttachment(multipart, attachment);
+        }
+      }
+      message.setContent(multipart);
+    }
+    return message;
+  }
+
+  protected void addRecipients(MimeMessage message, RecipientType recipientType, Collection<String> addresses) throws
+      MessagingException {
+    if (addresses != null && !addresses.isEmpty()) {
+      Address[] addressArray = new Address[addresses.size()];
+      int index = 0;
+      for (String address : addresses) {
+        addressArray[index++] = new InternetAddress(address);
+      }
+      message.addRecipients(recipientType, addressArray);
+    }
+  }
+
+  private void addAttachment(Multipart multipart, Attachments attachment) throws MessagingException {
+    MimeBodyPart attachmentPart = new MimeBodyPart();
+    attachmentPart.setFileName(attachment.getName());
+    if (StringUtils.isNotBlank(attachment.getDescription())) {
+      attachmentPart.setDescription(attachment.getDescription());
+    }
+    if (StringUtils.isNotBlank(attachment.getDisposition())) {
+      attachmentPart.setDisposition(attachment.getDisposition());
+    }
+    final DataSource source;
+    if (attachmentStore == null) {
+      source = new ByteArrayDataSource(attachment.getBlob(), attachment.getContentType());
+    }
+    else {
+      source = attachmentStore.getDataSource(attachment);
+      if (source == null) {
+        throw new SendRetryPolicy.PermanentFailureException("Body of attachment " + attachment.getName() +
+            " is missing");
+      }
+    }
+    attachmentPart.setDataHandler(new DataHandler(source));
+    multipart.addBodyPart(attachmentPart);
+  }
+
+  public boolean saveTemplate(EmailTemplate template) {
+    if (templateDao == null) {
+      logger.warn("Templates are not available!");
+      return false;
+    }
+    if (StringUtils.isBlank(template.getName()) || StringUtils.isBlank(template.getSubject()) || template.getMsgType() ==
+        null || StringUtils.isBlank(template.getMsgBody())) {
+      logger.warn("Template needs a name, subject, message type and body!");
+      return false;
+    }
+    try {
+      templateDao.save(template);
+    }
+    catch (Exception ex) {
+      logger.warn("Could not save template", ex);
+      return false;
+    }
+    return true;
+  }
+
+  public boolean saveEmail(Email email, Email.Priority priority) {
+    email.setPriority(priority);
+    return saveEmail(email);
+  }
+
+  public boolean saveEmail(com.smartitengineering.emailq.domain.Email email) {
+    String rejectionReason = validate(email);
+    if (rejectionReason != null) {
+      logger.warn(rejectionReason);
+      metrics.rejected();
+      return false;
+    }
+    if (journal != null) {
+      try {
+        // The replay prepares and saves the email and wakes the sender up
+        journal.append(assignId(email));
+        metrics.enqueued();
+        return true;
+      }
+      catch (IOException ex) {
+        logger.warn("Could not journal email, saving it directly", ex);
+      }
+    }
+    prepareForQueue(email);
     try {
-      email.setMailStatus(Email.MailStatus.NOT_SENT);
       commonDao.save(email);
-      return true;
     }
     catch (Exception ex) {
       logger.warn("Could not save email", ex);
+      releaseAttachments(email);
+      metrics.rejected();
       return false;
     }
+    metrics.enqueued();
+    counters.enqueued(email);
+    signalWakeup(email);
+    return true;
+  }
+
+  public Future<String> saveEmailAsync(Email email) {
+    return asyncWriter.submit(email);
+  }
+
+  public List<SaveResult> saveEmails(Collection<Email> emails) {
+    if (emails == null || emails.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<Email> batch = new ArrayList<Email>(emails);
+    final int chunkSize = Math.max(1, saveBatchSize.intValue());
+    List<Future<List<SaveResult>>> chunks = new ArrayList<Future<List<SaveResult>>>();
+    for (int i = 0; i < batch.size(); i += chunkSize) {
+      final List<Email> chunk = batch.subList(i, Math.min(i + chunkSize, batch.size()));
+      chunks.add(saveExecutor.submit(new Callable<List<SaveResult>>() {
+
+        public List<SaveResult> call() throws Exception {
+          return saveChunk(chunk);
+        }
+      }));
+    }
+    List<SaveResult> results = new ArrayList<SaveResult>(batch.size());
+    for (int i = 0; i < chunks.size(); ++i) {
+      try {
+        results.addAll(chunks.get(i).get());
+      }
+      catch (Exception ex) {
+        logger.warn("Could not save email batch chunk", ex);
+        for (Email email : batch.subList(i * chunkSize, Math.min((i + 1) * chunkSize, batch.size()))) {
+          results.add(new SaveResult(email, false, "Could not save email: " + ex.getMessage()));
+        }
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Validate and write one chunk of a batch, the valid emails of the chunk are written together. With the journal on
+   * they are appended to it with a single sync and moved into the repository by its replay.
+   */
+  protected List<SaveResult> saveChunk(List<Email> chunk) {
+    List<SaveResult> results = new ArrayList<SaveResult>(chunk.size());
+    List<Email> valid = new ArrayList<Email>(chunk.size());
+    for (Email email : chunk) {
+      String rejectionReason = validate(email);
+      if (rejectionReason == null) {
+        valid.add(email);
+      }
+      else {
+        metrics.rejected();
+      }
+      results.add(new SaveResult(email, rejectionReason == null, rejectionReason));
+    }
+    if (valid.isEmpty()) {
+      return results;
+    }
+    if (journal != null) {
+      try {
+        for (Email email : valid) {
+          assignId(email);
+        }
+        journal.append(valid);
+        for (int i = 0; i < valid.size(); ++i) {
+          metrics.enqueued();
+        }
+        return results;
+      }
+      catch (IOException ex) {
+        logger.warn("Could not journal emails, saving them directly", ex);
+      }
+    }
+    for (Email email : valid) {
+      prepareForQueue(email);
+    }
+    try {
+      commonDao.save(valid.toArray(new Email[valid.size()]));
+    }
+    catch (Exception ex) {
+      logger.warn("Could not save emails", ex);
+      for (Email email : valid) {
+        releaseAttachments(email);
+      }
+      // The repository does not tell which emails of a failed write made it, so report all of them as rejected
+      for (int i = 0; i < results.size(); ++i) {
+        if (results.get(i).isAccepted()) {
+          metrics.rejected();
+          results.set(i, new SaveResult(results.get(i).getEmail(), false, "Could not save email: " + ex.getMessage()));
+        }
+      }
+      return results;
+    }
+    for (Email email : valid) {
+      metrics.enqueued();
+      counters.enqueued(email);
+      signalWakeup(email);
+    }
+    return results;
+  }
+
+  /**
+   * Give a journaled email its id up front, so that it is stored under the same id however often it is replayed and
+   * the caller learns the id right away.
+   */
+  private Email assignId(Email email) {
+    if (StringUtils.isBlank(email.getId())) {
+      email.setId(UUID.randomUUID().toString());
+    }
+    return email;
+  }
+
+  /**
+   * @return Why the email can not be queued, null if it can
+   */
+  protected String validate(Email email) {
+    if (email == null) {
+      return "No email set!";
+    }
+    // No deliverable configured
+    if ((email.getTo() == null || email.getTo().isEmpty()) && (email.getCc() == null || email.getCc().isEmpty()) &&
+        (email.getBcc() == null || email.getBcc().isEmpty())) {
+      return "Ignoring email as no deliverable address is set!";
+    }
+    if (StringUtils.isNotBlank(email.getTemplateId())) {
+      // The template provides what is missing
+      TemplateRenderer.CompiledTemplate template = templateRenderer == null ? null : templateRenderer.getTemplate(
+          email.getTemplateId());
+      if (template == null) {
+        return "No template " + email.getTemplateId() + " found!";
+      }
+      if (StringUtils.isBlank(email.getFrom()) && StringUtils.isBlank(template.getFrom())) {
+        return "No From configured!";
+      }
+      return null;
+    }
+    // No from configured
+    if (StringUtils.isBlank(email.getFrom())) {
+      return "No From configured!";
+    }
+    // No message body
+    if (email.getMessage() == null || email.getMessage().getMsgType() == null || StringUtils.isBlank(email.getMessage().
+        getMsgBody())) {
+      return "No message body set!";
+    }
+    return null;
+  }
+
+  private void prepareForQueue(Email email) {
+    email.setMailStatus(Email.MailStatus.NOT_SENT);
+    if (email.getPriority() == null) {
+      email.setPriority(Email.Priority.NORMAL);
+    }
+    email.setSendAttempts(0);
+    // The pending query only returns due emails, so an email to be sent later is simply due later
+    final Date now = new Date();
+    email.setNextAttemptTime(email.getSendAfter() != null && email.getSendAfter().after(now) ? email.getSendAfter()
+        : now);
+    if (attachmentDedupEnabled.booleanValue() && attachmentStore != null) {
+      try {
+        attachmentStore.store(email);
+      }
+      catch (Exception ex) {
+        // Attachments not moved to the store yet stay with the email, which works just as well
+        logger.warn("Could not store attachments by content", ex);
+      }
+    }
+    // Rendering a template email would store the very body the template saves storing, and rendering attachments
+    // would store a copy of each of them with every email, which is what storing them by content avoids
+    if (preRenderEnabled.booleanValue() && StringUtils.isBlank(email.getTemplateId()) && (email.getAttachments() ==
+        null || email.getAttachments().isEmpty())) {
+      try {
+        email.setRenderedMessage(render(email));
+      }
+      catch (Exception ex) {
+        // The email is built at send time instead, failing there if it can not be built at all
+        logger.warn("Could not pre-render email", ex);
+      }
+    }
+  }
+
+  private void releaseAttachments(Email email) {
+    if (attachmentStore == null) {
+      return;
+    }
+    try {
+      attachmentStore.release(email);
+    }
+    catch (Exception ex) {
+      logger.warn("Could not release attachments of email " + email.getId(), ex);
+    }
   }
 
   public Emails getEmails(com.smartitengineering.dao.common.queryparam.QueryParameter... params) {
@@ -350,4 +1829,73 @@ public class EmailServiceImpl implements EmailService {
     emails.setEmails(emailCollcn);
     return emails;
   }
+
+  public long getEmailCount(Email.MailStatus status) {
+    return counters.getCount(status);
+  }
+
+  public long getEmailCount(Email.MailStatus status, Email.Priority priority) {
+    return priority == null ? counters.getCount(status) : counters.getCount(status, priority);
+  }
+
+  public Map<String, Long> getEmailCounts() {
+    return counters.getCounts();
+  }
+
+  public EmailPage getEmailPage(String cursor, int pageSize, boolean counted, QueryParameter... params) {
+    final List<EmailSummary> summaries = getSummaries(cursor, pageSize, params);
+    final String nextCursor = getNextCursor(summaries, pageSize);
+    final long totalCount = counted ? extendedReadDao.count(params) : EmailPage.NOT_COUNTED;
+    return new EmailPage(trim(summaries, pageSize), nextCursor, totalCount);
+  }
+
+  public EmailPage getEmailPage(String cursor, int pageSize, Email.MailStatus status, Email.Priority priority) {
+    if (status == null) {
+      throw new IllegalArgumentException("Status must not be null");
+    }
+    List<QueryParameter> params = new ArrayList<QueryParameter>(2);
+    params.add(QueryParameterFactory.getStringLikePropertyParam(Email.PROPERTY_MAILSTATUS, status.name(),
+                                                                MatchMode.EXACT));
+    if (priority != null) {
+      params.add(QueryParameterFactory.getStringLikePropertyParam(Email.PROPERTY_PRIORITY, priority.name(),
+                                                                  MatchMode.EXACT));
+    }
+    final List<EmailSummary> summaries = getSummaries(cursor, pageSize,
+                                                      params.toArray(new QueryParameter[params.size()]));
+    final String nextCursor = getNextCursor(summaries, pageSize);
+    return new EmailPage(trim(summaries, pageSize), nextCursor, getEmailCount(status, priority), true);
+  }
+
+  /**
+   * Read the summaries of a page plus one, the one more telling whether there is a next page without counting.
+   */
+  private List<EmailSummary> getSummaries(String cursor, int pageSize, QueryParameter... params) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("Page size must be at least 1 but is " + pageSize);
+    }
+    List<QueryParameter> query = new ArrayList<QueryParameter>(Arrays.asList(params));
+    if (StringUtils.isNotBlank(cursor)) {
+      query.add(QueryParameterFactory.getGreaterThanPropertyParam(PendingEmailReader.PROPERTY_ID, cursor));
+    }
+    query.add(QueryParameterFactory.getOrderByParam(PendingEmailReader.PROPERTY_ID, Order.ASC));
+    query.add(QueryParameterFactory.getMaxResultsParam(pageSize + 1));
+    query.add(QueryParameterFactory.getFirstResultParam(0));
+    List<Email> emails = commonDao.getList(query);
+    if (emails == null) {
+      return Collections.emptyList();
+    }
+    List<EmailSummary> summaries = new ArrayList<EmailSummary>(emails.size());
+    for (Email email : emails) {
+      summaries.add(new EmailSummary(email));
+    }
+    return summaries;
+  }
+
+  private static String getNextCursor(List<EmailSummary> summaries, int pageSize) {
+    return summaries.size() <= pageSize ? null : summaries.get(pageSize - 1).getId();
+  }
+
+  private static List<EmailSummary> trim(List<EmailSummary> summaries, int pageSize) {
+    return summaries.size() <= pageSize ? summaries : summaries.subList(0, pageSize);
+  }
 }
@@ -0,0 +1,143 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.dao.common.CommonDao;
+import com.smartitengineering.emailq.domain.Email;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes emails whose status changed back to the repository in small batches on its own thread, so that the threads
+ * sending emails never wait on the repository. A batch is written as soon as flush size emails are waiting or at
+ * least every flush interval, thus a crash loses at most one batch worth of status changes. A batch the repository
+ * fails to write is kept and written before any other on the following flushes, till it has failed
+ * {@link #MAX_ATTEMPTS} times.
+ * @author imyousuf
+ */
+public class EmailStatusFlusher {
+
+  public static final int MAX_ATTEMPTS = 5;
+
+  private final CommonDao<Email, String> commonDao;
+  private final ScheduledExecutorService executor;
+  private final int flushSize;
+  private final BlockingQueue<Email> pending = new LinkedBlockingQueue<Email>();
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+  private final transient Logger logger = LoggerFactory.getLogger(getClass());
+  /**
+   * The batch last failed to be written and how many times it failed, only written by the flushing thread.
+   */
+  private volatile Email[] failedBatch;
+  private int failedAttempts;
+  private final Runnable flushTask = new Runnable() {
+
+    public void run() {
+      flushRequested.set(false);
+      try {
+        flushPending();
+      }
+      catch (Exception ex) {
+        // Throwing would cancel the schedule; the batch is kept and written on a later flush
+        logger.warn("Could not flush email statuses", ex);
+      }
+    }
+  };
+  private final Callable<Void> flushCall = new Callable<Void>() {
+
+    public Void call() throws Exception {
+      flushRequested.set(false);
+      flushPending();
+      return null;
+    }
+  };
+
+  public EmailStatusFlusher(CommonDao<Email, String> commonDao, ScheduledExecutorService executor, int flushSize,
+                            long flushIntervalInMillis) {
+    this.commonDao = commonDao;
+    this.executor = executor;
+    this.flushSize = flushSize;
+    executor.scheduleWithFixedDelay(flushTask, flushIntervalInMillis, flushIntervalInMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void add(Email email) {
+    pending.add(email);
+    // While a batch is failing it is retried on the flush interval rather than on every email added
+    if (failedBatch == null && pending.size() >= flushSize && flushRequested.compareAndSet(false, true)) {
+      executor.execute(flushTask);
+    }
+  }
+
+  /**
+   * Write every email added so far, blocking till they are written.
+   * @throws ExecutionException If the repository failed to write a batch, with the failure as its cause. The batch is
+   *                            written again on the following flushes till it has failed {@link #MAX_ATTEMPTS} times.
+   */
+  public void flush() throws InterruptedException, ExecutionException {
+    executor.submit(flushCall).get();
+  }
+
+  private void flushPending() throws Exception {
+    if (failedBatch != null) {
+      write(failedBatch);
+    }
+    List<Email> batch = new ArrayList<Email>(flushSize);
+    while (pending.drainTo(batch, flushSize) > 0) {
+      Email[] emails = batch.toArray(new Email[batch.size()]);
+      batch.clear();
+      write(emails);
+    }
+  }
+
+  private void write(Email[] batch) throws Exception {
+    try {
+      commonDao.update(batch);
+    }
+    catch (Exception ex) {
+      if (batch != failedBatch) {
+        failedBatch = batch;
+        failedAttempts = 0;
+      }
+      if (++failedAttempts < MAX_ATTEMPTS) {
+        logger.warn("Could not update status of " + batch.length + " emails, attempt " + failedAttempts + " of " +
+            MAX_ATTEMPTS);
+      }
+      else {
+        // The emails will be picked up again by a later poll, which is the best that can be done here
+        logger.error("Giving up updating status of " + batch.length + " emails after " + failedAttempts +
+            " attempts");
+        failedBatch = null;
+      }
+      throw ex;
+    }
+    failedBatch = null;
+    if (logger.isDebugEnabled()) {
+      logger.debug("Flushed status of " + batch.length + " emails");
+    }
+  }
+}
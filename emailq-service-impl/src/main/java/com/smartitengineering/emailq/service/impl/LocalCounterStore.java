@@ -0,0 +1,75 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.emailq.service.CounterStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The counter store used unless another one is bound, keeping the counters in process. It only sees the emails of this
+ * node, so it suits a single sender node.
+ * @author imyousuf
+ */
+public class LocalCounterStore implements CounterStore {
+
+  private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+  private final AtomicBoolean seeded = new AtomicBoolean();
+
+  public void add(Map<String, Long> deltas) {
+    for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+      getCounter(delta.getKey()).addAndGet(delta.getValue().longValue());
+    }
+  }
+
+  public boolean isSeeded() {
+    return seeded.get();
+  }
+
+  public boolean seed(Map<String, Long> counts) {
+    if (!seeded.compareAndSet(false, true)) {
+      return false;
+    }
+    for (Map.Entry<String, Long> count : counts.entrySet()) {
+      getCounter(count.getKey()).set(count.getValue().longValue());
+    }
+    return true;
+  }
+
+  public Map<String, Long> getAll() {
+    Map<String, Long> all = new HashMap<String, Long>(counters.size());
+    for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+      all.put(counter.getKey(), counter.getValue().get());
+    }
+    return all;
+  }
+
+  private AtomicLong getCounter(String name) {
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      counters.putIfAbsent(name, new AtomicLong());
+      counter = counters.get(name);
+    }
+    return counter;
+  }
+}
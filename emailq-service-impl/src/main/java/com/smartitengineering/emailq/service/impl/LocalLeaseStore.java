@@ -0,0 +1,84 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.emailq.service.LeaseStore;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The lease store used unless another one is bound, keeping the leases in process. Claims only exclude each other
+ * within this node, so it suits a single sender node.
+ * @author imyousuf
+ */
+public class LocalLeaseStore implements LeaseStore {
+
+  /**
+   * Leases of sent emails are left to expire rather than released, so expired ones are purged every so many acquires.
+   */
+  private static final int PURGE_INTERVAL = 1024;
+  private final ConcurrentMap<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+  private final AtomicInteger acquireCount = new AtomicInteger();
+
+  public boolean acquire(String emailId, String owner, long expiresAt, long now) {
+    if (acquireCount.incrementAndGet() % PURGE_INTERVAL == 0) {
+      purgeExpired(now);
+    }
+    final Lease lease = new Lease(owner, expiresAt);
+    Lease current = leases.get(emailId);
+    if (current == null) {
+      return leases.putIfAbsent(emailId, lease) == null;
+    }
+    if (current.expiresAt > now && !current.owner.equals(owner)) {
+      return false;
+    }
+    return leases.replace(emailId, current, lease);
+  }
+
+  public void release(String emailId, String owner) {
+    Lease current = leases.get(emailId);
+    if (current != null && current.owner.equals(owner)) {
+      leases.remove(emailId, current);
+    }
+  }
+
+  private void purgeExpired(long now) {
+    for (Map.Entry<String, Lease> lease : leases.entrySet()) {
+      if (lease.getValue().expiresAt <= now) {
+        leases.remove(lease.getKey(), lease.getValue());
+      }
+    }
+  }
+
+  /**
+   * Compared by identity, so that a compare and set only succeeds against the very lease it read.
+   */
+  private static class Lease {
+
+    private final String owner;
+    private final long expiresAt;
+
+    Lease(String owner, long expiresAt) {
+      this.owner = owner;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.emailq.domain.Email;
+import com.smartitengineering.emailq.domain.Email.Attachments;
+
+/**
+ * Keeps track of the estimated memory held by emails read from the queue and not yet done with, so that readers can
+ * hold back while the budget is exhausted. One budget may be shared by several readers.
+ * @author imyousuf
+ */
+public class MemoryBudget {
+
+  private final long budgetInBytes;
+  private long bytesInUse;
+
+  public MemoryBudget(long budgetInBytes) {
+    this.budgetInBytes = budgetInBytes;
+  }
+
+  /**
+   * Block while the budget is exhausted.
+   */
+  public synchronized void awaitAvailable() throws InterruptedException {
+    while (bytesInUse >= budgetInBytes) {
+      wait();
+    }
+  }
+
+  public synchronized void acquire(Email email) {
+    bytesInUse += estimateSize(email);
+  }
+
+  public synchronized void release(Email email) {
+    bytesInUse -= estimateSize(email);
+    notifyAll();
+  }
+
+  public synchronized long getBytesInUse() {
+    return bytesInUse;
+  }
+
+  static long estimateSize(Email email) {
+    long size = 0;
+    if (email.getSubject() != null) {
+      size += email.getSubject().length() * 2;
+    }
+    if (email.getMessage() != null && email.getMessage().getMsgBody() != null) {
+      size += email.getMessage().getMsgBody().length() * 2;
+    }
+    if (email.getRenderedMessage() != null) {
+      size += email.getRenderedMessage().length;
+    }
+    if (email.getAttachments() != null) {
+      for (Attachments attachment : email.getAttachments()) {
+        if (attachment.getBlob() != null) {
+          size += attachment.getBlob().length;
+        }
+      }
+    }
+    return size;
+  }
+}
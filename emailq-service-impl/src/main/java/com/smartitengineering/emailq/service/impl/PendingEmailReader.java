@@ -0,0 +1,153 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.dao.common.CommonDao;
+import com.smartitengineering.dao.common.queryparam.Order;
+import com.smartitengineering.dao.common.queryparam.QueryParameter;
+import com.smartitengineering.dao.common.queryparam.QueryParameterFactory;
+import com.smartitengineering.emailq.domain.Email;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads emails matching a query one page at a time, prefetching the next page in the background while the current
+ * one is being sent. Pages are keyed on the email id rather than on an offset, so that emails leaving the result set
+ * while being read (e.g. because they got sent) do not make the reader skip others. The estimated size of the emails
+ * handed out and not yet {@link #release(Email) released} is bounded by a memory budget, which may be shared with other
+ * readers; the next page is not fetched while the budget is exhausted. If a claimer is set only the emails of a page
+ * successfully claimed are handed out.
+ * @author imyousuf
+ */
+public class PendingEmailReader {
+
+  static final String PROPERTY_ID = "id";
+  private final CommonDao<Email, String> commonDao;
+  private final EmailLeaseClaimer claimer;
+  private final ExecutorService prefetchExecutor;
+  private final QueryParameter[] params;
+  private final int pageSize;
+  private final MemoryBudget memoryBudget;
+  private Future<Page> nextPage;
+
+  public PendingEmailReader(CommonDao<Email, String> commonDao, EmailLeaseClaimer claimer,
+                            ExecutorService prefetchExecutor, int pageSize, MemoryBudget memoryBudget,
+                            QueryParameter... params) {
+    this.commonDao = commonDao;
+    this.claimer = claimer;
+    this.prefetchExecutor = prefetchExecutor;
+    this.pageSize = pageSize;
+    this.memoryBudget = memoryBudget;
+    this.params = params;
+    this.nextPage = prefetch(null);
+  }
+
+  /**
+   * Get the next page of emails, blocking till it is fetched.
+   * @return The next page or null if there are no more emails
+   */
+  public List<Email> nextPage() throws InterruptedException {
+    while (nextPage != null) {
+      final Page page;
+      try {
+        page = nextPage.get();
+      }
+      catch (ExecutionException ex) {
+        nextPage = null;
+        throw new IllegalStateException(ex.getCause());
+      }
+      nextPage = page.last ? null : prefetch(page.lastId);
+      // Every email of a page may have been claimed by other nodes, that does not mean there are no more pages
+      if (!page.emails.isEmpty()) {
+        return page.emails;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Whether {@link #nextPage()} would return without blocking.
+   */
+  public boolean isPageReady() {
+    return nextPage == null || nextPage.isDone();
+  }
+
+  /**
+   * Signal that an email handed out is no longer referenced, freeing its share of the memory budget.
+   */
+  public void release(Email email) {
+    memoryBudget.release(email);
+  }
+
+  /**
+   * Stop reading, any page being prefetched is discarded.
+   */
+  public void close() {
+    if (nextPage != null) {
+      nextPage.cancel(true);
+      nextPage = null;
+    }
+  }
+
+  private Future<Page> prefetch(final String lastId) {
+    return prefetchExecutor.submit(new Callable<Page>() {
+
+      public Page call() throws Exception {
+        memoryBudget.awaitAvailable();
+        List<QueryParameter> query = new ArrayList<QueryParameter>(Arrays.asList(params));
+        if (lastId != null) {
+          query.add(QueryParameterFactory.getGreaterThanPropertyParam(PROPERTY_ID, lastId));
+        }
+        query.add(QueryParameterFactory.getOrderByParam(PROPERTY_ID, Order.ASC));
+        query.add(QueryParameterFactory.getMaxResultsParam(pageSize));
+        query.add(QueryParameterFactory.getFirstResultParam(0));
+        List<Email> emails = commonDao.getList(query);
+        if (emails == null || emails.isEmpty()) {
+          return new Page(Collections.<Email>emptyList(), null, true);
+        }
+        final String pageLastId = emails.get(emails.size() - 1).getId();
+        final boolean last = emails.size() < pageSize;
+        List<Email> page = claimer == null ? new ArrayList<Email>(emails) : claimer.claim(emails);
+        for (Email email : page) {
+          memoryBudget.acquire(email);
+        }
+        return new Page(page, pageLastId, last);
+      }
+    });
+  }
+
+  private static class Page {
+
+    private final List<Email> emails;
+    private final String lastId;
+    private final boolean last;
+
+    Page(List<Email> emails, String lastId, boolean last) {
+      this.emails = emails;
+      this.lastId = lastId;
+      this.last = last;
+    }
+  }
+}
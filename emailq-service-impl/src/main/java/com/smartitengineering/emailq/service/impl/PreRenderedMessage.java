@@ -0,0 +1,44 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+/**
+ * A message rendered to RFC 822 bytes when it was saved. Its content is not decoded or encoded again but written to the
+ * transport as is, sharing the rendered bytes rather than copying them.
+ * @author imyousuf
+ */
+public class PreRenderedMessage extends MimeMessage {
+
+  public PreRenderedMessage(Session session, byte[] rendered) throws MessagingException {
+    super(session, new SharedByteArrayInputStream(rendered));
+  }
+
+  /**
+   * The changes were saved when the message was rendered; saving them again would make JavaMail rebuild the content
+   * from scratch.
+   */
+  @Override
+  public void saveChanges() {
+  }
+}
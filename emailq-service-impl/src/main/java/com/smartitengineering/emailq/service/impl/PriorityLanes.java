@@ -0,0 +1,119 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.emailq.domain.Email;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Merges the pending emails of each priority into one stream by weighted round robin. Every round starts with the
+ * highest priority lane and takes up to weight emails from each lane in turn, so higher priorities go out first while
+ * lower ones still get their share instead of starving.
+ * <p>
+ * The readers of the lanes may share a memory budget, so a lane whose next page is still being fetched is skipped
+ * rather than waited for; waiting on it could keep the other lanes from handing out the emails holding the budget.
+ * </p>
+ * @author imyousuf
+ */
+public class PriorityLanes {
+
+  private final List<Lane> lanes = new ArrayList<Lane>();
+  private int laneIndex;
+  private int servedInTurn;
+
+  /**
+   * Add a lane, lanes have to be added from the highest priority to the lowest.
+   */
+  public void addLane(PendingEmailReader reader, int weight) {
+    lanes.add(new Lane(reader, Math.max(1, weight)));
+  }
+
+  /**
+   * Get the next email to send, blocking while the page it is on is being fetched.
+   * @return The next email or null if every lane is drained
+   */
+  public Email next() throws InterruptedException {
+    int lanesSkipped = 0;
+    while (!isDrained()) {
+      Lane lane = lanes.get(laneIndex);
+      if (!lane.drained && servedInTurn < lane.weight) {
+        // Once every lane has been skipped none of them holds a page, so it is safe to block on one
+        if (lane.isReady() || lanesSkipped >= lanes.size()) {
+          Email email = lane.next();
+          if (email != null) {
+            servedInTurn++;
+            return email;
+          }
+        }
+        else {
+          lanesSkipped++;
+        }
+      }
+      laneIndex = (laneIndex + 1) % lanes.size();
+      servedInTurn = 0;
+    }
+    return null;
+  }
+
+  public void close() {
+    for (Lane lane : lanes) {
+      lane.reader.close();
+    }
+  }
+
+  private boolean isDrained() {
+    for (Lane lane : lanes) {
+      if (!lane.drained) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static class Lane {
+
+    private final PendingEmailReader reader;
+    private final int weight;
+    private Iterator<Email> page;
+    private boolean drained;
+
+    Lane(PendingEmailReader reader, int weight) {
+      this.reader = reader;
+      this.weight = weight;
+    }
+
+    boolean isReady() {
+      return (page != null && page.hasNext()) || reader.isPageReady();
+    }
+
+    Email next() throws InterruptedException {
+      if (page == null || !page.hasNext()) {
+        List<Email> nextPage = reader.nextPage();
+        if (nextPage == null) {
+          drained = true;
+          return null;
+        }
+        page = nextPage.iterator();
+      }
+      return page.next();
+    }
+  }
+}
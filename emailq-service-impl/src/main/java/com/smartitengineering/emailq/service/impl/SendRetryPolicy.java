@@ -0,0 +1,157 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.emailq.domain.Email;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import java.util.Date;
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+
+/**
+ * Decides what happens to an email that could not be sent. Transient failures, i.e. 4xx SMTP replies or connection
+ * trouble, are retried with exponential backoff; permanent ones, i.e. 5xx SMTP replies or malformed emails, and emails
+ * out of attempts are marked FAILED and never picked up again.
+ * @author imyousuf
+ */
+public class SendRetryPolicy {
+
+  private final int maxAttempts;
+  private final long initialBackoffInMillis;
+  private final long maxBackoffInMillis;
+
+  public SendRetryPolicy(int maxAttempts, long initialBackoffInMillis, long maxBackoffInMillis) {
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffInMillis = initialBackoffInMillis;
+    this.maxBackoffInMillis = maxBackoffInMillis;
+  }
+
+  /**
+   * Record a failed attempt to send the email, setting its status, attempt count and when to try next.
+   * @return True if the email will be retried
+   */
+  public boolean recordFailure(Email email, Exception failure) {
+    final Date now = new Date();
+    final int attempts = email.getSendAttempts() == null ? 1 : email.getSendAttempts().intValue() + 1;
+    email.setSendAttempts(attempts);
+    email.setLastSendTrialTime(now);
+    email.setFailureReason(failure.getMessage());
+    if (isPermanent(failure) || attempts >= maxAttempts) {
+      email.setMailStatus(Email.MailStatus.FAILED);
+      email.setNextAttemptTime(null);
+      return false;
+    }
+    email.setMailStatus(Email.MailStatus.NOT_SENT);
+    email.setNextAttemptTime(new Date(now.getTime() + getBackoffInMillis(attempts)));
+    return true;
+  }
+
+  public void recordSuccess(Email email) {
+    final int attempts = email.getSendAttempts() == null ? 1 : email.getSendAttempts().intValue() + 1;
+    email.setSendAttempts(attempts);
+    email.setLastSendTrialTime(new Date());
+    email.setNextAttemptTime(null);
+    email.setMailStatus(Email.MailStatus.SENT);
+  }
+
+  /**
+   * The delay before the next attempt, doubling with every attempt made so far up to the max backoff.
+   */
+  public long getBackoffInMillis(int attempts) {
+    long backoff = initialBackoffInMillis;
+    for (int i = 1; i < attempts && backoff < maxBackoffInMillis; ++i) {
+      backoff *= 2;
+    }
+    return Math.min(backoff, maxBackoffInMillis);
+  }
+
+  /**
+   * A failure is permanent if the email itself is broken or the server rejected it with a 5xx reply and nothing but
+   * 5xx replies. A single 4xx reply, or no reply at all as when the connection fails, makes it transient.
+   */
+  public boolean isPermanent(Exception failure) {
+    boolean permanentReply = false;
+    Exception exception = failure;
+    while (exception != null) {
+      if (exception instanceof PermanentFailureException || exception instanceof AddressException) {
+        return true;
+      }
+      final int returnCode = getReturnCode(exception);
+      if (returnCode >= 400 && returnCode < 500) {
+        return false;
+      }
+      if (returnCode >= 500 && returnCode < 600) {
+        permanentReply = true;
+      }
+      exception = exception instanceof MessagingException ? ((MessagingException) exception).getNextException() : null;
+    }
+    return permanentReply;
+  }
+
+  /**
+   * A failure is throttling if the server replied with a 4xx, e.g. a 421 or 450 telling us to come back later.
+   */
+  public boolean isThrottled(Exception failure) {
+    Exception exception = failure;
+    while (exception != null) {
+      final int returnCode = getReturnCode(exception);
+      if (returnCode >= 400 && returnCode < 500) {
+        return true;
+      }
+      exception = exception instanceof MessagingException ? ((MessagingException) exception).getNextException() : null;
+    }
+    return false;
+  }
+
+  /**
+   * The class of the first SMTP reply in the failure, i.e. the first digit of its code, or 0 if there was no reply.
+   */
+  public int getReplyClass(Exception failure) {
+    Exception exception = failure;
+    while (exception != null) {
+      final int returnCode = getReturnCode(exception);
+      if (returnCode > 0) {
+        return returnCode / 100;
+      }
+      exception = exception instanceof MessagingException ? ((MessagingException) exception).getNextException() : null;
+    }
+    return 0;
+  }
+
+  private static int getReturnCode(Exception exception) {
+    if (exception instanceof SMTPSendFailedException) {
+      return ((SMTPSendFailedException) exception).getReturnCode();
+    }
+    if (exception instanceof SMTPAddressFailedException) {
+      return ((SMTPAddressFailedException) exception).getReturnCode();
+    }
+    return -1;
+  }
+
+  /**
+   * Thrown for an email that can never be sent as it is, e.g. one without a sender.
+   */
+  public static class PermanentFailureException extends MessagingException {
+
+    public PermanentFailureException(String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the executor the send workers run on. Workers block on SMTP I/O most of the time, so on a JDK with virtual
+ * threads (21 or later) each of them may run on a virtual thread of its own, making hundreds of concurrent SMTP
+ * sessions cheap. Virtual threads are looked up reflectively so that the code still runs on older JDKs, which get a
+ * fixed pool of platform threads instead. Either way, how many sends run at once is capped by the permits of the SMTP
+ * connection pools, and by the max concurrent sends if set, rather than by the executor.
+ * <p>
+ * JavaMail's SMTPTransport sends and connects in synchronized methods. Up to JDK 23 a virtual thread blocking inside a
+ * synchronized method pins its carrier thread, so every worker waiting on an SMTP server holds one of the few carrier
+ * threads, and sends stall once as many workers wait as there are carriers. Virtual threads are therefore only used
+ * from JDK 24 on, where synchronized no longer pins; older JDKs get platform threads even if virtual threads are asked
+ * for.
+ * </p>
+ * @author imyousuf
+ */
+public final class SenderExecutors {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SenderExecutors.class);
+  /**
+   * The first JDK on which a virtual thread blocking in a synchronized method does not pin its carrier thread.
+   */
+  private static final int UNPINNED_SYNCHRONIZED_JDK = 24;
+  private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = lookupVirtualThreadExecutor();
+
+  private SenderExecutors() {
+  }
+
+  public static boolean isVirtualThreadAvailable() {
+    return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+  }
+
+  /**
+   * Whether virtual threads are available and do not pin their carrier threads in JavaMail's synchronized sends.
+   */
+  public static boolean isVirtualThreadUsable() {
+    return isVirtualThreadAvailable() && getJavaVersion() >= UNPINNED_SYNCHRONIZED_JDK;
+  }
+
+  /**
+   * Create an executor for the given number of workers.
+   * @param virtualThreads Whether to run each worker on a virtual thread if the JDK supports them
+   * @param platformThreadFactory Factory of the platform threads, if they are used
+   */
+  public static ExecutorService newSenderExecutor(boolean virtualThreads, int workerCount,
+                                                  ThreadFactory platformThreadFactory) {
+    if (virtualThreads) {
+      if (isVirtualThreadUsable()) {
+        try {
+          return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+        }
+        catch (Exception ex) {
+          LOGGER.warn("Could not create virtual thread executor, falling back to platform threads", ex);
+        }
+      }
+      else if (isVirtualThreadAvailable()) {
+        LOGGER.warn("Virtual threads pin their carrier threads in JavaMail's synchronized sends before JDK " +
+            UNPINNED_SYNCHRONIZED_JDK + ", falling back to platform threads");
+      }
+      else {
+        LOGGER.info("Virtual threads need JDK 21 or later, falling back to platform threads");
+      }
+    }
+    return Executors.newFixedThreadPool(workerCount, platformThreadFactory);
+  }
+
+  /**
+   * The feature version of the running JDK, e.g. 21, or 1 for the 1.x versions before 9.
+   */
+  static int getJavaVersion() {
+    final String version = System.getProperty("java.specification.version", "");
+    final int dot = version.indexOf('.');
+    try {
+      return Integer.parseInt(dot < 0 ? version : version.substring(0, dot));
+    }
+    catch (NumberFormatException ex) {
+      return 0;
+    }
+  }
+
+  private static Method lookupVirtualThreadExecutor() {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    }
+    catch (NoSuchMethodException ex) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.emailq.service.MetricsRegistry;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * The metrics registry used unless another one is bound, exposing every metric as a read only attribute of a JMX
+ * MBean. Counters are atomic longs; histograms count values in power of two buckets, so recording a value is a few
+ * atomic increments and percentiles are reported as the upper bound of the bucket they fall in. Each histogram is
+ * reported as its count, mean, max, p50, p99 and p999 attributes.
+ * @author imyousuf
+ */
+public class SimpleMetricsRegistry implements MetricsRegistry, DynamicMBean {
+
+  private static final String[] HISTOGRAM_ATTRIBUTES = {"count", "mean", "max", "p50", "p99", "p999"};
+  private final ConcurrentMap<String, SimpleCounter> counters = new ConcurrentHashMap<String, SimpleCounter>();
+  private final ConcurrentMap<String, SimpleHistogram> histograms = new ConcurrentHashMap<String, SimpleHistogram>();
+  private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+  public Counter counter(String name) {
+    SimpleCounter counter = counters.get(name);
+    if (counter == null) {
+      counters.putIfAbsent(name, new SimpleCounter());
+      counter = counters.get(name);
+    }
+    return counter;
+  }
+
+  public Histogram histogram(String name) {
+    SimpleHistogram histogram = histograms.get(name);
+    if (histogram == null) {
+      histograms.putIfAbsent(name, new SimpleHistogram());
+      histogram = histograms.get(name);
+    }
+    return histogram;
+  }
+
+  public void gauge(String name, Gauge gauge) {
+    gauges.put(name, gauge);
+  }
+
+  public void register(ObjectName name) throws Exception {
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+  }
+
+  public void unregister(ObjectName name) throws Exception {
+    ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+  }
+
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    SimpleCounter counter = counters.get(attribute);
+    if (counter != null) {
+      return counter.count.get();
+    }
+    Gauge gauge = gauges.get(attribute);
+    if (gauge != null) {
+      return gauge.getValue();
+    }
+    final int separator = attribute.lastIndexOf('.');
+    SimpleHistogram histogram = separator < 0 ? null : histograms.get(attribute.substring(0, separator));
+    if (histogram != null) {
+      final String statistic = attribute.substring(separator + 1);
+      if ("count".equals(statistic)) {
+        return histogram.count.get();
+      }
+      if ("mean".equals(statistic)) {
+        return histogram.getMean();
+      }
+      if ("max".equals(statistic)) {
+        return histogram.max.get();
+      }
+      if ("p50".equals(statistic)) {
+        return histogram.getPercentile(0.5);
+      }
+      if ("p99".equals(statistic)) {
+        return histogram.getPercentile(0.99);
+      }
+      if ("p999".equals(statistic)) {
+        return histogram.getPercentile(0.999);
+      }
+    }
+    throw new AttributeNotFoundException(attribute);
+  }
+
+  public AttributeList getAttributes(String[] attributes) {
+    AttributeList list = new AttributeList();
+    for (String attribute : attributes) {
+      try {
+        list.add(new Attribute(attribute, getAttribute(attribute)));
+      }
+      catch (AttributeNotFoundException ex) {
+        // Left out, as the contract of getAttributes has it
+      }
+    }
+    return list;
+  }
+
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Metrics are read only");
+  }
+
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  public MBeanInfo getMBeanInfo() {
+    List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+    for (String name : counters.keySet()) {
+      attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), "Counter", true, false, false));
+    }
+    for (String name : gauges.keySet()) {
+      attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), "Gauge", true, false, false));
+    }
+    for (Map.Entry<String, SimpleHistogram> histogram : histograms.entrySet()) {
+      for (String statistic : HISTOGRAM_ATTRIBUTES) {
+        final String type = "mean".equals(statistic) ? Double.class.getName() : Long.class.getName();
+        attributes.add(new MBeanAttributeInfo(histogram.getKey() + "." + statistic, type, "Histogram " + statistic,
+                                              true, false, false));
+      }
+    }
+    return new MBeanInfo(getClass().getName(), "Email queue metrics", attributes.toArray(
+        new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+  }
+
+  private static class SimpleCounter implements Counter {
+
+    private final AtomicLong count = new AtomicLong();
+
+    public void increment() {
+      count.incrementAndGet();
+    }
+  }
+
+  private static class SimpleHistogram implements Histogram {
+
+    // Bucket i holds the values needing i bits, i.e. 0 in bucket 0 and [2^(i-1), 2^i) in bucket i
+    private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+      if (value < 0) {
+        value = 0;
+      }
+      buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      long currentMax;
+      while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+        // Raced with another record, read the max again
+      }
+    }
+
+    double getMean() {
+      final long currentCount = count.get();
+      return currentCount == 0 ? 0 : (double) sum.get() / currentCount;
+    }
+
+    long getPercentile(double percentile) {
+      final long target = (long) Math.ceil(count.get() * percentile);
+      long seen = 0;
+      for (int i = 0; i < buckets.length(); ++i) {
+        seen += buckets.get(i);
+        if (seen >= target && seen > 0) {
+          return i == 0 ? 0 : Math.min(max.get(), i >= Long.SIZE - 1 ? Long.MAX_VALUE : (1L << i) - 1);
+        }
+      }
+      return max.get();
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single SMTP connection that is kept open across messages. It connects lazily, recycles itself after a configured
+ * number of messages and reconnects once transparently if the server dropped the connection underneath it.
+ * Instances are not thread safe.
+ * @author imyousuf
+ */
+public class SmtpConnection {
+
+  private final Session session;
+  private final int maxMessagesPerConnection;
+  private final EmailQueueMetrics.RelayMetrics metrics;
+  private final transient Logger logger = LoggerFactory.getLogger(getClass());
+  private Transport transport;
+  private boolean open;
+  private int messagesSentOnConnection;
+  private int connectCount;
+
+  public SmtpConnection(Session session, int maxMessagesPerConnection) {
+    this(session, maxMessagesPerConnection, EmailQueueMetrics.RelayMetrics.NONE);
+  }
+
+  public SmtpConnection(Session session, int maxMessagesPerConnection, EmailQueueMetrics.RelayMetrics metrics) {
+    this.session = session;
+    this.maxMessagesPerConnection = maxMessagesPerConnection;
+    this.metrics = metrics;
+  }
+
+  public void send(MimeMessage message) throws MessagingException {
+    send(message, null);
+  }
+
+  /**
+   * Send a message to the given recipients rather than to those in its headers.
+   */
+  public void send(MimeMessage message, Address[] recipients) throws MessagingException {
+    if (open && maxMessagesPerConnection > 0 && messagesSentOnConnection >= maxMessagesPerConnection) {
+      logger.debug("Recycling SMTP connection after reaching max messages per connection");
+      close();
+    }
+    connect();
+    // Transport.send would do this for us, but sendMessage does not
+    message.saveChanges();
+    final Address[] envelopeRecipients = recipients == null ? message.getAllRecipients() : recipients;
+    try {
+      sendMessage(message, envelopeRecipients);
+    }
+    catch (MessagingException ex) {
+      // A still connected transport means the server rejected this very message, so retrying would not help
+      if (transport.isConnected()) {
+        throw ex;
+      }
+      logger.info("SMTP connection dropped, reconnecting and retrying once", ex);
+      close();
+      connect();
+      sendMessage(message, envelopeRecipients);
+    }
+    messagesSentOnConnection++;
+  }
+
+  private void sendMessage(MimeMessage message, Address[] envelopeRecipients) throws MessagingException {
+    final long start = System.nanoTime();
+    transport.sendMessage(message, envelopeRecipients);
+    metrics.getData().record((System.nanoTime() - start) / 1000);
+  }
+
+  public void connect() throws MessagingException {
+    if (open) {
+      return;
+    }
+    if (transport == null) {
+      transport = session.getTransport("smtp");
+    }
+    logger.debug("Connecting to SMTP server");
+    final long start = System.nanoTime();
+    transport.connect();
+    metrics.getConnect().record((System.nanoTime() - start) / 1000);
+    open = true;
+    messagesSentOnConnection = 0;
+    connectCount++;
+  }
+
+  public void close() {
+    if (!open) {
+      return;
+    }
+    open = false;
+    logger.debug("Closing tunnel with SMTP server");
+    try {
+      transport.close();
+    }
+    catch (MessagingException ex) {
+      logger.debug("Error closing SMTP connection", ex);
+    }
+  }
+
+  public boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Whether the connection has sent its max messages, so that the next send will reconnect.
+   */
+  public boolean isRecycleDue() {
+    return open && maxMessagesPerConnection > 0 && messagesSentOnConnection >= maxMessagesPerConnection;
+  }
+
+  /**
+   * The number of times this connection has (re)connected to the server, useful for measuring connection reuse.
+   */
+  public int getConnectCount() {
+    return connectCount;
+  }
+}
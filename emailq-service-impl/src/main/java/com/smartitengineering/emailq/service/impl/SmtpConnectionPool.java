@@ -0,0 +1,146 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of connected {@link SmtpConnection}s. At most pool size connections are ever handed out at a time,
+ * idle ones are reused most recently used first and closed once they have been idle longer than the idle timeout.
+ * @author imyousuf
+ */
+public class SmtpConnectionPool {
+
+  private final Session session;
+  private final int poolSize;
+  private final int maxMessagesPerConnection;
+  private final long idleTimeoutInMillis;
+  private final EmailQueueMetrics.RelayMetrics metrics;
+  private final Semaphore permits;
+  private final LinkedBlockingDeque<IdleConnection> idleConnections = new LinkedBlockingDeque<IdleConnection>();
+  private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+  public SmtpConnectionPool(Session session, int poolSize, long idleTimeoutInMillis, int maxMessagesPerConnection) {
+    this(session, poolSize, idleTimeoutInMillis, maxMessagesPerConnection, EmailQueueMetrics.RelayMetrics.NONE);
+  }
+
+  public SmtpConnectionPool(Session session, int poolSize, long idleTimeoutInMillis, int maxMessagesPerConnection,
+                            EmailQueueMetrics.RelayMetrics metrics) {
+    if (poolSize < 1) {
+      throw new IllegalArgumentException("Pool size must be positive");
+    }
+    this.session = session;
+    this.poolSize = poolSize;
+    this.idleTimeoutInMillis = idleTimeoutInMillis;
+    this.maxMessagesPerConnection = maxMessagesPerConnection;
+    this.metrics = metrics;
+    this.permits = new Semaphore(poolSize, true);
+  }
+
+  public int getPoolSize() {
+    return poolSize;
+  }
+
+  /**
+   * Borrow a connected connection, blocking till one is available. Every borrowed connection must be handed back
+   * with either {@link #release(SmtpConnection)} or {@link #invalidate(SmtpConnection)}.
+   */
+  public SmtpConnection borrow() throws MessagingException, InterruptedException {
+    permits.acquire();
+    try {
+      evictIdle();
+      IdleConnection idle = idleConnections.pollFirst();
+      SmtpConnection connection = idle == null ? new SmtpConnection(session, maxMessagesPerConnection, metrics)
+          : idle.connection;
+      connection.connect();
+      return connection;
+    }
+    catch (MessagingException ex) {
+      permits.release();
+      throw ex;
+    }
+    catch (RuntimeException ex) {
+      permits.release();
+      throw ex;
+    }
+  }
+
+  public void release(SmtpConnection connection) {
+    try {
+      if (connection.isOpen()) {
+        idleConnections.offerFirst(new IdleConnection(connection));
+      }
+    }
+    finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Hand back a connection that is known to be broken, it is closed and a fresh one will be opened in its place.
+   */
+  public void invalidate(SmtpConnection connection) {
+    try {
+      connection.close();
+    }
+    finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Close connections that have been idle longer than the idle timeout. Most recently used connections are at the
+   * head of the deque, so the oldest ones are evicted from the tail.
+   */
+  public void evictIdle() {
+    final long threshold = System.currentTimeMillis() - idleTimeoutInMillis;
+    IdleConnection idle;
+    while ((idle = idleConnections.peekLast()) != null && idle.idleSince < threshold) {
+      if (idleConnections.removeLastOccurrence(idle)) {
+        logger.debug("Closing idle SMTP connection");
+        idle.connection.close();
+      }
+    }
+  }
+
+  public void close() {
+    Iterator<IdleConnection> iterator = idleConnections.iterator();
+    while (iterator.hasNext()) {
+      IdleConnection idle = iterator.next();
+      iterator.remove();
+      idle.connection.close();
+    }
+  }
+
+  private static class IdleConnection {
+
+    private final SmtpConnection connection;
+    private final long idleSince = System.currentTimeMillis();
+
+    IdleConnection(SmtpConnection connection) {
+      this.connection = connection;
+    }
+  }
+}
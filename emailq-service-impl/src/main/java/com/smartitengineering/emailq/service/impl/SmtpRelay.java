@@ -0,0 +1,56 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import javax.mail.Session;
+
+/**
+ * An SMTP relay emails can be sent through, with its own session carrying its host, credentials and TLS/SSL settings.
+ * Relays get a share of the emails in proportion to their weight.
+ * @author imyousuf
+ */
+public class SmtpRelay {
+
+  private final String name;
+  private final Session session;
+  private final int weight;
+
+  public SmtpRelay(String name, Session session, int weight) {
+    this.name = name;
+    this.session = session;
+    this.weight = Math.max(1, weight);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public Session getSession() {
+    return session;
+  }
+
+  public int getWeight() {
+    return weight;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
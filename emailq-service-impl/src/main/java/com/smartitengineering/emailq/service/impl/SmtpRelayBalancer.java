@@ -0,0 +1,375 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.mail.MessagingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads SMTP connections over several relays, each with a {@link SmtpConnectionPool} of its own, picking a relay at
+ * random in proportion to its weight. Every relay has a circuit breaker tracking the outcome and latency of its last
+ * sends; it opens once the share of failures among them or their average latency is over its threshold, and the relay
+ * gets no connections while it is open. After the open period a single trial connection is let through, closing the
+ * breaker again if its send succeeds and reopening it otherwise. Connections to a relay whose breaker opened are given
+ * up so their workers fail over to the other relays.
+ * @author imyousuf
+ */
+public class SmtpRelayBalancer {
+
+  private static final int WINDOW_SIZE = 20;
+  private static final double LATENCY_SMOOTHING = 0.2;
+  private final List<Relay> relays;
+  private final int poolSize;
+  private final double failureThreshold;
+  private final long slowThresholdInMillis;
+  private final long openInMillis;
+  private final int minSamples;
+  private final Map<SmtpConnection, Relay> borrowed = new IdentityHashMap<SmtpConnection, Relay>();
+  private final Random random = new Random();
+  private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+  /**
+   * @param poolSize Max connections handed out at a time over all relays; any one relay may take all of them
+   * @param failureThreshold Share of failed sends among the last ones at which a breaker opens
+   * @param minSamples Sends a breaker has to have seen before it opens for their failures
+   * @param slowThresholdInMillis Average send latency at which a breaker opens, 0 or less to ignore latency
+   * @param openInMillis How long an open breaker keeps its relay out
+   * @param metrics Where the latency of each relay is recorded
+   */
+  public SmtpRelayBalancer(List<SmtpRelay> smtpRelays, int poolSize, long idleTimeoutInMillis,
+                           int maxMessagesPerConnection, double failureThreshold, int minSamples,
+                           long slowThresholdInMillis, long openInMillis, EmailQueueMetrics metrics) {
+    if (smtpRelays == null || smtpRelays.isEmpty()) {
+      throw new IllegalArgumentException("At least one relay is required");
+    }
+    this.poolSize = poolSize;
+    this.failureThreshold = failureThreshold;
+    this.minSamples = Math.min(Math.max(1, minSamples), WINDOW_SIZE);
+    this.slowThresholdInMillis = slowThresholdInMillis;
+    this.openInMillis = openInMillis;
+    List<Relay> relayList = new ArrayList<Relay>(smtpRelays.size());
+    for (SmtpRelay relay : smtpRelays) {
+      EmailQueueMetrics.RelayMetrics relayMetrics = metrics.getRelayMetrics(relay.getName());
+      relayList.add(new Relay(relay, new SmtpConnectionPool(relay.getSession(), poolSize, idleTimeoutInMillis,
+                                                            maxMessagesPerConnection, relayMetrics), relayMetrics));
+    }
+    this.relays = Collections.unmodifiableList(relayList);
+  }
+
+  public int getPoolSize() {
+    return poolSize;
+  }
+
+  /**
+   * Borrow a connection to a relay picked by weight among those whose breaker is closed, failing over to the next
+   * pick if connecting fails. Every borrowed connection must be handed back with either
+   * {@link #release(SmtpConnection)} or {@link #invalidate(SmtpConnection)}.
+   * @throws MessagingException If no relay is available or none could be connected to
+   */
+  public SmtpConnection borrow() throws MessagingException, InterruptedException {
+    List<Relay> tried = new ArrayList<Relay>(relays.size());
+    MessagingException lastFailure = null;
+    Relay relay;
+    while ((relay = pick(tried)) != null) {
+      tried.add(relay);
+      final long start = System.nanoTime();
+      try {
+        SmtpConnection connection = relay.pool.borrow();
+        synchronized (this) {
+          borrowed.put(connection, relay);
+        }
+        return connection;
+      }
+      catch (MessagingException ex) {
+        logger.warn(new StringBuilder("Could not connect to SMTP relay ").append(relay.relay).toString(), ex);
+        record(relay, (System.nanoTime() - start) / 1000, true);
+        lastFailure = ex;
+      }
+    }
+    if (lastFailure != null) {
+      throw lastFailure;
+    }
+    throw new MessagingException("No SMTP relay available, every circuit breaker is open");
+  }
+
+  /**
+   * Record the outcome of a send over a borrowed connection.
+   * @param failed Whether the send failed for reasons of the relay rather than of the email
+   */
+  public void recordSend(SmtpConnection connection, long latencyInMicros, boolean failed) {
+    Relay relay;
+    synchronized (this) {
+      relay = borrowed.get(connection);
+    }
+    if (relay != null) {
+      relay.metrics.getTotal().record(latencyInMicros);
+      record(relay, latencyInMicros, failed);
+    }
+  }
+
+  /**
+   * Check whether a borrowed connection should still be used, handing it back if its relay's breaker has opened or
+   * if it has sent its share and the next email should go to a freshly picked relay.
+   * @return The connection to go on with, null if it was handed back
+   */
+  public SmtpConnection keepOrRelease(SmtpConnection connection) {
+    Relay relay;
+    synchronized (this) {
+      relay = borrowed.get(connection);
+    }
+    if (relay == null) {
+      return connection;
+    }
+    final boolean available;
+    synchronized (relay) {
+      available = relay.state == BreakerState.CLOSED;
+    }
+    if (!available) {
+      invalidate(connection);
+      return null;
+    }
+    // With a single relay there is nothing to rebalance to
+    if (relays.size() > 1 && connection.isRecycleDue()) {
+      release(connection);
+      return null;
+    }
+    return connection;
+  }
+
+  public void release(SmtpConnection connection) {
+    Relay relay;
+    synchronized (this) {
+      relay = borrowed.remove(connection);
+    }
+    if (relay != null) {
+      relay.endTrial();
+      relay.pool.release(connection);
+    }
+  }
+
+  public void invalidate(SmtpConnection connection) {
+    Relay relay;
+    synchronized (this) {
+      relay = borrowed.remove(connection);
+    }
+    if (relay != null) {
+      relay.endTrial();
+      relay.pool.invalidate(connection);
+    }
+  }
+
+  public void evictIdle() {
+    for (Relay relay : relays) {
+      relay.pool.evictIdle();
+    }
+  }
+
+  public void close() {
+    for (Relay relay : relays) {
+      relay.pool.close();
+    }
+  }
+
+  /**
+   * The name of the relay a borrowed connection goes to, null if the connection is not borrowed from this balancer.
+   */
+  public String getRelayName(SmtpConnection connection) {
+    Relay relay;
+    synchronized (this) {
+      relay = borrowed.get(connection);
+    }
+    return relay == null ? null : relay.relay.getName();
+  }
+
+  /**
+   * Whether the breaker of the named relay lets connections through, for monitoring.
+   */
+  public boolean isAvailable(String relayName) {
+    for (Relay relay : relays) {
+      if (relay.relay.getName().equals(relayName)) {
+        synchronized (relay) {
+          return relay.state != BreakerState.OPEN;
+        }
+      }
+    }
+    return false;
+  }
+
+  private Relay pick(List<Relay> excluded) {
+    final long now = System.currentTimeMillis();
+    List<Relay> candidates = new ArrayList<Relay>(relays.size());
+    int totalWeight = 0;
+    for (Relay relay : relays) {
+      if (!excluded.contains(relay) && relay.isAvailable(now)) {
+        candidates.add(relay);
+        totalWeight += relay.relay.getWeight();
+      }
+    }
+    if (candidates.isEmpty()) {
+      return null;
+    }
+    int point;
+    synchronized (random) {
+      point = random.nextInt(totalWeight);
+    }
+    for (Relay relay : candidates) {
+      point -= relay.relay.getWeight();
+      if (point < 0 && relay.tryEnter(now)) {
+        return relay;
+      }
+    }
+    // The pick went half open and another worker took its trial meanwhile, settle for any closed one
+    for (Relay relay : candidates) {
+      if (relay.tryEnter(now)) {
+        return relay;
+      }
+    }
+    return null;
+  }
+
+  private void record(Relay relay, long latencyInMicros, boolean failed) {
+    synchronized (relay) {
+      relay.outcomes[relay.nextOutcome] = failed;
+      relay.nextOutcome = (relay.nextOutcome + 1) % WINDOW_SIZE;
+      relay.samples = Math.min(relay.samples + 1, WINDOW_SIZE);
+      relay.averageLatency = relay.averageLatency < 0 ? latencyInMicros : relay.averageLatency + LATENCY_SMOOTHING *
+          (latencyInMicros - relay.averageLatency);
+      if (relay.state == BreakerState.HALF_OPEN) {
+        if (failed || isSlow(relay)) {
+          open(relay, "its trial failed");
+        }
+        else {
+          logger.info(new StringBuilder("SMTP relay ").append(relay.relay).append(" recovered").toString());
+          relay.state = BreakerState.CLOSED;
+          relay.reset();
+        }
+      }
+      else if (relay.state == BreakerState.CLOSED) {
+        if (relay.samples >= minSamples && relay.getFailureRate() >= failureThreshold) {
+          open(relay, "of its failure rate");
+        }
+        else if (relay.samples >= minSamples && isSlow(relay)) {
+          open(relay, "of its latency");
+        }
+      }
+    }
+  }
+
+  private boolean isSlow(Relay relay) {
+    return slowThresholdInMillis > 0 && relay.averageLatency >= slowThresholdInMillis * 1000;
+  }
+
+  private void open(Relay relay, String reason) {
+    logger.warn(new StringBuilder("Taking SMTP relay ").append(relay.relay).append(" out for ").append(openInMillis).
+        append("ms because ").append(reason).toString());
+    relay.state = BreakerState.OPEN;
+    relay.openUntil = System.currentTimeMillis() + openInMillis;
+    relay.reset();
+    // Idle connections to it would only be found broken later
+    relay.pool.close();
+  }
+
+  private static enum BreakerState {
+
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private static class Relay {
+
+    private final SmtpRelay relay;
+    private final SmtpConnectionPool pool;
+    private final EmailQueueMetrics.RelayMetrics metrics;
+    private final boolean[] outcomes = new boolean[WINDOW_SIZE];
+    private int nextOutcome;
+    private int samples;
+    private double averageLatency = -1;
+    private BreakerState state = BreakerState.CLOSED;
+    private long openUntil;
+    private boolean trialTaken;
+
+    Relay(SmtpRelay relay, SmtpConnectionPool pool, EmailQueueMetrics.RelayMetrics metrics) {
+      this.relay = relay;
+      this.pool = pool;
+      this.metrics = metrics;
+    }
+
+    synchronized boolean isAvailable(long now) {
+      switch (state) {
+        case CLOSED:
+          return true;
+        case OPEN:
+          return openUntil <= now;
+        default:
+          return !trialTaken;
+      }
+    }
+
+    /**
+     * Take a connection to this relay, moving an open breaker past its open period to half open for a single trial.
+     */
+    synchronized boolean tryEnter(long now) {
+      if (state == BreakerState.OPEN && openUntil <= now) {
+        state = BreakerState.HALF_OPEN;
+        trialTaken = false;
+      }
+      if (state == BreakerState.CLOSED) {
+        return true;
+      }
+      if (state == BreakerState.HALF_OPEN && !trialTaken) {
+        trialTaken = true;
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * A trial connection handed back before its outcome was recorded, e.g. because there was nothing left to send,
+     * leaves room for another trial.
+     */
+    synchronized void endTrial() {
+      if (state == BreakerState.HALF_OPEN) {
+        trialTaken = false;
+      }
+    }
+
+    double getFailureRate() {
+      int failures = 0;
+      for (int i = 0; i < samples; ++i) {
+        if (outcomes[i]) {
+          failures++;
+        }
+      }
+      return samples == 0 ? 0 : (double) failures / samples;
+    }
+
+    void reset() {
+      samples = 0;
+      nextOutcome = 0;
+      averageLatency = -1;
+      trialTaken = false;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.dao.common.CommonDao;
+import com.smartitengineering.emailq.domain.Email;
+import com.smartitengineering.emailq.domain.EmailTemplate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the variables of an email into the template it refers to at send time, so that a campaign stores one template
+ * and a small record per recipient instead of a full body per recipient. Placeholders are written as
+ * <code>${name}</code>; a placeholder without a matching variable is merged as empty. Variables are merged as they
+ * are, without any escaping.
+ * <p>
+ * Templates are compiled once and cached by id, so a template must not be changed once emails refer to it; save a new
+ * one instead.
+ * </p>
+ * @author imyousuf
+ */
+public class TemplateRenderer {
+
+  private final CommonDao<EmailTemplate, String> templateDao;
+  private final Map<String, CompiledTemplate> cache;
+
+  public TemplateRenderer(CommonDao<EmailTemplate, String> templateDao, final int cacheSize) {
+    this.templateDao = templateDao;
+    this.cache = new LinkedHashMap<String, CompiledTemplate>(16, 0.75f, true) {
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CompiledTemplate> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * @return The compiled template or null if there is no template with the id
+   */
+  public CompiledTemplate getTemplate(String templateId) {
+    synchronized (cache) {
+      CompiledTemplate template = cache.get(templateId);
+      if (template != null) {
+        return template;
+      }
+    }
+    EmailTemplate template = templateDao.getById(templateId);
+    if (template == null) {
+      return null;
+    }
+    CompiledTemplate compiled = new CompiledTemplate(template);
+    synchronized (cache) {
+      cache.put(templateId, compiled);
+    }
+    return compiled;
+  }
+
+  public static class CompiledTemplate {
+
+    private final Segments subject;
+    private final String from;
+    private final Email.Message.MsgType msgType;
+    private final Segments msgBody;
+
+    CompiledTemplate(EmailTemplate template) {
+      this.subject = new Segments(template.getSubject());
+      this.from = template.getFrom();
+      this.msgType = template.getMsgType() == null ? Email.Message.MsgType.PLAIN : Email.Message.MsgType.valueOf(
+          template.getMsgType().name());
+      this.msgBody = new Segments(template.getMsgBody());
+    }
+
+    public String getFrom() {
+      return from;
+    }
+
+    public Email.Message.MsgType getMsgType() {
+      return msgType;
+    }
+
+    public String mergeSubject(Email email) {
+      return subject.merge(getVariables(email));
+    }
+
+    public String mergeMsgBody(Email email) {
+      return msgBody.merge(getVariables(email));
+    }
+
+    private static Map<String, String> getVariables(Email email) {
+      Map<String, String> variables = new HashMap<String, String>();
+      if (email.getTemplateVariables() != null) {
+        for (Email.TemplateVariables variable : email.getTemplateVariables()) {
+          variables.put(variable.getName(), variable.getValue());
+        }
+      }
+      return variables;
+    }
+  }
+
+  /**
+   * A template text split into alternating literals and placeholder names, starting and ending with a literal.
+   */
+  static class Segments {
+
+    private final List<String> literals = new ArrayList<String>();
+    private final List<String> names = new ArrayList<String>();
+    private final int literalLength;
+
+    Segments(String text) {
+      int length = 0;
+      int position = 0;
+      if (text != null) {
+        int start;
+        while ((start = text.indexOf("${", position)) >= 0) {
+          final int end = text.indexOf('}', start + 2);
+          if (end < 0) {
+            break;
+          }
+          literals.add(text.substring(position, start));
+          names.add(text.substring(start + 2, end).trim());
+          length += start - position;
+          position = end + 1;
+        }
+        literals.add(text.substring(position));
+        length += text.length() - position;
+      }
+      else {
+        literals.add("");
+      }
+      this.literalLength = length;
+    }
+
+    String merge(Map<String, String> variables) {
+      StringBuilder merged = new StringBuilder(literalLength + names.size() * 16);
+      for (int i = 0; i < names.size(); ++i) {
+        merged.append(literals.get(i));
+        String value = variables.get(names.get(i));
+        if (value != null) {
+          merged.append(value);
+        }
+      }
+      return merged.append(literals.get(names.size())).toString();
+    }
+  }
+}
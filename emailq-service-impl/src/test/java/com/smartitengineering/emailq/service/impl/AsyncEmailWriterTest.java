@@ -0,0 +1,109 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.emailq.domain.Email;
+import com.smartitengineering.emailq.service.SaveResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AsyncEmailWriterTest {
+
+  private static final int MAX_SUBMITS = 2000;
+  private static final AsyncEmailWriter.BatchWriter ACCEPTING_WRITER = new AsyncEmailWriter.BatchWriter() {
+
+    public List<SaveResult> write(List<Email> batch) {
+      List<SaveResult> results = new ArrayList<SaveResult>(batch.size());
+      for (Email email : batch) {
+        email.setId(String.valueOf(System.identityHashCode(email)));
+        results.add(new SaveResult(email, true, null));
+      }
+      return results;
+    }
+  };
+
+  @Test
+  public void testSubmitAfterCloseFails() throws Exception {
+    AsyncEmailWriter writer = newWriter();
+    writer.close(1000);
+    Future<String> id = writer.submit(new Email());
+    Assert.assertTrue(id.isDone());
+    try {
+      id.get();
+      Assert.fail("A save after closing should fail");
+    }
+    catch (ExecutionException ex) {
+      Assert.assertTrue(ex.getCause() instanceof RejectedExecutionException);
+    }
+  }
+
+  /**
+   * Saves racing the close either get written or fail, none of them is left buffered after the writer stopped.
+   */
+  @Test
+  public void testSubmitsRacingCloseComplete() throws Exception {
+    for (int round = 0; round < 100; ++round) {
+      final AsyncEmailWriter writer = newWriter();
+      final AtomicBoolean stop = new AtomicBoolean();
+      final List<List<Future<String>>> ids = new ArrayList<List<Future<String>>>();
+      List<Thread> submitters = new ArrayList<Thread>();
+      for (int i = 0; i < 4; ++i) {
+        final List<Future<String>> submitterIds = new ArrayList<Future<String>>();
+        ids.add(submitterIds);
+        Thread submitter = new Thread(new Runnable() {
+
+          public void run() {
+            while (!stop.get() && submitterIds.size() < MAX_SUBMITS) {
+              submitterIds.add(writer.submit(new Email()));
+            }
+          }
+        });
+        submitters.add(submitter);
+        submitter.start();
+      }
+      writer.close(1000);
+      stop.set(true);
+      for (Thread submitter : submitters) {
+        submitter.join();
+      }
+      for (List<Future<String>> submitterIds : ids) {
+        for (Future<String> id : submitterIds) {
+          try {
+            id.get(1, TimeUnit.SECONDS);
+          }
+          catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof RejectedExecutionException);
+          }
+        }
+      }
+    }
+  }
+
+  private static AsyncEmailWriter newWriter() {
+    return new AsyncEmailWriter(ACCEPTING_WRITER, Executors.defaultThreadFactory(), 1000, 50, false, 0);
+  }
+}
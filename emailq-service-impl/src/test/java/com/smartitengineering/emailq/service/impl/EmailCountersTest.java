@@ -0,0 +1,132 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.emailq.domain.Email;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EmailCountersTest {
+
+  private static final int MAX_DOMAINS = 2;
+  private LocalCounterStore store;
+  private EmailCounters counters;
+
+  @Before
+  public void setUp() {
+    store = new LocalCounterStore();
+    counters = new EmailCounters(store, 0, MAX_DOMAINS);
+  }
+
+  @Test
+  public void testStatusChangeMovesCounts() {
+    Email email = newEmail("one@a.com");
+    email.setPriority(Email.Priority.HIGH);
+    counters.enqueued(email);
+    email.setMailStatus(Email.MailStatus.SENT);
+    counters.statusChanged(email, Email.MailStatus.NOT_SENT, "relay1");
+    Assert.assertEquals(0, counters.getCount(Email.MailStatus.NOT_SENT));
+    Assert.assertEquals(1, counters.getCount(Email.MailStatus.SENT));
+    Assert.assertEquals(1, counters.getCount(Email.MailStatus.SENT, Email.Priority.HIGH));
+    Assert.assertEquals(1, counters.getRelayCount(Email.MailStatus.SENT, "relay1"));
+  }
+
+  @Test
+  public void testDomainCountedOncePerEmail() {
+    Email email = newEmail("one@a.com", "two@A.com", "Three <three@a.com>");
+    counters.enqueued(email);
+    Assert.assertEquals(1, counters.getDomainCount(Email.MailStatus.NOT_SENT, "a.com"));
+  }
+
+  @Test
+  public void testDomainsPastTheMaxAreBucketed() {
+    counters.enqueued(newEmail("one@a.com"));
+    counters.enqueued(newEmail("one@b.com"));
+    counters.enqueued(newEmail("one@c.com"));
+    counters.enqueued(newEmail("one@d.com"));
+    Map<String, Long> counts = counters.getCounts();
+    Assert.assertEquals(Long.valueOf(1), counts.get("status.NOT_SENT.domain.a.com"));
+    Assert.assertEquals(Long.valueOf(1), counts.get("status.NOT_SENT.domain.b.com"));
+    Assert.assertNull(counts.get("status.NOT_SENT.domain.c.com"));
+    Assert.assertEquals(Long.valueOf(2), counts.get("status.NOT_SENT.domain.other"));
+    Assert.assertEquals(0, counters.getDomainCount(Email.MailStatus.NOT_SENT, "d.com"));
+    Assert.assertEquals(2, counters.getOtherDomainCount(Email.MailStatus.NOT_SENT));
+  }
+
+  @Test
+  public void testCountsWrittenOnFlush() {
+    counters.enqueued(newEmail("one@a.com"));
+    Assert.assertTrue(store.getAll().isEmpty());
+    Assert.assertEquals(1, counters.getCount(Email.MailStatus.NOT_SENT));
+    counters.flush();
+    Assert.assertEquals(Long.valueOf(1), store.getAll().get("status.NOT_SENT"));
+    Assert.assertEquals(1, counters.getCount(Email.MailStatus.NOT_SENT));
+  }
+
+  @Test
+  public void testFailedFlushKeepsDeltas() {
+    final AtomicBoolean failing = new AtomicBoolean(true);
+    EmailCounters failingCounters = new EmailCounters(new LocalCounterStore() {
+
+      @Override
+      public void add(Map<String, Long> deltas) {
+        if (failing.get()) {
+          throw new IllegalStateException("Store down");
+        }
+        super.add(deltas);
+      }
+    }, 0, MAX_DOMAINS);
+    failingCounters.enqueued(newEmail("one@a.com"));
+    failingCounters.flush();
+    failing.set(false);
+    failingCounters.flush();
+    Assert.assertEquals(1, failingCounters.getCount(Email.MailStatus.NOT_SENT));
+    Assert.assertEquals(Long.valueOf(1), failingCounters.getCounts().get("status.NOT_SENT"));
+  }
+
+  /**
+   * Two nodes starting together both find the store not seeded yet, only the first to seed it may set the counts.
+   */
+  @Test
+  public void testSeededOnce() {
+    final EmailCounters other = new EmailCounters(store, 0, MAX_DOMAINS);
+    EmailCounters.RepositoryCount repositoryCount = new EmailCounters.RepositoryCount() {
+
+      public long count(Email.MailStatus status, Email.Priority priority) {
+        return Email.MailStatus.NOT_SENT.equals(status) && priority == null ? 5 : 0;
+      }
+    };
+    Assert.assertTrue(counters.seed(repositoryCount));
+    Assert.assertFalse(other.seed(repositoryCount));
+    Assert.assertFalse(store.seed(Collections.singletonMap("status.NOT_SENT", Long.valueOf(5))));
+    Assert.assertEquals(5, other.getCount(Email.MailStatus.NOT_SENT));
+  }
+
+  private static Email newEmail(String... to) {
+    Email email = new Email();
+    email.setMailStatus(Email.MailStatus.NOT_SENT);
+    email.setTo(Arrays.asList(to));
+    return email;
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.dao.common.CommonDao;
+import com.smartitengineering.emailq.domain.Email;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EmailJournalTest {
+
+  private static final long SEGMENT_SIZE_IN_BYTES = 1024 * 1024;
+  private File directory;
+  private InMemoryEmailDao emailDao;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("emailq-journal", "");
+    if (!directory.delete() || !directory.mkdir()) {
+      throw new IOException("Could not create " + directory);
+    }
+    emailDao = new InMemoryEmailDao();
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  /**
+   * The first replay stores the email but stops before recording its progress, as a crash would; the second replay
+   * hands the same segment out again and the email is still stored once.
+   */
+  @Test
+  public void testSegmentReplayedTwiceStoredOnce() throws Exception {
+    EmailJournal journal = new EmailJournal(directory, SEGMENT_SIZE_IN_BYTES, 10, 0);
+    final Email email = newEmail();
+    journal.append(email);
+    final EmailJournal.Replayer replayer = new EmailJournalReplayer(emailDao.asCommonDao());
+    Assert.assertEquals(0, journal.replay(new EmailJournal.Replayer() {
+
+      public void replay(List<Email> emails) throws Exception {
+        replayer.replay(emails);
+        throw new IOException("Crashed before the progress was recorded");
+      }
+    }));
+    Assert.assertEquals(1, emailDao.emails.size());
+    Assert.assertEquals(1, journal.replay(replayer));
+    Assert.assertEquals(1, emailDao.emails.size());
+    Assert.assertTrue(emailDao.emails.containsKey(email.getId()));
+    journal.close();
+  }
+
+  @Test
+  public void testSegmentReplayedInBatches() throws Exception {
+    EmailJournal journal = new EmailJournal(directory, SEGMENT_SIZE_IN_BYTES, 2, 0);
+    for (int i = 0; i < 5; ++i) {
+      journal.append(newEmail());
+    }
+    final List<Integer> batchSizes = new ArrayList<Integer>();
+    final EmailJournal.Replayer replayer = new EmailJournalReplayer(emailDao.asCommonDao());
+    Assert.assertEquals(5, journal.replay(new EmailJournal.Replayer() {
+
+      public void replay(List<Email> emails) throws Exception {
+        batchSizes.add(emails.size());
+        replayer.replay(emails);
+      }
+    }));
+    Assert.assertEquals(Arrays.asList(2, 2, 1), batchSizes);
+    Assert.assertEquals(5, emailDao.emails.size());
+    journal.close();
+  }
+
+  /**
+   * The segment being appended to is left alone till its oldest email is older than the max replay delay, and is
+   * replayed once the journal is closed.
+   */
+  @Test
+  public void testYoungSegmentNotSealed() throws Exception {
+    EmailJournal journal = new EmailJournal(directory, SEGMENT_SIZE_IN_BYTES, 10, 60 * 60 * 1000);
+    journal.append(newEmail());
+    final EmailJournal.Replayer replayer = new EmailJournalReplayer(emailDao.asCommonDao());
+    Assert.assertEquals(0, journal.replay(replayer));
+    Assert.assertEquals(0, journal.replay(replayer));
+    Assert.assertEquals(1, directory.listFiles().length);
+    journal.close();
+    Assert.assertEquals(1, journal.replay(replayer));
+    Assert.assertEquals(1, emailDao.emails.size());
+  }
+
+  private static Email newEmail() {
+    Email email = new Email();
+    email.setId(UUID.randomUUID().toString());
+    email.setFrom("from@example.com");
+    email.setTo(Arrays.asList("to@example.com"));
+    email.setSubject("Subject");
+    return email;
+  }
+
+  /**
+   * Stores emails under the ids they are saved with, giving one only to an email that has none, as the repository
+   * does.
+   */
+  private static class InMemoryEmailDao implements InvocationHandler {
+
+    private final Map<String, Email> emails = new LinkedHashMap<String, Email>();
+
+    CommonDao<Email, String> asCommonDao() {
+      return (CommonDao<Email, String>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{
+            CommonDao.class}, this);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if ("getByIds".equals(method.getName())) {
+        Set<Email> read = new LinkedHashSet<Email>();
+        for (String id : (List<String>) args[0]) {
+          if (emails.containsKey(id)) {
+            read.add(emails.get(id));
+          }
+        }
+        return read;
+      }
+      if ("save".equals(method.getName())) {
+        for (Email email : (Email[]) args[0]) {
+          if (email.getId() == null) {
+            email.setId(UUID.randomUUID().toString());
+          }
+          emails.put(email.getId(), email);
+        }
+        return null;
+      }
+      throw new UnsupportedOperationException(method.getName());
+    }
+  }
+}
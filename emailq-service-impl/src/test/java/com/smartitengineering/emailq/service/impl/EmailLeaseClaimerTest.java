@@ -0,0 +1,180 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.dao.common.CommonDao;
+import com.smartitengineering.emailq.domain.Email;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EmailLeaseClaimerTest {
+
+  private static final String EMAIL_ID = "email-1";
+  private static final long LEASE_IN_MILLIS = 60000;
+  private InMemoryEmailDao emailDao;
+  private LocalLeaseStore leaseStore;
+  private EmailLeaseClaimer first;
+  private EmailLeaseClaimer second;
+
+  @Before
+  public void setUp() {
+    emailDao = new InMemoryEmailDao();
+    leaseStore = new LocalLeaseStore();
+    first = new EmailLeaseClaimer(emailDao.asCommonDao(), leaseStore, "first", LEASE_IN_MILLIS);
+    second = new EmailLeaseClaimer(emailDao.asCommonDao(), leaseStore, "second", LEASE_IN_MILLIS);
+  }
+
+  /**
+   * The second claimer reads the email before the first claims it, and only goes on after the first claimed it and
+   * read its claim back; writing the claim and reading it back would have let both of them send the email.
+   */
+  @Test
+  public void testInterleavedClaimsExcludeEachOther() {
+    emailDao.store(newEmail(Email.MailStatus.NOT_SENT, null, null));
+    final List<List<Email>> firstClaims = new ArrayList<List<Email>>();
+    emailDao.interleave(new Runnable() {
+
+      public void run() {
+        firstClaims.add(first.claimByIds(Collections.singletonList(EMAIL_ID)));
+      }
+    });
+    List<Email> secondClaimed = second.claimByIds(Collections.singletonList(EMAIL_ID));
+    Assert.assertEquals(1, firstClaims.size());
+    Assert.assertEquals(1, firstClaims.get(0).size());
+    Assert.assertTrue(secondClaimed.isEmpty());
+    Assert.assertEquals("first", emailDao.read(EMAIL_ID).getClaimOwner());
+    Assert.assertEquals(Email.MailStatus.IN_FLIGHT, emailDao.read(EMAIL_ID).getMailStatus());
+  }
+
+  /**
+   * Both claimers find the lease of a crashed node expired; only one of them takes the email over.
+   */
+  @Test
+  public void testInterleavedClaimsOfExpiredLease() {
+    final Date expired = new Date(System.currentTimeMillis() - 1000);
+    Assert.assertTrue(leaseStore.acquire(EMAIL_ID, "crashed", expired.getTime(), expired.getTime() - 1000));
+    emailDao.store(newEmail(Email.MailStatus.IN_FLIGHT, "crashed", expired));
+    final List<List<Email>> secondClaims = new ArrayList<List<Email>>();
+    emailDao.interleave(new Runnable() {
+
+      public void run() {
+        secondClaims.add(second.claimByIds(Collections.singletonList(EMAIL_ID)));
+      }
+    });
+    List<Email> firstClaimed = first.claimByIds(Collections.singletonList(EMAIL_ID));
+    Assert.assertEquals(1, secondClaims.get(0).size());
+    Assert.assertTrue(firstClaimed.isEmpty());
+    Assert.assertEquals("second", emailDao.read(EMAIL_ID).getClaimOwner());
+  }
+
+  /**
+   * An email whose claim was given up after a failed attempt can be claimed by another node at once.
+   */
+  @Test
+  public void testReleasedClaimIsClaimable() {
+    emailDao.store(newEmail(Email.MailStatus.NOT_SENT, null, null));
+    List<Email> claimed = first.claimByIds(Collections.singletonList(EMAIL_ID));
+    Assert.assertEquals(1, claimed.size());
+    first.release(claimed.get(0));
+    emailDao.asCommonDao().update(claimed.get(0));
+    Assert.assertEquals(1, second.claimByIds(Collections.singletonList(EMAIL_ID)).size());
+  }
+
+  private static Email newEmail(Email.MailStatus status, String owner, Date leaseExpiry) {
+    Email email = new Email();
+    email.setId(EMAIL_ID);
+    email.setMailStatus(status);
+    email.setClaimOwner(owner);
+    email.setLeaseExpiry(leaseExpiry);
+    return email;
+  }
+
+  /**
+   * Keeps the claim state of emails, handing out a fresh copy on every read as the repository does. A read can be
+   * made to run another claim after the copies are taken, so that the reader goes on with what is then a stale read.
+   */
+  private static class InMemoryEmailDao implements InvocationHandler {
+
+    private final Map<String, Email> emails = new HashMap<String, Email>();
+    private Runnable interleaved;
+
+    void store(Email email) {
+      emails.put(email.getId(), copy(email));
+    }
+
+    Email read(String id) {
+      return copy(emails.get(id));
+    }
+
+    void interleave(Runnable runnable) {
+      this.interleaved = runnable;
+    }
+
+    CommonDao<Email, String> asCommonDao() {
+      return (CommonDao<Email, String>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{
+            CommonDao.class}, this);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if ("getByIds".equals(method.getName())) {
+        Set<Email> read = new LinkedHashSet<Email>();
+        for (String id : (List<String>) args[0]) {
+          if (emails.containsKey(id)) {
+            read.add(read(id));
+          }
+        }
+        Runnable runnable = interleaved;
+        interleaved = null;
+        if (runnable != null) {
+          runnable.run();
+        }
+        return read;
+      }
+      if ("update".equals(method.getName())) {
+        for (Email email : (Email[]) args[0]) {
+          store(email);
+        }
+        return null;
+      }
+      throw new UnsupportedOperationException(method.getName());
+    }
+
+    private static Email copy(Email email) {
+      Email copy = new Email();
+      copy.setId(email.getId());
+      copy.setMailStatus(email.getMailStatus());
+      copy.setClaimOwner(email.getClaimOwner());
+      copy.setLeaseExpiry(email.getLeaseExpiry());
+      copy.setNextAttemptTime(email.getNextAttemptTime());
+      return copy;
+    }
+  }
+}
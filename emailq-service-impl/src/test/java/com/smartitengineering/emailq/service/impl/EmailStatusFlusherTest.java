@@ -0,0 +1,128 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2012  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service.impl;
+
+import com.smartitengineering.dao.common.CommonDao;
+import com.smartitengineering.emailq.domain.Email;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EmailStatusFlusherTest {
+
+  private static final int FLUSH_SIZE = 10;
+  private static final long FLUSH_INTERVAL_IN_MILLIS = 60 * 60 * 1000;
+  private RecordingEmailDao emailDao;
+  private ScheduledExecutorService executor;
+  private EmailStatusFlusher flusher;
+
+  @Before
+  public void setUp() {
+    emailDao = new RecordingEmailDao();
+    executor = Executors.newSingleThreadScheduledExecutor();
+    flusher = new EmailStatusFlusher(emailDao.asCommonDao(), executor, FLUSH_SIZE, FLUSH_INTERVAL_IN_MILLIS);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * A batch the repository failed to write fails the flush, and is written ahead of the emails added after it.
+   */
+  @Test
+  public void testFailedBatchWrittenFirst() throws Exception {
+    Email first = newEmail("email-1");
+    Email second = newEmail("email-2");
+    emailDao.failing = true;
+    flusher.add(first);
+    assertFlushFails();
+    emailDao.failing = false;
+    flusher.add(second);
+    flusher.flush();
+    Assert.assertEquals(2, emailDao.updates.size());
+    Assert.assertEquals(Arrays.asList(first), emailDao.updates.get(0));
+    Assert.assertEquals(Arrays.asList(second), emailDao.updates.get(1));
+  }
+
+  @Test
+  public void testFailedBatchDroppedAfterMaxAttempts() throws Exception {
+    emailDao.failing = true;
+    flusher.add(newEmail("email-1"));
+    for (int i = 0; i < EmailStatusFlusher.MAX_ATTEMPTS; ++i) {
+      assertFlushFails();
+    }
+    emailDao.failing = false;
+    flusher.flush();
+    Assert.assertTrue(emailDao.updates.isEmpty());
+  }
+
+  private void assertFlushFails() throws InterruptedException {
+    try {
+      flusher.flush();
+      Assert.fail("Flush should have failed");
+    }
+    catch (ExecutionException ex) {
+      Assert.assertTrue(ex.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  private static Email newEmail(String id) {
+    Email email = new Email();
+    email.setId(id);
+    email.setMailStatus(Email.MailStatus.SENT);
+    return email;
+  }
+
+  /**
+   * Records the batches updated, failing every update while told to.
+   */
+  private static class RecordingEmailDao implements InvocationHandler {
+
+    private final List<List<Email>> updates = new ArrayList<List<Email>>();
+    private volatile boolean failing;
+
+    CommonDao<Email, String> asCommonDao() {
+      return (CommonDao<Email, String>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{
+            CommonDao.class}, this);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if ("update".equals(method.getName())) {
+        if (failing) {
+          throw new IllegalStateException("Repository is down");
+        }
+        updates.add(Arrays.asList((Email[]) args[0]));
+        return null;
+      }
+      throw new UnsupportedOperationException(method.getName());
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service;
+
+import java.util.Map;
+
+/**
+ * Where the counts of emails by status are kept, updated as emails are enqueued and change status rather than counted
+ * by querying the repository. The counters kept in process are used unless another store is bound, the Guice binder
+ * binds one backed by HBase counters by default; nodes draining the same queue have to share a store for the counts to
+ * cover all of them. Increments have to be atomic, as every node adds to the same counters.
+ * @author imyousuf
+ */
+public interface CounterStore {
+
+  /**
+   * Add each delta, which may be negative, to its named counter, creating counters at 0 if they do not exist.
+   */
+  void add(Map<String, Long> deltas);
+
+  /**
+   * Whether the counters were seeded, by this or another node.
+   */
+  boolean isSeeded();
+
+  /**
+   * Set the counters to the counts of the repository unless they were seeded already, checking and setting in one
+   * atomic step so that of nodes starting together only one seeds them.
+   * @return True if this call seeded the counters
+   */
+  boolean seed(Map<String, Long> counts);
+
+  /**
+   * All counters by name.
+   */
+  Map<String, Long> getAll();
+}
@@ -0,0 +1,78 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service;
+
+import java.util.List;
+
+/**
+ * A page of email summaries, along with the cursor to read the page after it with.
+ * @author imyousuf
+ */
+public class EmailPage {
+
+  /**
+   * The total count of a page read without counting.
+   */
+  public static final long NOT_COUNTED = -1;
+  private final List<EmailSummary> summaries;
+  private final String nextCursor;
+  private final long totalCount;
+  private final boolean countApproximate;
+
+  public EmailPage(List<EmailSummary> summaries, String nextCursor, long totalCount) {
+    this(summaries, nextCursor, totalCount, false);
+  }
+
+  public EmailPage(List<EmailSummary> summaries, String nextCursor, long totalCount, boolean countApproximate) {
+    this.summaries = summaries;
+    this.nextCursor = nextCursor;
+    this.totalCount = totalCount;
+    this.countApproximate = countApproximate;
+  }
+
+  public List<EmailSummary> getSummaries() {
+    return summaries;
+  }
+
+  /**
+   * The cursor of the next page, null if this is the last one.
+   */
+  public String getNextCursor() {
+    return nextCursor;
+  }
+
+  public boolean hasNext() {
+    return nextCursor != null;
+  }
+
+  /**
+   * The count of all emails matching the query, {@link #NOT_COUNTED} if they were not counted.
+   */
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  /**
+   * Whether the total count was taken from the email counters rather than counted by querying, in which case it may
+   * lag behind by a few seconds.
+   */
+  public boolean isCountApproximate() {
+    return countApproximate;
+  }
+}
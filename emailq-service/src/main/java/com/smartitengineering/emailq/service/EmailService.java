@@ -20,6 +20,11 @@ package com.smartitengineering.emailq.service;
 
 import com.smartitengineering.dao.common.queryparam.QueryParameter;
 import com.smartitengineering.emailq.domain.Email;
+import com.smartitengineering.emailq.domain.EmailTemplate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -27,7 +32,90 @@ import com.smartitengineering.emailq.domain.Email;
  */
 public interface EmailService {
 
+  /**
+   * Save an email to be sent. An email with a send after time is held back till that time, and sent as soon as it
+   * comes.
+   */
   boolean saveEmail(Email email);
 
+  /**
+   * Save an email to be sent with the given priority. High priority emails are sent ahead of the rest and always
+   * have workers available to them, bulk emails only get what is left.
+   */
+  boolean saveEmail(Email email, Email.Priority priority);
+
+  /**
+   * Save a batch of emails to be sent, validating and writing them in chunks instead of one at a time.
+   * @return The outcome of each email, in the order of the batch
+   */
+  List<SaveResult> saveEmails(Collection<Email> emails);
+
+  /**
+   * Save an email to be sent without waiting for it to be stored. Emails saved this way are buffered and written in
+   * batches in the background.
+   * @return The id the email is stored with; the future fails if the email is invalid, the write fails or the buffer
+   *         is full
+   */
+  Future<String> saveEmailAsync(Email email);
+
+  /**
+   * Save a template for mail merge. Emails referring to the template by its id need only their recipients and
+   * template variables; their subject, from and body are merged from the template when they are sent.
+   * @return True if the template was saved, its id is then set
+   */
+  boolean saveTemplate(EmailTemplate template);
+
+  /**
+   * Get the emails matching the query in full, bodies and attachments included, along with their count. Meant for
+   * small results; to list emails page through their summaries with {@link #getEmailPage(String, int, boolean,
+   * QueryParameter[])} instead.
+   */
   Emails getEmails(QueryParameter... params);
+
+  /**
+   * Get a page of the summaries of the emails matching the query, ordered by id. Pages are keyed on the id of the
+   * last email of the previous page rather than on an offset, so reading a page deep into a large queue costs as much
+   * as reading the first one.
+   * @param cursor The {@link EmailPage#getNextCursor() cursor} of the previous page, null for the first page
+   * @param pageSize The most summaries in the page, at least 1
+   * @param counted Whether to count all emails matching the query, which costs a query of its own
+   * @param params The query, without ordering or paging
+   */
+  EmailPage getEmailPage(String cursor, int pageSize, boolean counted, QueryParameter... params);
+
+  /**
+   * Get a page of the summaries of the emails of a status, and of a priority if one is given. The total count of the
+   * page is the {@link #getEmailCount(Email.MailStatus, Email.Priority) count} of the status and priority, which costs
+   * no query but may lag behind by a few seconds.
+   * @see #getEmailPage(String, int, boolean, QueryParameter[])
+   */
+  EmailPage getEmailPage(String cursor, int pageSize, Email.MailStatus status, Email.Priority priority);
+
+  /**
+   * Get the number of emails of a status, as counted while emails are enqueued and change status rather than by
+   * querying the repository. Counts may lag behind by a few seconds.
+   */
+  long getEmailCount(Email.MailStatus status);
+
+  /**
+   * Get the number of emails of a status and priority, all priorities if the priority is null.
+   * @see #getEmailCount(Email.MailStatus)
+   */
+  long getEmailCount(Email.MailStatus status, Email.Priority priority);
+
+  /**
+   * Get every email count by name, i.e. the count of each status as status.&lt;status&gt; and the counts of a status
+   * split by priority, recipient domain and, for emails sent or failed, relay as
+   * status.&lt;status&gt;.priority.&lt;priority&gt;, status.&lt;status&gt;.domain.&lt;domain&gt; and
+   * status.&lt;status&gt;.relay.&lt;relay&gt;. Past a configured number of domains, emails to further domains are
+   * counted under status.&lt;status&gt;.domain.other.
+   * @see #getEmailCount(Email.MailStatus)
+   */
+  Map<String, Long> getEmailCounts();
+
+  /**
+   * Stop sending emails, writing the emails buffered by {@link #saveEmailAsync(Email)} and statuses not yet written
+   * before returning.
+   */
+  void shutdown();
 }
@@ -0,0 +1,93 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service;
+
+import com.smartitengineering.emailq.domain.Email;
+import java.util.Date;
+
+/**
+ * What a listing of emails shows of an email, i.e. everything but its recipients, body and attachments.
+ * @author imyousuf
+ */
+public class EmailSummary {
+
+  private final String id;
+  private final String subject;
+  private final String from;
+  private final Email.MailStatus mailStatus;
+  private final Email.Priority priority;
+  private final int sendAttempts;
+  private final String failureReason;
+  private final Date sendAfter;
+  private final Date nextAttemptTime;
+  private final Date lastSendTrialTime;
+
+  public EmailSummary(Email email) {
+    this.id = email.getId();
+    this.subject = email.getSubject();
+    this.from = email.getFrom();
+    this.mailStatus = email.getMailStatus();
+    this.priority = email.getPriority();
+    this.sendAttempts = email.getSendAttempts() == null ? 0 : email.getSendAttempts().intValue();
+    this.failureReason = email.getFailureReason();
+    this.sendAfter = email.getSendAfter();
+    this.nextAttemptTime = email.getNextAttemptTime();
+    this.lastSendTrialTime = email.getLastSendTrialTime();
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getSubject() {
+    return subject;
+  }
+
+  public String getFrom() {
+    return from;
+  }
+
+  public Email.MailStatus getMailStatus() {
+    return mailStatus;
+  }
+
+  public Email.Priority getPriority() {
+    return priority;
+  }
+
+  public int getSendAttempts() {
+    return sendAttempts;
+  }
+
+  public String getFailureReason() {
+    return failureReason;
+  }
+
+  public Date getSendAfter() {
+    return sendAfter;
+  }
+
+  public Date getNextAttemptTime() {
+    return nextAttemptTime;
+  }
+
+  public Date getLastSendTrialTime() {
+    return lastSendTrialTime;
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service;
+
+/**
+ * Where the leases of claimed emails are taken, by a compare and set so that of the sender nodes racing for an email
+ * exactly one gets it. Leases kept in process are used unless another store is bound; nodes draining the same queue
+ * have to share a store, e.g. one backed by an HBase table, for their claims to exclude each other.
+ * @author imyousuf
+ */
+public interface LeaseStore {
+
+  /**
+   * Take the lease of an email for the owner if nobody holds it or the lease held has expired, atomically with
+   * respect to every other acquire and release of the same email.
+   * @param expiresAt When the lease taken expires, in millis
+   * @param now The time in millis leases held are checked against
+   * @return True if the owner now holds the lease
+   */
+  boolean acquire(String emailId, String owner, long expiresAt, long now);
+
+  /**
+   * Give up the lease of an email if it is held by the owner, leaving the lease of anybody else alone.
+   */
+  void release(String emailId, String owner);
+}
@@ -0,0 +1,53 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service;
+
+/**
+ * Where the email queue reports its metrics, e.g. queue depth, send latency and failures. It may be backed by whatever
+ * metrics library the application uses; bind an implementation to have the queue report to it. Counters and
+ * histograms are looked up once by name and then updated on the sending path, so updating them should neither block
+ * nor allocate.
+ * @author imyousuf
+ */
+public interface MetricsRegistry {
+
+  Counter counter(String name);
+
+  Histogram histogram(String name);
+
+  void gauge(String name, Gauge gauge);
+
+  interface Counter {
+
+    void increment();
+  }
+
+  interface Histogram {
+
+    void record(long value);
+  }
+
+  /**
+   * A value read when the metric is reported rather than updated as it changes.
+   */
+  interface Gauge {
+
+    long getValue();
+  }
+}
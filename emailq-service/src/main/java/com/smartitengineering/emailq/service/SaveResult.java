@@ -0,0 +1,60 @@
+/*
+ *
+ * This is a simple Email Queue management system
+ * Copyright (C) 2011  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.smartitengineering.emailq.service;
+
+import com.smartitengineering.emailq.domain.Email;
+
+/**
+ * The outcome of saving one email of a batch.
+ * @author imyousuf
+ */
+public class SaveResult {
+
+  private final Email email;
+  private final boolean accepted;
+  private final String rejectionReason;
+
+  public SaveResult(Email email, boolean accepted, String rejectionReason) {
+    this.email = email;
+    this.accepted = accepted;
+    this.rejectionReason = rejectionReason;
+  }
+
+  public Email getEmail() {
+    return email;
+  }
+
+  /**
+   * The id generated for the email when it was saved, null if it was rejected.
+   */
+  public String getId() {
+    return accepted ? email.getId() : null;
+  }
+
+  public boolean isAccepted() {
+    return accepted;
+  }
+
+  /**
+   * Why the email was rejected, null if it was accepted.
+   */
+  public String getRejectionReason() {
+    return rejectionReason;
+  }
+}